@@ -8,6 +8,7 @@ import com.fasterxml.jackson.jaxrs.json.JacksonJsonProvider;
 import com.google.common.base.Optional;
 import io.digdag.client.api.JacksonTimeModule;
 import io.digdag.client.api.LocalTimeOrInstant;
+import io.digdag.client.api.RestAgentHeartbeatRequest;
 import io.digdag.client.api.RestLogFileHandle;
 import io.digdag.client.api.RestProject;
 import io.digdag.client.api.RestRevision;
@@ -19,6 +20,10 @@ import io.digdag.client.api.RestSession;
 import io.digdag.client.api.RestSessionAttempt;
 import io.digdag.client.api.RestSessionAttemptRequest;
 import io.digdag.client.api.RestTask;
+import io.digdag.client.api.RestTaskHeartbeatRequest;
+import io.digdag.client.api.RestTaskHeartbeatResult;
+import io.digdag.client.api.RestTaskLockRequest;
+import io.digdag.client.api.RestTaskLockResult;
 import io.digdag.client.api.RestWorkflowDefinition;
 import io.digdag.client.api.RestWorkflowSessionTime;
 import io.digdag.client.api.SessionTimeTruncate;
@@ -115,6 +120,8 @@ public class DigdagClient
         return new Builder();
     }
 
+    private static final int CONNECTION_POOL_SIZE = 8;
+
     private final String endpoint;
 
     private final Supplier<MultivaluedMap<String, Object>> headers;
@@ -163,7 +170,11 @@ public class DigdagClient
         injects.addValue(ObjectMapper.class, mapper);
         mapper.setInjectableValues(injects);
 
+        // pooled connections make this client thread-safe. agents lock tasks
+        // and send heartbeats using threads sharing a client.
         this.client = new ResteasyClientBuilder()
+            .connectionPoolSize(CONNECTION_POOL_SIZE)
+            .maxPooledPerRoute(CONNECTION_POOL_SIZE)
             .register(new JacksonJsonProvider(mapper))
             .build();
         this.cf = new ConfigFactory(mapper);
@@ -521,6 +532,35 @@ public class DigdagClient
                 .resolveTemplate("id", scheduleId));
     }
 
+    public RestTaskLockResult lockTasks(RestTaskLockRequest request)
+    {
+        return doPost(RestTaskLockResult.class,
+                request,
+                target("/api/queue/lock"));
+    }
+
+    public RestTaskHeartbeatResult taskHeartbeat(RestTaskHeartbeatRequest request)
+    {
+        return doPost(RestTaskHeartbeatResult.class,
+                request,
+                target("/api/queue/heartbeat"));
+    }
+
+    public void agentHeartbeat(RestAgentHeartbeatRequest request)
+    {
+        doPost(void.class,
+                request,
+                target("/api/queue/agent_heartbeat"));
+    }
+
+    public void deleteTaskLock(String lockId, String agentId)
+    {
+        doDelete(void.class,
+                target("/api/queue/locks/{lock_id}")
+                .resolveTemplate("lock_id", lockId)
+                .queryParam("agent_id", agentId));
+    }
+
     public Map<String, Object> getVersion()
     {
         return doGet(new GenericType<Map<String, Object>>() {},
@@ -0,0 +1,23 @@
+package io.digdag.client.api;
+
+import org.immutables.value.Value;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+
+@Value.Immutable
+@JsonSerialize(as = ImmutableRestAgentHeartbeatRequest.class)
+@JsonDeserialize(as = ImmutableRestAgentHeartbeatRequest.class)
+public interface RestAgentHeartbeatRequest
+{
+    String getAgentId();
+
+    int getLivenessSeconds();
+
+    static RestAgentHeartbeatRequest of(String agentId, int livenessSeconds)
+    {
+        return ImmutableRestAgentHeartbeatRequest.builder()
+            .agentId(agentId)
+            .livenessSeconds(livenessSeconds)
+            .build();
+    }
+}
@@ -0,0 +1,23 @@
+package io.digdag.client.api;
+
+import java.util.List;
+import org.immutables.value.Value;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+
+@Value.Immutable
+@JsonSerialize(as = ImmutableRestTaskHeartbeatRequest.class)
+@JsonDeserialize(as = ImmutableRestTaskHeartbeatRequest.class)
+public interface RestTaskHeartbeatRequest
+{
+    List<String> getLockIds();
+
+    String getAgentId();
+
+    int getLockSeconds();
+
+    static ImmutableRestTaskHeartbeatRequest.Builder builder()
+    {
+        return ImmutableRestTaskHeartbeatRequest.builder();
+    }
+}
@@ -0,0 +1,22 @@
+package io.digdag.client.api;
+
+import java.util.List;
+import org.immutables.value.Value;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+
+@Value.Immutable
+@JsonSerialize(as = ImmutableRestTaskHeartbeatResult.class)
+@JsonDeserialize(as = ImmutableRestTaskHeartbeatResult.class)
+public interface RestTaskHeartbeatResult
+{
+    // lock ids that are not held by the agent any more
+    List<String> getLostLockIds();
+
+    static RestTaskHeartbeatResult of(List<String> lostLockIds)
+    {
+        return ImmutableRestTaskHeartbeatResult.builder()
+            .lostLockIds(lostLockIds)
+            .build();
+    }
+}
@@ -0,0 +1,28 @@
+package io.digdag.client.api;
+
+import com.google.common.base.Optional;
+import org.immutables.value.Value;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+
+@Value.Immutable
+@JsonSerialize(as = ImmutableRestTaskLockRequest.class)
+@JsonDeserialize(as = ImmutableRestTaskLockRequest.class)
+public interface RestTaskLockRequest
+{
+    // absent to lock tasks of the shared queue
+    Optional<String> getQueueName();
+
+    int getLimit();
+
+    String getAgentId();
+
+    int getLockSeconds();
+
+    long getMaxSleepMillis();
+
+    static ImmutableRestTaskLockRequest.Builder builder()
+    {
+        return ImmutableRestTaskLockRequest.builder();
+    }
+}
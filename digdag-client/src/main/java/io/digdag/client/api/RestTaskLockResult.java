@@ -0,0 +1,23 @@
+package io.digdag.client.api;
+
+import java.util.List;
+import org.immutables.value.Value;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import io.digdag.client.config.Config;
+
+@Value.Immutable
+@JsonSerialize(as = ImmutableRestTaskLockResult.class)
+@JsonDeserialize(as = ImmutableRestTaskLockResult.class)
+public interface RestTaskLockResult
+{
+    // locked tasks including their lock ids
+    List<Config> getTasks();
+
+    static RestTaskLockResult of(List<Config> tasks)
+    {
+        return ImmutableRestTaskLockResult.builder()
+            .tasks(tasks)
+            .build();
+    }
+}
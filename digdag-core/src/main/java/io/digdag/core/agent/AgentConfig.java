@@ -1,9 +1,13 @@
 package io.digdag.core.agent;
 
+import java.util.List;
+import com.google.common.base.Splitter;
 import io.digdag.client.config.Config;
+import io.digdag.client.config.ConfigException;
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import org.immutables.value.Value;
+import static io.digdag.core.queue.QueueSettingStore.DEFAULT_QUEUE_NAME;
 
 @Value.Immutable
 @JsonSerialize(as = ImmutableAgentConfig.class)
@@ -11,33 +15,87 @@ import org.immutables.value.Value;
 public interface AgentConfig
 {
     static final int DEFAULT_HEARTBEAT_INTERVAL = 60;
+    static final int DEFAULT_LIVENESS_INTERVAL = 5;
     static final int DEFAULT_LOCK_RETENTION_TIME = 300;
     static final int DEFAULT_MAX_TASK_THREADS = 0;
+    static final int DEFAULT_POLLING_THREADS = 2;
+    static final int DEFAULT_MAX_LOCAL_POLLING_INTERVAL = 300;
 
     boolean getEnabled();
 
     int getHeartbeatInterval();
 
+    int getLivenessInterval();
+
+    // locks of this agent are released if it doesn't report liveness for
+    // this duration
+    int getLivenessTimeout();
+
     int getLockRetentionTime();
 
     int getMaxThreads();
 
+    // threads to re-run tasks polling an external state
+    int getPollingThreads();
+
+    // tasks polling in a longer interval go through the queue again
+    int getMaxLocalPollingInterval();
+
+    // names of queues to take tasks from. "default" is the shared queue
+    List<String> getQueues();
+
+    // site of named queues
+    int getSiteId();
+
     static ImmutableAgentConfig.Builder defaultBuilder()
     {
         return ImmutableAgentConfig.builder()
             .enabled(true)
             .heartbeatInterval(DEFAULT_HEARTBEAT_INTERVAL)
+            .livenessInterval(DEFAULT_LIVENESS_INTERVAL)
+            .livenessTimeout(defaultLivenessTimeout(DEFAULT_LIVENESS_INTERVAL, DEFAULT_HEARTBEAT_INTERVAL, DEFAULT_LOCK_RETENTION_TIME))
             .lockRetentionTime(DEFAULT_LOCK_RETENTION_TIME)
-            .maxThreads(DEFAULT_MAX_TASK_THREADS);
+            .maxThreads(DEFAULT_MAX_TASK_THREADS)
+            .pollingThreads(DEFAULT_POLLING_THREADS)
+            .maxLocalPollingInterval(DEFAULT_MAX_LOCAL_POLLING_INTERVAL)
+            .addQueues(DEFAULT_QUEUE_NAME)
+            .siteId(0);
+    }
+
+    // Long enough to tolerate missing many liveness reports and two lock
+    // heartbeats (e.g. a long GC pause or a slow database), but not longer
+    // than lock retention because locks expire anyway after that.
+    static int defaultLivenessTimeout(int livenessInterval, int heartbeatInterval, int lockRetentionTime)
+    {
+        return Math.min(Math.max(livenessInterval * 12, heartbeatInterval * 2), lockRetentionTime);
     }
 
     static AgentConfig convertFrom(Config config)
     {
+        int heartbeatInterval = config.get("agent.heartbeatInterval", int.class, DEFAULT_HEARTBEAT_INTERVAL);
+        int livenessInterval = config.get("agent.livenessInterval", int.class, DEFAULT_LIVENESS_INTERVAL);
+        int lockRetentionTime = config.get("agent.lockRetentionTime", int.class, DEFAULT_LOCK_RETENTION_TIME);
+        int livenessTimeout = config.get("agent.livenessTimeout", int.class,
+                defaultLivenessTimeout(livenessInterval, heartbeatInterval, lockRetentionTime));
+        if (livenessTimeout < livenessInterval * 3) {
+            throw new ConfigException("agent.livenessTimeout must be at least 3 times of agent.livenessInterval: " + livenessTimeout);
+        }
+        List<String> queues = Splitter.on(',').trimResults().omitEmptyStrings()
+            .splitToList(config.get("agent.queues", String.class, DEFAULT_QUEUE_NAME));
+        if (queues.isEmpty()) {
+            throw new ConfigException("agent.queues must include at least one queue name");
+        }
         return defaultBuilder()
             .enabled(config.get("agent.enabled", boolean.class, true))
-            .heartbeatInterval(config.get("agent.heartbeatInterval", int.class, DEFAULT_HEARTBEAT_INTERVAL))
-            .lockRetentionTime(config.get("agent.lockRetentionTime", int.class, DEFAULT_LOCK_RETENTION_TIME))
+            .heartbeatInterval(heartbeatInterval)
+            .livenessInterval(livenessInterval)
+            .livenessTimeout(livenessTimeout)
+            .lockRetentionTime(lockRetentionTime)
             .maxThreads(config.get("agent.max-task-threads", int.class, DEFAULT_MAX_TASK_THREADS))
+            .pollingThreads(config.get("agent.polling-threads", int.class, DEFAULT_POLLING_THREADS))
+            .maxLocalPollingInterval(config.get("agent.max-local-polling-interval", int.class, DEFAULT_MAX_LOCAL_POLLING_INTERVAL))
+            .queues(queues)
+            .siteId(config.get("agent.site-id", int.class, 0))
             .build();
     }
 }
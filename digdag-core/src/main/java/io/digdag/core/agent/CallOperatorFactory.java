@@ -16,6 +16,7 @@ import io.digdag.spi.TaskResult;
 import io.digdag.spi.TaskReport;
 import io.digdag.spi.Operator;
 import io.digdag.spi.OperatorFactory;
+import io.digdag.spi.WorkspaceRequirement;
 import io.digdag.spi.TaskExecutionException;
 import io.digdag.util.RetryControl;
 import io.digdag.core.repository.ResourceNotFoundException;
@@ -41,6 +42,12 @@ public class CallOperatorFactory
         return "call";
     }
 
+    @Override
+    public WorkspaceRequirement getWorkspaceRequirement()
+    {
+        return WorkspaceRequirement.NONE;
+    }
+
     @Override
     public Operator newTaskExecutor(Path workspacePath, TaskRequest request)
     {
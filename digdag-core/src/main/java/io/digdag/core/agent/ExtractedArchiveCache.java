@@ -0,0 +1,339 @@
+package io.digdag.core.agent;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import com.google.common.io.ByteStreams;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static io.digdag.core.TempFileManager.deleteFilesIfExistsRecursively;
+
+/**
+ * Keeps extracted archives on local disk so that workspaces of following
+ * tasks of the same revision are populated without downloading and
+ * extracting the archive again.
+ *
+ * Workspaces are populated in one of following modes:
+ *
+ * copy: files are copied. Safe but reads and writes all bytes.
+ *
+ * reflink: files are copied using "cp --reflink=auto" which shares data blocks
+ * with the cache and copies a block when a task writes it on file systems
+ * supporting reflinks (btrfs, XFS, etc.). Falls back to copy mode otherwise.
+ *
+ * hardlink: workspace files are hard links to the cached files. Cached files
+ * are made read-only but they share the inode with workspaces. A task that
+ * replaces a file (delete and create, or rename a new file) gets a private
+ * copy, but a task that runs chmod and writes a file in place, or any task if
+ * the agent runs as root, modifies the cache for following tasks. This mode is
+ * unsafe unless all scripts of the projects are trusted.
+ *
+ * Entries are evicted in LRU order when the total size exceeds the limit.
+ * Files of evicted entries are deleted without holding the lock so that
+ * tasks acquiring other entries don't wait for deletion of large trees.
+ */
+class ExtractedArchiveCache
+{
+    private static final Logger logger = LoggerFactory.getLogger(ExtractedArchiveCache.class);
+
+    public enum Mode
+    {
+        COPY,
+        REFLINK,
+        HARDLINK;
+    }
+
+    public interface Extractor
+    {
+        // extracts the archive into destDir. returns false if there is no archive.
+        boolean extract(Path destDir) throws IOException;
+    }
+
+    private static class Entry
+    {
+        private final Path path;
+        private final long bytes;
+        private int users = 0;
+        private boolean evicted = false;
+
+        Entry(Path path, long bytes)
+        {
+            this.path = path;
+            this.bytes = bytes;
+        }
+    }
+
+    private final Path dir;
+    private final long maxBytes;
+    private final Mode mode;
+
+    // access-ordered to evict least recently used entries first. guarded by this
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes = 0;
+
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter evictions;
+
+    ExtractedArchiveCache(Path dir, long maxBytes, Mode mode, MetricRegistry metrics)
+    {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.mode = mode;
+        this.hits = metrics.counter("digdag.workspace-cache.hits");
+        this.misses = metrics.counter("digdag.workspace-cache.misses");
+        this.evictions = metrics.counter("digdag.workspace-cache.evictions");
+        metrics.register("digdag.workspace-cache.bytes", (Gauge<Long>) () -> getTotalBytes());
+    }
+
+    public synchronized long getTotalBytes()
+    {
+        return totalBytes;
+    }
+
+    public void populate(String key, Path workspace, Extractor extractor)
+        throws IOException
+    {
+        Entry entry = acquire(key);
+        if (entry != null) {
+            hits.inc();
+        }
+        else {
+            misses.inc();
+            Path path = dir.resolve(UUID.randomUUID().toString());
+            try {
+                Files.createDirectories(path);
+                if (!extractor.extract(path)) {
+                    deleteFilesIfExistsRecursively(path);
+                    return;
+                }
+                if (mode == Mode.HARDLINK) {
+                    makeReadOnly(path);
+                }
+                List<Path> garbage = new ArrayList<>();
+                entry = insert(key, new Entry(path, sizeOf(path)), garbage);
+                deleteAll(garbage);
+            }
+            catch (IOException | RuntimeException ex) {
+                deleteFilesIfExistsRecursively(path);
+                throw ex;
+            }
+        }
+
+        try {
+            cloneTree(entry.path, workspace);
+        }
+        finally {
+            release(entry);
+        }
+    }
+
+    private synchronized Entry acquire(String key)
+    {
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            entry.users++;
+        }
+        return entry;
+    }
+
+    // paths to delete after releasing the monitor are added to garbage
+    private synchronized Entry insert(String key, Entry entry, List<Path> garbage)
+    {
+        Entry existing = entries.get(key);
+        if (existing != null) {
+            // another task extracted the same archive concurrently
+            existing.users++;
+            garbage.add(entry.path);
+            return existing;
+        }
+        entry.users++;
+        if (entry.bytes > maxBytes) {
+            // too large to cache. used only by this task
+            entry.evicted = true;
+            return entry;
+        }
+        entries.put(key, entry);
+        totalBytes += entry.bytes;
+        evictIfNecessary(garbage);
+        return entry;
+    }
+
+    private void release(Entry entry)
+    {
+        if (releaseEntry(entry)) {
+            deleteFilesIfExistsRecursively(entry.path);
+        }
+    }
+
+    // returns true if files of the entry should be deleted
+    private synchronized boolean releaseEntry(Entry entry)
+    {
+        entry.users--;
+        return entry.evicted && entry.users <= 0;
+    }
+
+    // called while holding the monitor
+    private void evictIfNecessary(List<Path> garbage)
+    {
+        Iterator<Map.Entry<String, Entry>> ite = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && ite.hasNext()) {
+            Entry entry = ite.next().getValue();
+            ite.remove();
+            totalBytes -= entry.bytes;
+            entry.evicted = true;
+            evictions.inc();
+            logger.debug("Evicted extracted archive {} ({} bytes)", entry.path, entry.bytes);
+            if (entry.users <= 0) {
+                garbage.add(entry.path);
+            }
+        }
+    }
+
+    private static void deleteAll(List<Path> paths)
+    {
+        for (Path path : paths) {
+            deleteFilesIfExistsRecursively(path);
+        }
+    }
+
+    private void cloneTree(Path source, Path dest)
+        throws IOException
+    {
+        if (mode == Mode.REFLINK) {
+            if (reflinkTree(source, dest)) {
+                return;
+            }
+            // remove partially copied files
+            deleteFilesIfExistsRecursively(dest);
+            Files.createDirectories(dest);
+        }
+
+        Files.walkFileTree(source, new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+                throws IOException
+            {
+                Files.createDirectories(dest.resolve(source.relativize(dir).toString()));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc)
+                throws IOException
+            {
+                if (exc != null) {
+                    throw exc;
+                }
+                // set permissions after creating children because a directory may be read-only
+                Path path = dest.resolve(source.relativize(dir).toString());
+                Files.setPosixFilePermissions(path, Files.getPosixFilePermissions(dir));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+                throws IOException
+            {
+                Path path = dest.resolve(source.relativize(file).toString());
+                if (attrs.isSymbolicLink()) {
+                    Files.createSymbolicLink(path, Files.readSymbolicLink(file));
+                }
+                else if (mode == Mode.HARDLINK) {
+                    Files.createLink(path, file);
+                }
+                else {
+                    Files.copy(file, path, StandardCopyOption.COPY_ATTRIBUTES, LinkOption.NOFOLLOW_LINKS);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static boolean reflinkTree(Path source, Path dest)
+        throws IOException
+    {
+        ProcessBuilder pb = new ProcessBuilder("cp", "-a", "--reflink=auto",
+                source.toString() + "/.", dest.toString());
+        pb.redirectErrorStream(true);
+        Process p;
+        try {
+            p = pb.start();
+        }
+        catch (IOException ex) {
+            logger.debug("Failed to run cp command. Falling back to copy", ex);
+            return false;
+        }
+        String output = new String(ByteStreams.toByteArray(p.getInputStream()), UTF_8);
+        try {
+            int ecode = p.waitFor();
+            if (ecode != 0) {
+                logger.debug("cp command failed with exit code {}. Falling back to copy: {}", ecode, output);
+                return false;
+            }
+            return true;
+        }
+        catch (InterruptedException ex) {
+            p.destroy();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while copying files", ex);
+        }
+    }
+
+    private static void makeReadOnly(Path dir)
+        throws IOException
+    {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+                throws IOException
+            {
+                if (attrs.isRegularFile()) {
+                    Set<PosixFilePermission> perms = Files.getPosixFilePermissions(file);
+                    perms.remove(PosixFilePermission.OWNER_WRITE);
+                    perms.remove(PosixFilePermission.GROUP_WRITE);
+                    perms.remove(PosixFilePermission.OTHERS_WRITE);
+                    Files.setPosixFilePermissions(file, perms);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static long sizeOf(Path dir)
+        throws IOException
+    {
+        long[] size = new long[] { 0 };
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+            {
+                if (attrs.isRegularFile()) {
+                    size[0] += attrs.size();
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return size[0];
+    }
+}
@@ -70,7 +70,7 @@ public class InProcessTaskCallbackApi
         this.agentId = agentId;
         this.attemptBuilder = attemptBuilder;
         this.exec = exec;
-        this.queueClient = qm.getInProcessTaskQueueClient();
+        this.queueClient = qm.getTaskQueueClient();
     }
 
     @Override
@@ -92,10 +92,16 @@ public class InProcessTaskCallbackApi
     }
 
     @Override
-    public void taskHeartbeat(int siteId,
+    public List<String> taskHeartbeat(int siteId,
             List<String> lockedIds, AgentId agentId, int lockSeconds)
     {
-        queueClient.taskHeartbeat(siteId, lockedIds, agentId.toString(), lockSeconds);
+        return queueClient.taskHeartbeat(siteId, lockedIds, agentId.toString(), lockSeconds);
+    }
+
+    @Override
+    public void agentHeartbeat(AgentId agentId, int livenessSeconds)
+    {
+        queueClient.agentHeartbeat(agentId.toString(), livenessSeconds);
     }
 
     @Override
@@ -129,6 +135,26 @@ public class InProcessTaskCallbackApi
         }
     }
 
+    @Override
+    public Optional<byte[]> getArchiveMd5(TaskRequest request)
+        throws IOException
+    {
+        if (!request.getRevision().isPresent()) {
+            return Optional.absent();
+        }
+
+        try {
+            return archiveManager.getArchiveMd5(
+                    pm.getProjectStore(request.getSiteId()),
+                    request.getProjectId(),
+                    request.getRevision().get());
+        }
+        catch (ResourceNotFoundException ex) {
+            // openArchive reports the error
+            return Optional.absent();
+        }
+    }
+
     @Override
     public void taskSucceeded(int siteId,
             long taskId, String lockId, AgentId agentId,
@@ -157,6 +183,21 @@ public class InProcessTaskCallbackApi
                 retryInterval, retryStateParams, error);
     }
 
+    @Override
+    public void updateStateParams(int siteId,
+            long taskId, String lockId, AgentId agentId,
+            Config stateParams)
+    {
+        exec.updateStateParams(siteId, taskId, lockId, agentId,
+                stateParams);
+    }
+
+    @Override
+    public Optional<Config> getStateParams(int siteId, long taskId)
+    {
+        return sm.getTaskStateParams(taskId);
+    }
+
     @Override
     public AttemptStateFlags startSession(
             int siteId,
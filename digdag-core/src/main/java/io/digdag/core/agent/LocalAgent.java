@@ -3,33 +3,49 @@ package io.digdag.core.agent;
 import java.util.List;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
 import com.google.common.base.*;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.digdag.spi.TaskRequest;
 import io.digdag.spi.TaskQueueClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import static io.digdag.core.queue.QueueSettingStore.DEFAULT_QUEUE_NAME;
 
 public class LocalAgent
         implements Runnable
 {
     private static final Logger logger = LoggerFactory.getLogger(LocalAgent.class);
 
+    // number of tasks to lock at once if agent.max-task-threads is not set
+    private static final int UNLIMITED_THREADS_LOCK_LIMIT = 3;
+
     private final AgentConfig config;
     private final AgentId agentId;
     private final TaskQueueClient queue;
     private final OperatorManager runner;
     private final ExecutorService executor;
+    // free task threads. absent if number of threads is unlimited
+    private final Optional<Semaphore> slots;
+    // tasks submitted to executor and not finished yet
+    private final AtomicInteger inFlight = new AtomicInteger(0);
+    // tasks running on a task thread
+    private final AtomicInteger running = new AtomicInteger(0);
     private volatile boolean stop = false;
 
     public LocalAgent(AgentConfig config, AgentId agentId,
-            TaskQueueClient queue, OperatorManager runner)
+            TaskQueueClient queue, OperatorManager runner, MetricRegistry metrics)
     {
         this.agentId = agentId;
         this.config = config;
         this.queue = queue;
         this.runner = runner;
         if (config.getMaxThreads() > 0) {
+            this.slots = Optional.of(new Semaphore(config.getMaxThreads()));
             this.executor = Executors.newFixedThreadPool(
                     config.getMaxThreads(),
                     new ThreadFactoryBuilder()
@@ -38,12 +54,15 @@ public class LocalAgent
                     .build());
         }
         else {
+            this.slots = Optional.absent();
             this.executor = Executors.newCachedThreadPool(
                     new ThreadFactoryBuilder()
                     .setDaemon(true)
                     .setNameFormat("task-thread-%d")
                     .build());
         }
+        metrics.register("digdag.agent.tasks.in-flight", (Gauge<Integer>) () -> inFlight.get());
+        metrics.register("digdag.agent.tasks.queued", (Gauge<Integer>) () -> inFlight.get() - running.get());
     }
 
     public void stop()
@@ -63,21 +82,129 @@ public class LocalAgent
         while (!stop) {
             try {
                 // TODO implement task heartbeat that calls queue.taskHeartbeat using a background thread
-                List<TaskRequest> reqs = queue.lockSharedTasks(3, agentId.toString(), config.getLockRetentionTime(), 1000);
-                for (TaskRequest req : reqs) {
-                    executor.submit(() -> {
-                        try {
-                            runner.run(req);
-                        }
-                        catch (Throwable t) {
-                            logger.error("Uncaught exception. Task heartbeat for at-least-once task execution is not implemented yet.", t);
-                        }
-                    });
+                // locks only as many tasks as free task threads so that tasks
+                // don't wait in this agent while other agents are idle.
+                // blocks until a thread becomes free.
+                int free = acquireSlots();
+                try {
+                    // polls of tasks this agent already locked come first
+                    List<TaskRequest> polls = runner.takeDuePolls(free);
+                    free -= polls.size();
+                    submitAll(polls);
+                    // sleeps at the last queue only if no tasks are taken from any queues
+                    List<String> queueNames = config.getQueues();
+                    boolean taken = !polls.isEmpty();
+                    for (int i = 0; i < queueNames.size() && free > 0; i++) {
+                        long maxSleepMillis = (!taken && i == queueNames.size() - 1) ? 1000 : -1;
+                        List<TaskRequest> reqs = lockTasks(queueNames.get(i), free, maxSleepMillis);
+                        free -= reqs.size();
+                        submitAll(reqs);
+                        taken |= !reqs.isEmpty();
+                    }
+                }
+                finally {
+                    releaseSlots(free);
                 }
             }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
             catch (Throwable t) {
                 logger.error("Uncaught exception", t);
+                // a remote server may be unavailable. don't retry in a busy loop
+                try {
+                    Thread.sleep(1000);
+                }
+                catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    // returns number of tasks this agent can take now
+    private int acquireSlots()
+        throws InterruptedException
+    {
+        if (slots.isPresent()) {
+            slots.get().acquire();
+            return 1 + slots.get().drainPermits();
+        }
+        else {
+            return UNLIMITED_THREADS_LOCK_LIMIT;
+        }
+    }
+
+    private void releaseSlots(int count)
+    {
+        if (slots.isPresent() && count > 0) {
+            slots.get().release(count);
+        }
+    }
+
+    // slots for the tasks must be acquired by the caller
+    private void submitAll(List<TaskRequest> reqs)
+    {
+        for (int i = 0; i < reqs.size(); i++) {
+            try {
+                submit(reqs.get(i));
+            }
+            catch (RejectedExecutionException ex) {
+                // shutting down. give back locked tasks that are not submitted
+                releaseSlots(reqs.size() - i);
+                returnTasks(reqs.subList(i, reqs.size()));
+                throw ex;
             }
         }
     }
+
+    private void submit(TaskRequest req)
+    {
+        inFlight.incrementAndGet();
+        try {
+            executor.submit(() -> {
+                running.incrementAndGet();
+                try {
+                    runner.run(req);
+                }
+                catch (Throwable t) {
+                    logger.error("Uncaught exception. Task heartbeat for at-least-once task execution is not implemented yet.", t);
+                }
+                finally {
+                    running.decrementAndGet();
+                    inFlight.decrementAndGet();
+                    releaseSlots(1);
+                }
+            });
+        }
+        catch (RuntimeException ex) {
+            // the slot is released by submitAll
+            inFlight.decrementAndGet();
+            throw ex;
+        }
+    }
+
+    private void returnTasks(List<TaskRequest> reqs)
+    {
+        for (TaskRequest req : reqs) {
+            try {
+                runner.returnTask(req);
+            }
+            catch (RuntimeException ex) {
+                logger.warn("Failed to give back task {}. It will be retried after its lock expires.", req.getTaskName(), ex);
+            }
+        }
+    }
+
+    private List<TaskRequest> lockTasks(String queueName, int limit, long maxSleepMillis)
+    {
+        if (queueName.equals(DEFAULT_QUEUE_NAME)) {
+            return queue.lockSharedTasks(limit, agentId.toString(), config.getLockRetentionTime(), maxSleepMillis);
+        }
+        else {
+            return queue.lockTasks(config.getSiteId(), queueName, limit, agentId.toString(), config.getLockRetentionTime(), maxSleepMillis);
+        }
+    }
 }
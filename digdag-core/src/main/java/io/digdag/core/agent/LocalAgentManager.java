@@ -5,6 +5,7 @@ import java.util.concurrent.ExecutorService;
 import com.google.inject.Inject;
 import com.google.common.base.*;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.codahale.metrics.MetricRegistry;
 import io.digdag.core.queue.TaskQueueManager;
 
 public class LocalAgentManager
@@ -13,6 +14,7 @@ public class LocalAgentManager
     private final AgentId agentId;
     private final TaskQueueManager queueManager;
     private final OperatorManager operatorManager;
+    private final MetricRegistry metrics;
     private final ExecutorService executor;
 
     @Inject
@@ -20,12 +22,14 @@ public class LocalAgentManager
             AgentConfig config,
             AgentId agentId,
             TaskQueueManager queueManager,
-            OperatorManager operatorManager)
+            OperatorManager operatorManager,
+            MetricRegistry metrics)
     {
         this.config = config;
         this.agentId = agentId;
         this.queueManager = queueManager;
         this.operatorManager = operatorManager;
+        this.metrics = metrics;
         if (config.getEnabled()) {
             this.executor = Executors.newCachedThreadPool(
                     new ThreadFactoryBuilder()
@@ -47,8 +51,9 @@ public class LocalAgentManager
                     new LocalAgent(
                         config,
                         agentId,
-                        queueManager.getInProcessTaskQueueClient(),
-                        operatorManager
+                        queueManager.getTaskQueueClient(),
+                        operatorManager,
+                        metrics
                     )
                 );
         }
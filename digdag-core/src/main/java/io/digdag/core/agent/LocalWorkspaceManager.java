@@ -13,18 +13,24 @@ import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.PosixFilePermission;
 import java.nio.file.attribute.PosixFilePermissions;
+import javax.annotation.PreDestroy;
 import com.google.inject.Inject;
 import com.google.common.base.Optional;
+import com.google.common.io.BaseEncoding;
 import com.google.common.io.ByteStreams;
+import com.codahale.metrics.MetricRegistry;
 import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import io.digdag.client.config.Config;
+import io.digdag.client.config.ConfigException;
 import io.digdag.spi.TaskRequest;
 import io.digdag.spi.StorageObject;
 import io.digdag.core.TempFileManager;
 import io.digdag.core.TempFileManager.TempDir;
+import static java.util.Locale.ENGLISH;
 
 public class LocalWorkspaceManager
     implements WorkspaceManager
@@ -32,11 +38,43 @@ public class LocalWorkspaceManager
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
     private final TempFileManager tempFiles;
+    private final Optional<TempDir> cacheDir;
+    private final Optional<ExtractedArchiveCache> cache;
 
     @Inject
-    public LocalWorkspaceManager(TempFileManager tempFiles)
+    public LocalWorkspaceManager(TempFileManager tempFiles, Config systemConfig, MetricRegistry metrics)
     {
         this.tempFiles = tempFiles;
+        long maxBytes = systemConfig.get("agent.workspace-cache.max-bytes", long.class, 1024L * 1024 * 1024);
+        if (maxBytes > 0) {
+            // this directory lives until shutdown
+            TempDir cacheDir = tempFiles.createTempDir("workspace-cache", "revisions");
+            this.cacheDir = Optional.of(cacheDir);
+            this.cache = Optional.of(new ExtractedArchiveCache(cacheDir.get(), maxBytes, getCacheMode(systemConfig), metrics));
+        }
+        else {
+            this.cacheDir = Optional.absent();
+            this.cache = Optional.absent();
+        }
+    }
+
+    @PreDestroy
+    public void shutdown()
+    {
+        if (cacheDir.isPresent()) {
+            cacheDir.get().close();
+        }
+    }
+
+    private static ExtractedArchiveCache.Mode getCacheMode(Config systemConfig)
+    {
+        String mode = systemConfig.get("agent.workspace-cache.mode", String.class, "copy");
+        try {
+            return ExtractedArchiveCache.Mode.valueOf(mode.toUpperCase(ENGLISH));
+        }
+        catch (IllegalArgumentException ex) {
+            throw new ConfigException("agent.workspace-cache.mode must be \"copy\", \"reflink\" or \"hardlink\": " + mode);
+        }
     }
 
     @Override
@@ -44,16 +82,33 @@ public class LocalWorkspaceManager
             throws IOException
     {
         try (TempDir workspacePath = createNewWorkspace(request)) {
-            Optional<StorageObject> in = archiveProvider.open();
-            if (in.isPresent()) {
-                try (TarArchiveInputStream archive = new TarArchiveInputStream(new GzipCompressorInputStream(new BufferedInputStream(in.get().getContentInputStream())))) {
-                    extractArchive(workspacePath.get(), archive);
-                }
+            Optional<byte[]> md5 = cache.isPresent() ? archiveProvider.getArchiveMd5() : Optional.absent();
+            if (md5.isPresent()) {
+                String key = String.format(ENGLISH, "%d/%s/%s",
+                        request.getProjectId(), request.getRevision().or(""),
+                        BaseEncoding.base16().lowerCase().encode(md5.get()));
+                cache.get().populate(key, workspacePath.get(), (destDir) -> extractArchive(destDir, archiveProvider));
+            }
+            else {
+                extractArchive(workspacePath.get(), archiveProvider);
             }
             return func.run(workspacePath.get());
         }
     }
 
+    private boolean extractArchive(Path destDir, ArchiveProvider archiveProvider)
+        throws IOException
+    {
+        Optional<StorageObject> in = archiveProvider.open();
+        if (!in.isPresent()) {
+            return false;
+        }
+        try (TarArchiveInputStream archive = new TarArchiveInputStream(new GzipCompressorInputStream(new BufferedInputStream(in.get().getContentInputStream())))) {
+            extractArchive(destDir, archive);
+        }
+        return true;
+    }
+
     private void extractArchive(Path destDir, TarArchiveInputStream archive)
         throws IOException
     {
@@ -4,8 +4,12 @@ import java.util.List;
 import java.util.Set;
 import java.util.HashSet;
 import java.util.Map;
+import java.util.ArrayList;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
@@ -15,11 +19,13 @@ import java.nio.file.Path;
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import com.google.inject.Inject;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.*;
 import com.google.common.collect.*;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import com.fasterxml.jackson.databind.JsonNode;
 import io.digdag.client.config.Config;
 import io.digdag.client.config.ConfigException;
 import io.digdag.client.config.ConfigFactory;
@@ -47,7 +53,17 @@ public class OperatorManager
     private final OperatorRegistry registry;
 
     private final ScheduledExecutorService heartbeatScheduler;
+    // separated from heartbeatScheduler so that slow lock heartbeats don't
+    // delay liveness reports
+    private final ScheduledExecutorService livenessScheduler;
+    // waits for the next poll of tasks polling an external state. See runWithHeartbeat
+    private final ScheduledExecutorService pollingScheduler;
+    // polls whose time has come. LocalAgent runs them using its task threads
+    // so that polls are limited by agent.max-task-threads
+    private final BlockingQueue<TaskRequest> duePolls = new LinkedBlockingQueue<>();
     private final ConcurrentHashMap<Long, TaskRequest> runningTaskMap = new ConcurrentHashMap<>();  // {taskId => TaskRequest}
+    private final ConcurrentHashMap<Long, Thread> runningThreadMap = new ConcurrentHashMap<>();  // {taskId => Thread}
+    private final Set<Long> lockLostTaskIds = ConcurrentHashMap.newKeySet();
 
     @Inject
     public OperatorManager(AgentConfig agentConfig, AgentId agentId,
@@ -71,6 +87,19 @@ public class OperatorManager
                 .setNameFormat("heartbeat-%d")
                 .build()
                 );
+        this.livenessScheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("agent-liveness-%d")
+                .build()
+                );
+        this.pollingScheduler = Executors.newScheduledThreadPool(
+                agentConfig.getPollingThreads(),
+                new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("task-polling-%d")
+                .build()
+                );
     }
 
     @PostConstruct
@@ -79,18 +108,49 @@ public class OperatorManager
         heartbeatScheduler.scheduleAtFixedRate(() -> heartbeat(),
                 agentConfig.getHeartbeatInterval(), agentConfig.getHeartbeatInterval(),
                 TimeUnit.SECONDS);
+        livenessScheduler.scheduleAtFixedRate(() -> livenessHeartbeat(),
+                0, agentConfig.getLivenessInterval(),
+                TimeUnit.SECONDS);
     }
 
     @PreDestroy
     public void shutdown()
     {
         heartbeatScheduler.shutdown();
+        livenessScheduler.shutdown();
+        pollingScheduler.shutdown();
         // TODO wait for shutdown completion?
     }
 
-    public void run(TaskRequest request)
+    private static class NextPolling
     {
-        long taskId = request.getTaskId();
+        private final TaskRequest request;
+        private final int interval;
+
+        NextPolling(TaskRequest request, int interval)
+        {
+            this.request = request;
+            this.interval = interval;
+        }
+    }
+
+    public void run(TaskRequest lockedRequest)
+    {
+        long taskId = lockedRequest.getTaskId();
+        TaskRequest request;
+        if (runningTaskMap.containsKey(taskId)) {
+            // polling again in this agent
+            if (lockLostTaskIds.remove(taskId)) {
+                logger.warn("Skipped polling task {} because its lock was lost", lockedRequest.getTaskName());
+                runningTaskMap.remove(taskId);
+                return;
+            }
+            request = lockedRequest;
+        }
+        else {
+            request = withLatestStateParams(lockedRequest);
+        }
+        Optional<NextPolling> nextPolling = Optional.absent();
 
         // set task name to thread name so that logger shows it
         try (SetThreadName threadName = new SetThreadName(request.getTaskName())) {
@@ -98,11 +158,19 @@ public class OperatorManager
                 TaskContextLogging.enter(LogLevel.DEBUG, taskLogger);
                 try {
                     runningTaskMap.put(taskId, request);
+                    runningThreadMap.put(taskId, Thread.currentThread());
                     try {
-                        runWithHeartbeat(request);
+                        nextPolling = runWithHeartbeat(request);
                     }
                     finally {
-                        runningTaskMap.remove(taskId);
+                        // abortLockLostTasks doesn't interrupt this thread after this
+                        runningThreadMap.remove(taskId);
+                        // clear interruption by lock lost so that the thread can be reused
+                        Thread.interrupted();
+                        if (!nextPolling.isPresent()) {
+                            runningTaskMap.remove(taskId);
+                            lockLostTaskIds.remove(taskId);
+                        }
                     }
                 }
                 finally {
@@ -110,12 +178,96 @@ public class OperatorManager
                 }
             }
         }
+
+        if (nextPolling.isPresent()) {
+            schedulePolling(nextPolling.get());
+        }
+    }
+
+    // An agent that was polling the task may have died after storing state
+    // params using updateStateParams. The queue delivers the request built
+    // when the task was enqueued, so continue from the stored state.
+    private TaskRequest withLatestStateParams(TaskRequest request)
+    {
+        Optional<Config> stateParams;
+        try {
+            stateParams = callback.getStateParams(request.getSiteId(), request.getTaskId());
+        }
+        catch (RuntimeException ex) {
+            logger.warn("Failed to get state params of task {}. Using state params in the task request.", request.getTaskName(), ex);
+            return request;
+        }
+        if (!stateParams.isPresent() || stateParams.get().equals(request.getLastStateParams())) {
+            return request;
+        }
+        return TaskRequest.builder()
+            .from(request)
+            .lastStateParams(stateParams.get())
+            .build();
+    }
+
+    // Returns tasks whose next poll is due. Caller must run them.
+    public List<TaskRequest> takeDuePolls(int limit)
+    {
+        List<TaskRequest> requests = new ArrayList<>();
+        duePolls.drainTo(requests, limit);
+        return requests;
+    }
+
+    // Gives back a locked task without running it. The task is retried
+    // immediately by this or another agent.
+    public void returnTask(TaskRequest request)
+    {
+        callback.retryTask(request.getSiteId(),
+                request.getTaskId(), request.getLockId(), agentId,
+                0, request.getLastStateParams(),
+                Optional.absent());
+    }
+
+    // The task stays in runningTaskMap while waiting so that heartbeat keeps
+    // its lock. It doesn't use a task thread until the next poll.
+    private void schedulePolling(NextPolling next)
+    {
+        TaskRequest request = next.request;
+        try {
+            // stored so that another agent continues polling from this state
+            // if this agent dies before the next poll
+            callback.updateStateParams(request.getSiteId(),
+                    request.getTaskId(), request.getLockId(), agentId,
+                    request.getLastStateParams());
+        }
+        catch (RuntimeException ex) {
+            // stop heartbeat. the task is retried after its lock expires
+            runningTaskMap.remove(request.getTaskId());
+            lockLostTaskIds.remove(request.getTaskId());
+            logger.error("Failed to store state params of polling task {}", request.getTaskName(), ex);
+            return;
+        }
+        try {
+            pollingScheduler.schedule(() -> duePolls.add(request),
+                    next.interval, TimeUnit.SECONDS);
+        }
+        catch (RejectedExecutionException ex) {
+            // shutting down. retry the task on another agent
+            runningTaskMap.remove(request.getTaskId());
+            callback.retryTask(request.getSiteId(),
+                    request.getTaskId(), request.getLockId(), agentId,
+                    next.interval, request.getLastStateParams(),
+                    Optional.absent());
+        }
     }
 
-    private void runWithHeartbeat(TaskRequest request)
+    // Returns next polling if the operator asked to poll again using
+    // TaskExecutionException.ofNextPolling. Short polling intervals are
+    // handled in this agent instead of RETRY_WAITING state so that the task
+    // doesn't go through the queue and workspace extraction of another agent.
+    private Optional<NextPolling> runWithHeartbeat(TaskRequest request)
     {
         try {
-            workspaceManager.withExtractedArchive(request, () -> callback.openArchive(request), (workspacePath) -> {
+            WorkspaceManager.ArchiveProvider archiveProvider = needsArchive(request)
+                ? archiveProvider(request)
+                : () -> Optional.absent();
+            return workspaceManager.withExtractedArchive(request, archiveProvider, (workspacePath) -> {
                 try {
                     runWithWorkspace(workspacePath, request);
                 }
@@ -123,10 +275,24 @@ public class OperatorManager
                     if (ex.getRetryInterval().isPresent()) {
                         if (!ex.getError(cf).isPresent()) {
                             logger.debug("Retrying task {}", ex.toString());
+                            if (ex.getRetryInterval().get() <= agentConfig.getMaxLocalPollingInterval()) {
+                                if (isLockLost(request)) {
+                                    return Optional.<NextPolling>absent();
+                                }
+                                return Optional.of(new NextPolling(
+                                            TaskRequest.builder()
+                                            .from(request)
+                                            .lastStateParams(ex.getStateParams(cf).get())
+                                            .build(),
+                                            ex.getRetryInterval().get()));
+                            }
                         }
                         else {
                             logger.error("Task failed, retrying", ex);
                         }
+                        if (isLockLost(request)) {
+                            return Optional.<NextPolling>absent();
+                        }
                         callback.retryTask(request.getSiteId(),
                                 request.getTaskId(), request.getLockId(), agentId,
                                 ex.getRetryInterval().get(), ex.getStateParams(cf).get(),
@@ -136,6 +302,9 @@ public class OperatorManager
                         logger.error("Task {} failed.\n{}", request.getTaskName(), formatExceptionMessage(ex));
                         logger.debug("", ex);
                         // TODO use debug to log stacktrace here
+                        if (isLockLost(request)) {
+                            return Optional.<NextPolling>absent();
+                        }
                         callback.taskFailed(request.getSiteId(),
                                 request.getTaskId(), request.getLockId(), agentId,
                                 ex.getError(cf).get());  // TODO is error set?
@@ -148,20 +317,90 @@ public class OperatorManager
                     else {
                         logger.error("Task failed with unexpected error: {}", ex.getMessage(), ex);
                     }
+                    if (isLockLost(request)) {
+                        return Optional.<NextPolling>absent();
+                    }
                     callback.taskFailed(request.getSiteId(),
                             request.getTaskId(), request.getLockId(), agentId,
                             buildExceptionErrorConfig(ex).toConfig(cf));  // no retry
                 }
-                return true;
+                return Optional.<NextPolling>absent();
             });
         }
         catch (RuntimeException | IOException ex) {
             // exception happend in workspaceManager
             logger.error("Task failed with unexpected error: {}", ex.getMessage(), ex);
+            if (isLockLost(request)) {
+                return Optional.absent();
+            }
             callback.taskFailed(request.getSiteId(),
                     request.getTaskId(), request.getLockId(), agentId,
                     buildExceptionErrorConfig(ex).toConfig(cf));
+            return Optional.absent();
+        }
+    }
+
+    // Decides whether the operator reads files of the project before evaluating
+    // config so that tasks of control-flow operators don't download archives.
+    // Operator type is taken from the raw config in the same way as runWithWorkspace.
+    @VisibleForTesting
+    boolean needsArchive(TaskRequest request)
+    {
+        Config localConfig = request.getLocalConfig();
+        String type;
+        JsonNode command;
+        if (localConfig.has("_type")) {
+            type = localConfig.get("_type", String.class);
+            command = localConfig.get("_command", JsonNode.class, null);
+        }
+        else {
+            java.util.Optional<String> operatorKey = localConfig.getKeys()
+                .stream()
+                .filter(key -> key.endsWith(">"))
+                .findFirst();
+            if (!operatorKey.isPresent()) {
+                return false;
+            }
+            type = operatorKey.get().substring(0, operatorKey.get().length() - 1);
+            command = localConfig.get(operatorKey.get(), JsonNode.class, null);
+        }
+
+        if (type.contains("${")) {
+            return true;
+        }
+        OperatorFactory factory = registry.get(request, type);
+        if (factory == null) {
+            // callExecutor reports the error
+            return true;
         }
+        switch (factory.getWorkspaceRequirement()) {
+        case NONE:
+            return false;
+        case LAZY:
+            return command != null && command.isTextual();
+        default:
+            return true;
+        }
+    }
+
+    private WorkspaceManager.ArchiveProvider archiveProvider(TaskRequest request)
+    {
+        return new WorkspaceManager.ArchiveProvider()
+        {
+            @Override
+            public Optional<StorageObject> open()
+                throws IOException
+            {
+                return callback.openArchive(request);
+            }
+
+            @Override
+            public Optional<byte[]> getArchiveMd5()
+                throws IOException
+            {
+                return callback.getArchiveMd5(request);
+            }
+        };
     }
 
     private void runWithWorkspace(Path workspacePath, TaskRequest request)
@@ -187,6 +426,10 @@ public class OperatorManager
         logger.debug("evaluated config: {}", config);
 
         Set<String> shouldBeUsedKeys = new HashSet<>(request.getLocalConfig().getKeys());
+        // used by task queues
+        shouldBeUsedKeys.remove("_queue");
+        shouldBeUsedKeys.remove("_resource");
+        shouldBeUsedKeys.remove("_priority");
 
         String type;
         if (config.has("_type")) {
@@ -234,6 +477,9 @@ public class OperatorManager
             }
         }
 
+        if (isLockLost(request)) {
+            return;
+        }
         callback.taskSucceeded(request.getSiteId(),
                 request.getTaskId(), request.getLockId(), agentId,
                 result);
@@ -272,7 +518,10 @@ public class OperatorManager
             for (Map.Entry<Integer, List<String>> pair : sites.entrySet()) {
                 int siteId = pair.getKey();
                 List<String> lockIds = pair.getValue();
-                callback.taskHeartbeat(siteId, lockIds, agentId, agentConfig.getLockRetentionTime());
+                List<String> lostLockIds = callback.taskHeartbeat(siteId, lockIds, agentId, agentConfig.getLockRetentionTime());
+                if (!lostLockIds.isEmpty()) {
+                    abortLockLostTasks(siteId, ImmutableSet.copyOf(lostLockIds));
+                }
             }
         }
         catch (Throwable t) {
@@ -280,6 +529,47 @@ public class OperatorManager
         }
     }
 
+    private void livenessHeartbeat()
+    {
+        try {
+            callback.agentHeartbeat(agentId, agentConfig.getLivenessTimeout());
+        }
+        catch (Throwable t) {
+            logger.error("An uncaught exception is ignored. Heartbeat thread will be retried.", t);
+        }
+    }
+
+    // Lock of a task is lost if the agent couldn't send heartbeat for a while.
+    // The task may be already running on another agent. This agent interrupts it
+    // and doesn't report its result.
+    private void abortLockLostTasks(int siteId, Set<String> lostLockIds)
+    {
+        for (TaskRequest request : runningTaskMap.values()) {
+            if (request.getSiteId() == siteId && lostLockIds.contains(request.getLockId())) {
+                long taskId = request.getTaskId();
+                if (lockLostTaskIds.add(taskId)) {
+                    logger.warn("Lock of task {} (id={}) is expired or taken by another agent. Aborting the task.",
+                            request.getTaskName(), taskId);
+                    // interrupt while holding the entry so that it doesn't
+                    // interrupt another task after run() removed the entry
+                    runningThreadMap.computeIfPresent(taskId, (key, thread) -> {
+                        thread.interrupt();
+                        return thread;
+                    });
+                }
+            }
+        }
+    }
+
+    private boolean isLockLost(TaskRequest request)
+    {
+        if (lockLostTaskIds.contains(request.getTaskId())) {
+            logger.warn("Skipped reporting result of task {} because its lock was lost", request.getTaskName());
+            return true;
+        }
+        return false;
+    }
+
     public static String formatExceptionMessage(Throwable ex)
     {
         StringBuilder sb = new StringBuilder();
@@ -10,6 +10,7 @@ import io.digdag.core.repository.ResourceNotFoundException;
 import io.digdag.core.session.AttemptStateFlags;
 import io.digdag.spi.Operator;
 import io.digdag.spi.OperatorFactory;
+import io.digdag.spi.WorkspaceRequirement;
 import io.digdag.spi.TaskExecutionException;
 import io.digdag.spi.TaskRequest;
 import io.digdag.spi.TaskResult;
@@ -38,6 +39,12 @@ public class RequireOperatorFactory
         return "require";
     }
 
+    @Override
+    public WorkspaceRequirement getWorkspaceRequirement()
+    {
+        return WorkspaceRequirement.NONE;
+    }
+
     @Override
     public Operator newTaskExecutor(Path workspacePath, TaskRequest request)
     {
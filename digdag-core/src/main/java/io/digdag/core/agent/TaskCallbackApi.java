@@ -16,12 +16,18 @@ public interface TaskCallbackApi
 {
     TaskLogger newTaskLogger(TaskRequest request);
 
-    void taskHeartbeat(int siteId,
+    // returns lock ids that are not held by the agent any more
+    List<String> taskHeartbeat(int siteId,
             List<String> lockedIds, AgentId agentId, int lockSeconds);
 
+    void agentHeartbeat(AgentId agentId, int livenessSeconds);
+
     Optional<StorageObject> openArchive(TaskRequest request)
         throws IOException;
 
+    Optional<byte[]> getArchiveMd5(TaskRequest request)
+        throws IOException;
+
     void taskSucceeded(int siteId,
             long taskId, String lockId, AgentId agentId,
             TaskResult result);
@@ -35,6 +41,14 @@ public interface TaskCallbackApi
             int retryInterval, Config retryStateParams,
             Optional<Config> error);
 
+    // stores state params of a running task that polls again in this agent
+    void updateStateParams(int siteId,
+            long taskId, String lockId, AgentId agentId,
+            Config stateParams);
+
+    // returns the latest state params of a task
+    Optional<Config> getStateParams(int siteId, long taskId);
+
     AttemptStateFlags startSession(
             int siteId,
             int projectId,
@@ -11,6 +11,12 @@ public interface WorkspaceManager
     public interface ArchiveProvider
     {
         public Optional<StorageObject> open() throws IOException;
+
+        // MD5 of the archive used to reuse extracted files. absent if unknown.
+        public default Optional<byte[]> getArchiveMd5() throws IOException
+        {
+            return Optional.absent();
+        }
     }
 
     public interface WithWorkspaceAction<T>
@@ -626,11 +626,177 @@ public class DatabaseMigrator
         }
     };
 
+    private final Migration MigrateAddTasksOnUpdatedAtIndex = new Migration()
+    {
+        @Override
+        public String getVersion()
+        {
+            return "20160708123456";
+        }
+
+        @Override
+        public void migrate(Handle handle)
+        {
+            // for incremental status propagation of WorkflowExecutor
+            handle.update("create index tasks_on_updated_at_and_id on tasks (updated_at, id)");
+        }
+    };
+
+    private final Migration MigrateCreateWakeupChannels = new Migration()
+    {
+        @Override
+        public String getVersion()
+        {
+            return "20160712123456";
+        }
+
+        @Override
+        public void migrate(Handle handle)
+        {
+            // for DatabaseWakeupBusFactory
+            handle.update(
+                    new CreateTableBuilder("wakeup_channels")
+                    .addString("name", "primary key")
+                    .addLong("version", "not null")
+                    .build());
+        }
+    };
+
+    private final Migration MigrateCreateAttemptPartitions = new Migration()
+    {
+        @Override
+        public String getVersion()
+        {
+            return "20160713123456";
+        }
+
+        @Override
+        public void migrate(Handle handle)
+        {
+            // for WorkflowExecutor to distribute attempts to servers
+            handle.update(
+                    new CreateTableBuilder("executor_nodes")
+                    .addString("id", "primary key")
+                    .addLong("expire_time", "not null")
+                    .build());
+            handle.update(
+                    new CreateTableBuilder("attempt_partitions")
+                    .addInt("id", "primary key")
+                    .addString("owner", "")
+                    .addLong("expire_time", "not null")
+                    .build());
+        }
+    };
+
+    private final Migration MigrateCreateQueueRunningCounts = new Migration()
+    {
+        @Override
+        public String getVersion()
+        {
+            return "20160714123456";
+        }
+
+        @Override
+        public void migrate(Handle handle)
+        {
+            // number of held task locks for DatabaseTaskQueueStore.
+            // resource_type_id is 0 for the total of a queue.
+            handle.update(
+                    new CreateTableBuilder("queue_running_counts")
+                    .addInt("queue_id", "not null references queues (id)")
+                    .addInt("resource_type_id", "not null")
+                    .addInt("running", "not null")
+                    .build());
+            handle.update("create unique index queue_running_counts_on_queue_id_and_resource_type_id on queue_running_counts (queue_id, resource_type_id)");
+
+            handle.update("insert into queue_running_counts (queue_id, resource_type_id, running)" +
+                    " select id, 0, 0 from queues");
+            handle.update("insert into queue_running_counts (queue_id, resource_type_id, running)" +
+                    " select queue_id, id, 0 from resource_types");
+            for (String tableName : new String[] { "queued_shared_task_locks", "queued_task_locks" }) {
+                handle.update("update queue_running_counts" +
+                        " set running = running + (" +
+                            "select count(*) from " + tableName + " ks" +
+                            " where ks.queue_id = queue_running_counts.queue_id" +
+                            " and ks.hold_expire_time is not null" +
+                            " and (queue_running_counts.resource_type_id = 0" +
+                                " or ks.resource_type_id = queue_running_counts.resource_type_id)" +
+                        ")");
+            }
+        }
+    };
+
+    private final Migration MigrateAddProjectIdToQueuedTasks = new Migration()
+    {
+        @Override
+        public String getVersion()
+        {
+            return "20160715123456";
+        }
+
+        @Override
+        public void migrate(Handle handle)
+        {
+            // for DatabaseTaskQueueStore to share agents among projects fairly
+            handle.update("alter table queued_tasks" +
+                    " add column project_id int not null default 0");
+            handle.update("alter table queued_shared_task_locks" +
+                    " add column project_id int not null default 0");
+            handle.update("alter table queued_task_locks" +
+                    " add column project_id int not null default 0");
+            if (isPostgres()) {
+                handle.update("create index queued_shared_task_locks_project_ordering on queued_shared_task_locks (queue_id, project_id, priority desc, id) where hold_expire_time is null");
+                handle.update("create index queued_task_locks_project_ordering on queued_task_locks (queue_id, project_id, priority desc, id) where hold_expire_time is null");
+            }
+            else {
+                handle.update("create index queued_shared_task_locks_project_ordering on queued_shared_task_locks (queue_id, project_id, hold_expire_time, priority desc, id)");
+                handle.update("create index queued_task_locks_project_ordering on queued_task_locks (queue_id, project_id, hold_expire_time, priority desc, id)");
+            }
+        }
+    };
+
+    private final Migration MigrateCreateAgents = new Migration()
+    {
+        @Override
+        public String getVersion()
+        {
+            return "20160716123456";
+        }
+
+        @Override
+        public void migrate(Handle handle)
+        {
+            // liveness of agents. locks held by an agent whose expire_time
+            // passed are released without waiting for hold_expire_time.
+            handle.update(
+                    new CreateTableBuilder("agents")
+                    .addString("agent_id", "primary key")
+                    .addLong("expire_time", "not null")
+                    .addTimestamp("created_at", "not null")
+                    .build());
+            handle.update("create index agents_on_expire_time on agents (expire_time)");
+            if (isPostgres()) {
+                handle.update("create index queued_shared_task_locks_on_hold_agent_id on queued_shared_task_locks (hold_agent_id) where hold_agent_id is not null");
+                handle.update("create index queued_task_locks_on_hold_agent_id on queued_task_locks (hold_agent_id) where hold_agent_id is not null");
+            }
+            else {
+                handle.update("create index queued_shared_task_locks_on_hold_agent_id on queued_shared_task_locks (hold_agent_id)");
+                handle.update("create index queued_task_locks_on_hold_agent_id on queued_task_locks (hold_agent_id)");
+            }
+        }
+    };
+
     private final Migration[] migrations = {
         MigrateCreateTables,
         MigrateSessionsOnProjectIdIndexToDesc,
         MigrateCreateResumingTasks,
         MigrateMakeProjectsDeletable,
         MigrateAddUserInfoColumnToRevisions,
+        MigrateAddTasksOnUpdatedAtIndex,
+        MigrateCreateWakeupChannels,
+        MigrateCreateAttemptPartitions,
+        MigrateCreateQueueRunningCounts,
+        MigrateAddProjectIdToQueuedTasks,
+        MigrateCreateAgents,
     };
 }
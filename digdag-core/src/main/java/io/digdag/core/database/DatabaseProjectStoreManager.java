@@ -1,7 +1,9 @@
 package io.digdag.core.database;
 
 import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
 import com.google.inject.Inject;
 import io.digdag.client.api.IdName;
 import io.digdag.client.config.Config;
@@ -104,6 +106,48 @@ public class DatabaseProjectStoreManager
                 "revision of workflow definition id=%s", wfId);
     }
 
+    @Override
+    public List<StoredProject> getProjectsByIdInternal(List<Integer> projIds)
+    {
+        if (projIds.isEmpty()) {
+            return ImmutableList.of();
+        }
+        return autoCommit((handle, dao) ->
+                handle.createQuery(
+                    "select * from projects" +
+                    " where id in (" +
+                        projIds.stream()
+                        .map(id -> Integer.toString(id)).collect(Collectors.joining(", ")) + ")"
+                )
+                .mapTo(StoredProject.class)
+                .list()
+            );
+    }
+
+    @Override
+    public Map<Long, StoredRevision> getRevisionsOfWorkflowDefinitions(List<Long> wfIds)
+    {
+        if (wfIds.isEmpty()) {
+            return ImmutableMap.of();
+        }
+        StoredRevisionMapper revisionMapper = new StoredRevisionMapper(cfm);
+        List<Map.Entry<Long, StoredRevision>> list = autoCommit((handle, dao) ->
+                handle.createQuery(
+                    "select wd.id as workflow_definition_id, rev.*" +
+                    " from workflow_definitions wd" +
+                    " join revisions rev on rev.id = wd.revision_id" +
+                    " where wd.id in (" +
+                        wfIds.stream()
+                        .map(id -> Long.toString(id)).collect(Collectors.joining(", ")) + ")"
+                )
+                .map((index, r, ctx) -> Maps.immutableEntry(
+                        r.getLong("workflow_definition_id"),
+                        revisionMapper.map(index, r, ctx)))
+                .list()
+            );
+        return ImmutableMap.copyOf(list);
+    }
+
     private class DatabaseProjectStore
             implements ProjectStore
     {
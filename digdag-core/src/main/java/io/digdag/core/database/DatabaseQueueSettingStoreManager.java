@@ -73,6 +73,7 @@ public class DatabaseQueueSettingStoreManager
                                 dao.insertDefaultQueueSetting(siteId, name),
                                 "queue name=%s", name);
                         dao.insertQueue(qId, NO_MAX_CONCURRENCY);
+                        dao.insertQueueRunningCount(qId);
                     }
                     catch (ResourceConflictException ex) {
                         ts.retry(ex);
@@ -91,6 +92,50 @@ public class DatabaseQueueSettingStoreManager
         });
     }
 
+    @Override
+    public int getResourceTypeIdByNameOrInsert(int queueId, String name, int maxConcurrency)
+    {
+        // max_concurrency of an existing resource type is updated to the given value
+        return transaction((handle, dao, ts) -> {
+            Integer likelyStoredId = dao.getResourceTypeIdByName(queueId, name);
+            if (likelyStoredId != null) {
+                dao.updateResourceTypeMaxConcurrency(likelyStoredId, maxConcurrency);
+                return likelyStoredId;
+            }
+
+            if (!ts.isRetried()) {
+                int rtId;
+                // first try
+                try {
+                    rtId = catchConflict(() ->
+                            dao.insertResourceType(queueId, name, maxConcurrency),
+                            "resource type name=%s in queue id=%d", name, queueId);
+                    dao.insertResourceTypeRunningCount(queueId, rtId);
+                }
+                catch (ResourceConflictException ex) {
+                    ts.retry(ex);
+                    return null;
+                }
+                return rtId;
+            }
+            else {
+                Integer rtId = dao.getResourceTypeIdByName(queueId, name);
+                if (rtId == null) {
+                    throw new IllegalStateException("Database state error", ts.getLastException());
+                }
+                dao.updateResourceTypeMaxConcurrency(rtId, maxConcurrency);
+                return rtId;
+            }
+        });
+    }
+
+    @Override
+    public int getQueueMaxConcurrency(int siteId, String name)
+    {
+        Integer maxConcurrency = autoCommit((handle, dao) -> dao.getQueueMaxConcurrency(siteId, name));
+        return maxConcurrency != null ? maxConcurrency : NO_MAX_CONCURRENCY;
+    }
+
     private class DatabaseQueueSettingStore
             implements QueueSettingStore
     {
@@ -168,6 +213,38 @@ public class DatabaseQueueSettingStoreManager
                 " (id, max_concurrency)" +
                 " values (:id, :maxConcurrency)")
         int insertQueue(@Bind("id") int id, @Bind("maxConcurrency") int maxConcurrency);
+
+        @SqlQuery("select q.max_concurrency from queues q" +
+                " join queue_settings qs on qs.id = q.id" +
+                " where qs.site_id = :siteId" +
+                " and qs.name = :name")
+        Integer getQueueMaxConcurrency(@Bind("siteId") int siteId, @Bind("name") String name);
+
+        @SqlUpdate("insert into queue_running_counts" +
+                " (queue_id, resource_type_id, running)" +
+                " values (:queueId, 0, 0)")
+        int insertQueueRunningCount(@Bind("queueId") int queueId);
+
+        @SqlQuery("select id from resource_types" +
+                " where queue_id = :queueId" +
+                " and name = :name")
+        Integer getResourceTypeIdByName(@Bind("queueId") int queueId, @Bind("name") String name);
+
+        @SqlUpdate("insert into resource_types" +
+                " (queue_id, max_concurrency, name)" +
+                " values (:queueId, :maxConcurrency, :name)")
+        @GetGeneratedKeys
+        int insertResourceType(@Bind("queueId") int queueId, @Bind("name") String name, @Bind("maxConcurrency") int maxConcurrency);
+
+        @SqlUpdate("update resource_types" +
+                " set max_concurrency = :maxConcurrency" +
+                " where id = :id")
+        int updateResourceTypeMaxConcurrency(@Bind("id") int id, @Bind("maxConcurrency") int maxConcurrency);
+
+        @SqlUpdate("insert into queue_running_counts" +
+                " (queue_id, resource_type_id, running)" +
+                " values (:queueId, :resourceTypeId, 0)")
+        int insertResourceTypeRunningCount(@Bind("queueId") int queueId, @Bind("resourceTypeId") int resourceTypeId);
     }
 
     private static class StoredQueueSettingMapper
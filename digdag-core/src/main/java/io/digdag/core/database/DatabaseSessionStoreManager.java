@@ -4,12 +4,19 @@ import java.util.AbstractMap;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Ordering;
 import com.google.inject.Inject;
 import io.digdag.client.config.Config;
 import io.digdag.client.config.ConfigFactory;
 import io.digdag.core.repository.ResourceConflictException;
 import io.digdag.core.repository.ResourceNotFoundException;
 import io.digdag.core.session.ArchivedTask;
+import io.digdag.core.session.AttemptPartitionLease;
+import io.digdag.core.session.AttemptPartitionStore;
+import io.digdag.core.session.AttemptPartitions;
 import io.digdag.core.session.ResumingTask;
 import io.digdag.core.session.ImmutableArchivedTask;
 import io.digdag.core.session.ImmutableResumingTask;
@@ -42,6 +49,7 @@ import io.digdag.core.session.StoredTask;
 import io.digdag.core.session.Task;
 import io.digdag.core.session.TaskAttemptSummary;
 import io.digdag.core.session.TaskControlStore;
+import io.digdag.core.session.TaskControlStore.NewTask;
 import io.digdag.core.session.TaskRelation;
 import io.digdag.core.session.TaskStateCode;
 import io.digdag.core.session.TaskStateFlags;
@@ -53,11 +61,13 @@ import io.digdag.spi.TaskResult;
 import org.skife.jdbi.v2.DBI;
 import org.skife.jdbi.v2.Handle;
 import org.skife.jdbi.v2.StatementContext;
+import org.skife.jdbi.v2.Update;
 import org.skife.jdbi.v2.sqlobject.Bind;
 import org.skife.jdbi.v2.sqlobject.GetGeneratedKeys;
 import org.skife.jdbi.v2.sqlobject.SqlQuery;
 import org.skife.jdbi.v2.sqlobject.SqlUpdate;
 import org.skife.jdbi.v2.tweak.ResultSetMapper;
+import org.skife.jdbi.v2.exceptions.UnableToExecuteStatementException;
 
 import java.io.IOException;
 import java.sql.ResultSet;
@@ -67,6 +77,7 @@ import java.time.ZoneId;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -76,6 +87,9 @@ public class DatabaseSessionStoreManager
 {
     private static final String DEFAULT_ATTEMPT_NAME = "";
 
+    // number of rows of a multi-row insert statement
+    private static final int BULK_INSERT_ROWS = 100;
+
     private final ObjectMapper mapper;
     private final ConfigFactory cf;
     private final ConfigMapper cfm;
@@ -83,6 +97,8 @@ public class DatabaseSessionStoreManager
     private final ArchivedTaskMapper atm;
     private final TaskAttemptSummaryMapper tasm;
 
+    private volatile String h2TaskIdSequence = null;
+
     @Inject
     public DatabaseSessionStoreManager(DBI dbi, ConfigFactory cf, ConfigMapper cfm, ObjectMapper mapper, DatabaseConfig config)
     {
@@ -155,6 +171,39 @@ public class DatabaseSessionStoreManager
         }
     }
 
+    private String nowEpochSeconds()
+    {
+        switch (databaseType) {
+        case "h2":
+            return "DATEDIFF('SECOND', TIMESTAMP '1970-01-01 00:00:00', now())";
+        default:
+            // postgresql
+            return "extract(epoch from now())";
+        }
+    }
+
+    private String nextTaskIdsQuery(Handle handle)
+    {
+        switch (databaseType) {
+        case "h2":
+            // h2 creates a sequence with a random name for an AUTO_INCREMENT column
+            String sequenceName = h2TaskIdSequence;
+            if (sequenceName == null) {
+                sequenceName = handle.createQuery(
+                        "select table_schema || '.' || sequence_name from information_schema.columns" +
+                        " where table_name = 'TASKS' and column_name = 'ID'"
+                        )
+                    .mapTo(String.class)
+                    .first();
+                h2TaskIdSequence = sequenceName;
+            }
+            return "select next value for " + sequenceName + " from system_range(1, :count)";
+        default:
+            // postgresql
+            return "select nextval(pg_get_serial_sequence('tasks', 'id')) from generate_series(1, :count)";
+        }
+    }
+
     private String selectTaskDetailsQuery()
     {
         return "select t.*, td.full_name, td.local_config, td.export_config, " +
@@ -185,6 +234,26 @@ public class DatabaseSessionStoreManager
                 "session attempt id=%d", attemptId);
     }
 
+    @Override
+    public List<StoredSessionAttemptWithSession> getAttemptsWithSessionByIds(List<Long> attemptIds)
+    {
+        if (attemptIds.isEmpty()) {
+            return ImmutableList.of();
+        }
+        return autoCommit((handle, dao) ->
+                handle.createQuery(
+                    "select sa.*, s.session_uuid, s.workflow_name, s.session_time" +
+                    " from session_attempts sa" +
+                    " join sessions s on s.id = sa.session_id" +
+                    " where sa.id in (" +
+                        attemptIds.stream()
+                        .map(id -> Long.toString(id)).collect(Collectors.joining(", ")) + ")"
+                )
+                .mapTo(StoredSessionAttemptWithSession.class)
+                .list()
+            );
+    }
+
     @Override
     public AttemptStateFlags getAttemptStateFlags(long attemptId)
         throws ResourceNotFoundException
@@ -218,9 +287,43 @@ public class DatabaseSessionStoreManager
     }
 
     @Override
-    public List<Long> findAllReadyTaskIds(int maxEntries)
+    public AttemptPartitionStore getAttemptPartitionStore()
+    {
+        return new DatabaseAttemptPartitionStore();
+    }
+
+    private static String attemptPartitionCondition(String attemptIdColumn, AttemptPartitions partitions)
+    {
+        if (partitions.isAll()) {
+            return "";
+        }
+        else if (partitions.getPartitions().isEmpty()) {
+            return " and 1 = 0";
+        }
+        else {
+            return " and mod(" + attemptIdColumn + ", " + partitions.getPartitionCount() + ") in (" +
+                partitions.getPartitions().stream()
+                .map(it -> Integer.toString(it)).collect(Collectors.joining(", ")) + ")";
+        }
+    }
+
+    @Override
+    public List<Long> findAllReadyTaskIds(AttemptPartitions partitions, int maxEntries, long lastId)
     {
-        return autoCommit((handle, dao) -> dao.findAllTaskIdsByState(TaskStateCode.READY.get(), maxEntries));
+        return autoCommit((handle, dao) ->
+                handle.createQuery(
+                    "select id from tasks" +
+                    " where state = " + TaskStateCode.READY_CODE +
+                    " and id > :lastId" +
+                    attemptPartitionCondition("attempt_id", partitions) +
+                    " order by id asc" +
+                    " limit :limit"
+                    )
+                .bind("lastId", lastId)
+                .bind("limit", maxEntries)
+                .mapTo(Long.class)
+                .list()
+            );
     }
 
     @Override
@@ -238,19 +341,74 @@ public class DatabaseSessionStoreManager
     }
 
     @Override
-    public List<TaskStateSummary> findRecentlyChangedTasks(Instant updatedSince, long lastId)
+    public <T> T lockAttemptsIfExist(List<Long> attemptIds, AttemptListLockAction<T> func)
     {
-        return autoCommit((handle, dao) -> dao.findRecentlyChangedTasks(updatedSince, lastId, 100));
+        return transaction((handle, dao, ts) -> {
+            List<SessionAttemptSummary> locked;
+            if (attemptIds.isEmpty()) {
+                locked = ImmutableList.of();
+            }
+            else {
+                // lock in order of id to avoid deadlock with other lockAttemptsIfExist calls
+                locked = handle.createQuery(
+                        "select id, session_id, state_flags from session_attempts" +
+                        " where id in (" +
+                            attemptIds.stream()
+                            .map(id -> Long.toString(id)).collect(Collectors.joining(", ")) + ")" +
+                        " order by id" +
+                        " for update"
+                        )
+                    .mapTo(SessionAttemptSummary.class)
+                    .list();
+            }
+            return func.call(new DatabaseSessionAttemptControlStore(handle), locked);
+        });
+    }
+
+    @Override
+    public List<TaskStateSummary> findRecentlyChangedTasks(AttemptPartitions partitions, Instant updatedSince, long lastId)
+    {
+        return autoCommit((handle, dao) ->
+                handle.createQuery(
+                    "select id, attempt_id, parent_id, state, updated_at" +
+                    " from tasks" +
+                    " where (updated_at > :updatedSince" +
+                    " or (updated_at = :updatedSince and id > :lastId))" +
+                    attemptPartitionCondition("attempt_id", partitions) +
+                    " order by updated_at asc, id asc" +
+                    " limit :limit"
+                    )
+                .bind("updatedSince", java.sql.Timestamp.from(updatedSince))
+                .bind("lastId", lastId)
+                .bind("limit", 100)
+                .mapTo(TaskStateSummary.class)
+                .list()
+            );
     }
 
     @Override
-    public List<TaskStateSummary> findTasksByState(TaskStateCode state, long lastId)
+    public List<TaskStateSummary> findTasksByState(AttemptPartitions partitions, TaskStateCode state, long lastId)
     {
-        return autoCommit((handle, dao) -> dao.findTasksByState(state.get(), lastId, 100));
+        return autoCommit((handle, dao) ->
+                handle.createQuery(
+                    "select id, attempt_id, parent_id, state, updated_at" +
+                    " from tasks" +
+                    " where state = :state" +
+                    " and id > :lastId" +
+                    attemptPartitionCondition("attempt_id", partitions) +
+                    " order by id asc" +
+                    " limit :limit"
+                    )
+                .bind("state", state.get())
+                .bind("lastId", lastId)
+                .bind("limit", 100)
+                .mapTo(TaskStateSummary.class)
+                .list()
+            );
     }
 
     @Override
-    public List<TaskAttemptSummary> findRootTasksByStates(TaskStateCode[] states, long lastId)
+    public List<TaskAttemptSummary> findRootTasksByStates(AttemptPartitions partitions, TaskStateCode[] states, long lastId)
     {
         return autoCommit((handle, dao) ->
                 handle.createQuery(
@@ -261,6 +419,7 @@ public class DatabaseSessionStoreManager
                         Stream.of(states)
                         .map(it -> Short.toString(it.get())).collect(Collectors.joining(", ")) + ")" +
                     " and id > :lastId" +
+                    attemptPartitionCondition("attempt_id", partitions) +
                     " order by id asc" +
                     " limit :limit"
                     )
@@ -271,6 +430,24 @@ public class DatabaseSessionStoreManager
             );
     }
 
+    @Override
+    public long countRootTasksByStates(AttemptPartitions partitions, TaskStateCode[] states)
+    {
+        return autoCommit((handle, dao) ->
+                handle.createQuery(
+                    "select count(*)" +
+                    " from tasks " +
+                    " where parent_id is null" +
+                    " and state in (" +
+                        Stream.of(states)
+                        .map(it -> Short.toString(it.get())).collect(Collectors.joining(", ")) + ")" +
+                    attemptPartitionCondition("attempt_id", partitions)
+                    )
+                .mapTo(long.class)
+                .first()
+            );
+    }
+
     @Override
     public boolean requestCancelAttempt(long attemptId)
     {
@@ -296,9 +473,32 @@ public class DatabaseSessionStoreManager
     }
 
     @Override
-    public int trySetRetryWaitingToReady()
+    public int trySetRetryWaitingToReady(AttemptPartitions partitions)
+    {
+        return autoCommit((handle, dao) ->
+                handle.createStatement(
+                    "update tasks" +
+                    " set updated_at = now(), retry_at = NULL, state = " + TaskStateCode.READY_CODE +
+                    " where state in (" + TaskStateCode.RETRY_WAITING_CODE +"," + TaskStateCode.GROUP_RETRY_WAITING_CODE + ")" +
+                    " and retry_at <= now()" +
+                    attemptPartitionCondition("attempt_id", partitions)
+                    )
+                .execute()
+            );
+    }
+
+    @Override
+    public Optional<Config> getTaskStateParams(long taskId)
     {
-        return autoCommit((handle, dao) -> dao.trySetRetryWaitingToReady());
+        return autoCommit((handle, dao) ->
+                Optional.fromNullable(handle.createQuery(
+                    "select state_params from tasks" +
+                    " where id = :id"
+                    )
+                .bind("id", taskId)
+                .map((index, r, ctx) -> cfm.fromResultSetOrEmpty(r, "state_params"))
+                .first())
+            );
     }
 
     @Override
@@ -334,6 +534,47 @@ public class DatabaseSessionStoreManager
         });
     }
 
+    @Override
+    public <T> T lockTasksIfExist(List<Long> taskIds, TaskListLockAction<T> func)
+    {
+        return transaction((handle, dao, ts) -> {
+            List<Long> locked;
+            if (taskIds.isEmpty()) {
+                locked = ImmutableList.of();
+            }
+            else {
+                // lock in order of id to avoid deadlock with other lockTasksIfExist calls
+                locked = handle.createQuery(
+                        "select id from tasks" +
+                        " where id in (" +
+                            taskIds.stream()
+                            .map(id -> Long.toString(id)).collect(Collectors.joining(", ")) + ")" +
+                        " order by id" +
+                        " for update"
+                        )
+                    .mapTo(Long.class)
+                    .list();
+            }
+
+            List<StoredTask> tasks;
+            if (locked.isEmpty()) {
+                tasks = ImmutableList.of();
+            }
+            else {
+                tasks = handle.createQuery(
+                        selectTaskDetailsQuery() +
+                        " where t.id in (" +
+                            locked.stream()
+                            .map(id -> Long.toString(id)).collect(Collectors.joining(", ")) + ")" +
+                        " order by t.id"
+                        )
+                    .map(stm)
+                    .list();
+            }
+            return func.call(new DatabaseTaskControlStore(handle), tasks);
+        });
+    }
+
     @Override
     public void lockReadySessionMonitors(Instant currentTime, SessionMonitorAction func)
     {
@@ -384,6 +625,20 @@ public class DatabaseSessionStoreManager
             );
     }
 
+    @Override
+    public long getTaskCountOfAttempt(long attemptId)
+    {
+        return autoCommit((handle, dao) ->
+                handle.createQuery(
+                    "select count(*) from tasks" +
+                    " where attempt_id = :attemptId"
+                    )
+                .bind("attemptId", attemptId)
+                .mapTo(long.class)
+                .first()
+            );
+    }
+
     @Override
     public List<Config> getExportParams(List<Long> idList)
     {
@@ -550,13 +805,20 @@ public class DatabaseSessionStoreManager
         }
 
         @Override
-        public int deleteAllTasksOfAttempt(long attemptId)
+        public int deleteAllTasksOfAttempts(List<Long> attemptIds)
         {
-            dao.deleteTaskDependencies(attemptId);
-            dao.deleteTaskStateDetails(attemptId);
-            dao.deleteTaskDetails(attemptId);
-            dao.deleteResumingTasks(attemptId);
-            return dao.deleteTasks(attemptId);
+            if (attemptIds.isEmpty()) {
+                return 0;
+            }
+            String attemptIdList = attemptIds.stream()
+                .map(id -> Long.toString(id)).collect(Collectors.joining(", "));
+            String taskIdsOfAttempts = "select id from tasks where attempt_id in (" + attemptIdList + ")";
+
+            handle.createStatement("delete from task_dependencies where downstream_id in (" + taskIdsOfAttempts + ")").execute();
+            handle.createStatement("delete from task_state_details where id in (" + taskIdsOfAttempts + ")").execute();
+            handle.createStatement("delete from task_details where id in (" + taskIdsOfAttempts + ")").execute();
+            handle.createStatement("delete from resuming_tasks where attempt_id in (" + attemptIdList + ")").execute();
+            return handle.createStatement("delete from tasks where attempt_id in (" + attemptIdList + ")").execute();
         }
 
         @Override
@@ -576,6 +838,172 @@ public class DatabaseSessionStoreManager
         }
     }
 
+    private class DatabaseAttemptPartitionStore
+            implements AttemptPartitionStore
+    {
+        @Override
+        public void initializePartitions(int partitionCount)
+        {
+            autoCommit((handle, dao) -> {
+                Set<Integer> existing = ImmutableSet.copyOf(
+                        handle.createQuery("select id from attempt_partitions")
+                        .mapTo(Integer.class)
+                        .list());
+                for (int i = 0; i < partitionCount; i++) {
+                    if (!existing.contains(i)) {
+                        try {
+                            handle.createStatement("insert into attempt_partitions (id, owner, expire_time) values (:id, NULL, 0)")
+                                .bind("id", i)
+                                .execute();
+                        }
+                        catch (UnableToExecuteStatementException ex) {
+                            // another server inserted the partition concurrently
+                            if (!(ex.getCause() instanceof SQLException) || !isConflictException((SQLException) ex.getCause())) {
+                                throw ex;
+                            }
+                        }
+                    }
+                }
+                return null;
+            });
+        }
+
+        @Override
+        public void renewExecutor(String owner, int leaseSeconds)
+        {
+            autoCommit((handle, dao) -> {
+                int n = handle.createStatement("update executor_nodes" +
+                        " set expire_time = " + nowEpochSeconds() + " + :leaseSeconds" +
+                        " where id = :owner")
+                    .bind("owner", owner)
+                    .bind("leaseSeconds", leaseSeconds)
+                    .execute();
+                if (n == 0) {
+                    handle.createStatement("insert into executor_nodes (id, expire_time)" +
+                            " values (:owner, " + nowEpochSeconds() + " + :leaseSeconds)")
+                        .bind("owner", owner)
+                        .bind("leaseSeconds", leaseSeconds)
+                        .execute();
+                }
+                // clean up executors that are gone
+                handle.createStatement("delete from executor_nodes" +
+                        " where expire_time < " + nowEpochSeconds() + " - :leaseSeconds")
+                    .bind("leaseSeconds", leaseSeconds)
+                    .execute();
+                return null;
+            });
+        }
+
+        @Override
+        public int getLiveExecutorCount(String owner)
+        {
+            return autoCommit((handle, dao) ->
+                    handle.createQuery("select count(*) from executor_nodes" +
+                            " where id = :owner or expire_time >= " + nowEpochSeconds())
+                    .bind("owner", owner)
+                    .mapTo(int.class)
+                    .first()
+                );
+        }
+
+        @Override
+        public List<AttemptPartitionLease> getLeases(int partitionCount)
+        {
+            return autoCommit((handle, dao) ->
+                    handle.createQuery("select id, owner, " +
+                            "case when expire_time < " + nowEpochSeconds() + " then 1 else 0 end as expired" +
+                            " from attempt_partitions" +
+                            " where id < :partitionCount" +
+                            " order by id")
+                    .bind("partitionCount", partitionCount)
+                    .map((index, r, ctx) -> AttemptPartitionLease.of(
+                            r.getInt("id"),
+                            Optional.fromNullable(r.getString("owner")),
+                            r.getInt("expired") != 0))
+                    .list()
+                );
+        }
+
+        @Override
+        public Set<Integer> renewLeases(String owner, int partitionCount, int leaseSeconds)
+        {
+            return autoCommit((handle, dao) -> {
+                handle.createStatement("update attempt_partitions" +
+                        " set expire_time = " + nowEpochSeconds() + " + :leaseSeconds" +
+                        " where owner = :owner" +
+                        " and id < :partitionCount")
+                    .bind("owner", owner)
+                    .bind("partitionCount", partitionCount)
+                    .bind("leaseSeconds", leaseSeconds)
+                    .execute();
+                return ImmutableSet.copyOf(
+                        handle.createQuery("select id from attempt_partitions" +
+                                " where owner = :owner" +
+                                " and id < :partitionCount")
+                        .bind("owner", owner)
+                        .bind("partitionCount", partitionCount)
+                        .mapTo(Integer.class)
+                        .list());
+            });
+        }
+
+        @Override
+        public boolean tryAcquireLease(int partition, String owner, int leaseSeconds)
+        {
+            return autoCommit((handle, dao) ->
+                    handle.createStatement("update attempt_partitions" +
+                            " set owner = :owner, expire_time = " + nowEpochSeconds() + " + :leaseSeconds" +
+                            " where id = :id" +
+                            " and (owner is null or owner = :owner or expire_time < " + nowEpochSeconds() + ")")
+                    .bind("id", partition)
+                    .bind("owner", owner)
+                    .bind("leaseSeconds", leaseSeconds)
+                    .execute() > 0
+                );
+        }
+
+        @Override
+        public void releaseLease(int partition, String owner)
+        {
+            autoCommit((handle, dao) ->
+                    handle.createStatement("update attempt_partitions" +
+                            " set owner = NULL, expire_time = 0" +
+                            " where id = :id" +
+                            " and owner = :owner")
+                    .bind("id", partition)
+                    .bind("owner", owner)
+                    .execute()
+                );
+        }
+
+        @Override
+        public void releaseAll(String owner)
+        {
+            autoCommit((handle, dao) -> {
+                handle.createStatement("update attempt_partitions" +
+                        " set owner = NULL, expire_time = 0" +
+                        " where owner = :owner")
+                    .bind("owner", owner)
+                    .execute();
+                handle.createStatement("delete from executor_nodes" +
+                        " where id = :owner")
+                    .bind("owner", owner)
+                    .execute();
+                return null;
+            });
+        }
+    }
+
+    private interface RowValuesBuilder
+    {
+        String values(int index, NewTask row);
+    }
+
+    private interface RowBinder
+    {
+        void bind(Update update, int index, NewTask row);
+    }
+
     private class DatabaseTaskControlStore
             implements TaskControlStore
     {
@@ -612,27 +1040,94 @@ public class DatabaseSessionStoreManager
         }
 
         @Override
-        public long addResumedSubtask(long attemptId, long parentId,
-                TaskType taskType, TaskStateCode state, TaskStateFlags flags,
-                ResumingTask resumingTask)
-        {
-            long taskId = dao.insertResumedTask(attemptId, parentId,
-                    taskType.get(),
-                    state.get(),
-                    flags.get(),
-                    sqlTimestampOf(resumingTask.getUpdatedAt()));
-            dao.insertResumedTaskDetails(taskId,
-                    resumingTask.getFullName(),
-                    resumingTask.getConfig().getLocal(),
-                    resumingTask.getConfig().getExport(),
-                    resumingTask.getSourceTaskId());
-            dao.insertResumedTaskStateDetails(taskId,
-                    resumingTask.getSubtaskConfig(),
-                    resumingTask.getExportParams(),
-                    resumingTask.getStoreParams(),
-                    null,
-                    resumingTask.getError());
-            return taskId;
+        public List<Long> allocateTaskIds(int count)
+        {
+            if (count == 0) {
+                return ImmutableList.of();
+            }
+            List<Long> ids = handle.createQuery(nextTaskIdsQuery(handle))
+                .bind("count", count)
+                .mapTo(Long.class)
+                .list();
+            return Ordering.natural().immutableSortedCopy(ids);
+        }
+
+        @Override
+        public void addSubtasks(long attemptId, List<NewTask> tasks)
+        {
+            // ids are allocated by allocateTaskIds in advance so that rows of
+            // tasks, task_details and task_state_details can be inserted by
+            // multi-row statements. Batches are limited to bound the number of
+            // bind parameters per statement.
+            for (List<NewTask> rows : Lists.partition(tasks, BULK_INSERT_ROWS)) {
+                insertRows(
+                        "insert into tasks (id, attempt_id, parent_id, task_type, state, state_flags, updated_at)",
+                        rows,
+                        (i, row) -> "(:id" + i + ", :attemptId, :parentId" + i + ", :taskType" + i + ", :state" + i + ", :stateFlags" + i + ", " +
+                            (row.getResumingTask().isPresent() ? ":updatedAt" + i : "now()") + ")",
+                        (update, i, row) -> {
+                            update.bind("parentId" + i, row.getTask().getParentId().orNull())
+                                .bind("taskType" + i, row.getTask().getTaskType().get())
+                                .bind("state" + i, row.getTask().getState().get())
+                                .bind("stateFlags" + i, row.getTask().getStateFlags().get());
+                            if (row.getResumingTask().isPresent()) {
+                                update.bind("updatedAt" + i, sqlTimestampOf(row.getResumingTask().get().getUpdatedAt()));
+                            }
+                        })
+                    .bind("attemptId", attemptId)
+                    .execute();
+
+                insertRows(
+                        "insert into task_details (id, full_name, local_config, export_config, resuming_task_id)",
+                        rows,
+                        (i, row) -> "(:id" + i + ", :fullName" + i + ", :localConfig" + i + ", :exportConfig" + i + ", " +
+                            (row.getResumingTask().isPresent() ? ":resumingTaskId" + i : "NULL") + ")",
+                        (update, i, row) -> {
+                            update.bind("fullName" + i, row.getTask().getFullName())
+                                .bind("localConfig" + i, row.getTask().getConfig().getLocal())
+                                .bind("exportConfig" + i, row.getTask().getConfig().getExport());
+                            if (row.getResumingTask().isPresent()) {
+                                update.bind("resumingTaskId" + i, row.getResumingTask().get().getSourceTaskId());
+                            }
+                        })
+                    .execute();
+
+                insertRows(
+                        "insert into task_state_details (id, subtask_config, export_params, store_params, report, error)",
+                        rows,
+                        (i, row) -> row.getResumingTask().isPresent() ?
+                            "(:id" + i + ", :subtaskConfig" + i + ", :exportParams" + i + ", :storeParams" + i + ", NULL, :error" + i + ")" :
+                            "(:id" + i + ", NULL, NULL, NULL, NULL, NULL)",
+                        (update, i, row) -> {
+                            if (row.getResumingTask().isPresent()) {
+                                ResumingTask resumingTask = row.getResumingTask().get();
+                                update.bind("subtaskConfig" + i, resumingTask.getSubtaskConfig())
+                                    .bind("exportParams" + i, resumingTask.getExportParams())
+                                    .bind("storeParams" + i, resumingTask.getStoreParams())
+                                    .bind("error" + i, resumingTask.getError());
+                            }
+                        })
+                    .execute();
+            }
+        }
+
+        private Update insertRows(String insert, List<NewTask> rows,
+                RowValuesBuilder valuesBuilder, RowBinder binder)
+        {
+            StringBuilder sb = new StringBuilder(insert);
+            sb.append(" values ");
+            for (int i = 0; i < rows.size(); i++) {
+                if (i > 0) {
+                    sb.append(", ");
+                }
+                sb.append(valuesBuilder.values(i, rows.get(i)));
+            }
+            Update update = handle.createStatement(sb.toString());
+            for (int i = 0; i < rows.size(); i++) {
+                update.bind("id" + i, rows.get(i).getId());
+                binder.bind(update, i, rows.get(i));
+            }
+            return update;
         }
 
         private java.sql.Timestamp sqlTimestampOf(Instant instant)
@@ -699,6 +1194,12 @@ public class DatabaseSessionStoreManager
             return DatabaseSessionStoreManager.this.getTaskById(handle, taskId);
         }
 
+        @Override
+        public boolean lockTaskIfExists(long taskId)
+        {
+            return dao.lockTask(taskId) != null;
+        }
+
         @Override
         public void addDependencies(long downstream, List<Long> upstreams)
         {
@@ -707,6 +1208,23 @@ public class DatabaseSessionStoreManager
             }
         }
 
+        @Override
+        public void addDependencies(ListMultimap<Long, Long> downstreamToUpstreams)
+        {
+            // multi-row statements reduce round trips. ids are numbers so they
+            // are embedded in the statement instead of bound.
+            List<Map.Entry<Long, Long>> entries = ImmutableList.copyOf(downstreamToUpstreams.entries());
+            for (List<Map.Entry<Long, Long>> rows : Lists.partition(entries, BULK_INSERT_ROWS)) {
+                handle.createStatement(
+                        "insert into task_dependencies (upstream_id, downstream_id) values " +
+                        rows.stream()
+                        .map(entry -> "(" + entry.getValue() + ", " + entry.getKey() + ")")
+                        .collect(Collectors.joining(", "))
+                        )
+                    .execute();
+            }
+        }
+
         @Override
         public boolean isAnyProgressibleChild(long taskId)
         {
@@ -850,6 +1368,21 @@ public class DatabaseSessionStoreManager
             return false;
         }
 
+        public boolean setStateParams(long taskId, TaskStateCode state, Config stateParams)
+        {
+            // updated_at is not changed because status propagation doesn't need to see this change
+            int n = handle.createStatement("update tasks" +
+                    " set state_params = :stateParams" +
+                    " where id = :id" +
+                    " and state = :state"
+                )
+                .bind("id", taskId)
+                .bind("state", state.get())
+                .bind("stateParams", cfm.toBinding(stateParams))
+                .execute();
+            return n > 0;
+        }
+
         public int trySetChildrenBlockedToReadyOrShortCircuitPlannedOrCanceled(long taskId)
         {
             return handle.createStatement("update tasks" +
@@ -879,6 +1412,43 @@ public class DatabaseSessionStoreManager
                 .execute();
         }
 
+        @Override
+        public List<Long> getPlannedGroupingChildTaskIds(long taskId)
+        {
+            return handle.createQuery(
+                    "select id from tasks" +
+                    " where parent_id = :parentId" +
+                    " and state = " + TaskStateCode.PLANNED_CODE +
+                    " and task_type = " + TaskType.GROUPING_ONLY +
+                    " and exists (" +
+                        "select * from tasks ct" +
+                        " where ct.parent_id = tasks.id" +
+                    " )" +
+                    " and not exists (" +
+                        "select * from tasks ct" +
+                        " where ct.parent_id = tasks.id" +
+                        " and ct.state != " + TaskStateCode.BLOCKED_CODE +
+                    " )" +
+                    " order by id")
+                .bind("parentId", taskId)
+                .mapTo(Long.class)
+                .list();
+        }
+
+        @Override
+        public List<Long> getChildTaskIdsByState(long taskId, TaskStateCode state)
+        {
+            return handle.createQuery(
+                    "select id from tasks" +
+                    " where parent_id = :parentId" +
+                    " and state = :state" +
+                    " order by id")
+                .bind("parentId", taskId)
+                .bind("state", state.get())
+                .mapTo(Long.class)
+                .list();
+        }
+
         //public boolean trySetBlockedToReadyOrShortCircuitPlanned(long taskId)
         //{
         //    int n = handle.createStatement("update tasks " +
@@ -1381,9 +1951,6 @@ public class DatabaseSessionStoreManager
         @GetGeneratedKeys
         long insertSessionMonitor(@Bind("attemptId") long attemptId, @Bind("nextRunTime") long nextRunTime, @Bind("type") String type, @Bind("config") Config config);
 
-        @SqlQuery("select id from tasks where state = :state limit :limit")
-        List<Long> findAllTaskIdsByState(@Bind("state") short state, @Bind("limit") int limit);
-
         @SqlQuery("select id, session_id, state_flags from session_attempts where id = :attemptId for update")
         SessionAttemptSummary lockAttempt(@Bind("attemptId") long attemptId);
 
@@ -1406,19 +1973,6 @@ public class DatabaseSessionStoreManager
                 " values (:upstreamId, :downstreamId)")
         void insertTaskDependency(@Bind("downstreamId") long downstreamId, @Bind("upstreamId") long upstreamId);
 
-        @SqlUpdate("insert into tasks (attempt_id, parent_id, task_type, state, state_flags, updated_at)" +
-                " values (:attemptId, :parentId, :taskType, :state, :stateFlags, :updatedAt)")
-        @GetGeneratedKeys
-        long insertResumedTask(@Bind("attemptId") long attemptId, @Bind("parentId") long parentId, @Bind("taskType") int taskType, @Bind("state") int state, @Bind("stateFlags") int stateFlags, @Bind("updatedAt") java.sql.Timestamp updatedAt);
-
-        @SqlUpdate("insert into task_details (id, full_name, local_config, export_config, resuming_task_id)" +
-                " values (:id, :fullName, :localConfig, :exportConfig, :resumingTaskId)")
-        void insertResumedTaskDetails(@Bind("id") long id, @Bind("fullName") String fullName, @Bind("localConfig") Config localConfig, @Bind("exportConfig") Config exportConfig, @Bind("resumingTaskId") long resumingTaskId);
-
-        @SqlUpdate("insert into task_state_details (id, subtask_config, export_params, store_params, report, error)" +
-                " values (:id, :subtaskConfig, :exportParams, :storeParams, :report, :error)")
-        void insertResumedTaskStateDetails(@Bind("id") long id, @Bind("subtaskConfig") Config subtaskConfig, @Bind("exportParams") Config exportParams, @Bind("storeParams") Config storeParams, @Bind("report") Config report, @Bind("error") Config error);
-
         @SqlUpdate("insert into resuming_tasks (attempt_id, source_task_id, full_name, updated_at, local_config, export_config, subtask_config, export_params, store_params, report, error)" +
                 " values (:attemptId, :sourceTaskId, :fullName, :updatedAt, :localConfig, :exportConfig, :subtaskConfig, :exportParams, :storeParams, :report, :error)")
         @GetGeneratedKeys
@@ -1440,23 +1994,6 @@ public class DatabaseSessionStoreManager
                 " and full_name like :fullNamePattern")
         List<ResumingTask> findResumingTasksByNamePrefix(@Bind("attemptId") long attemptId, @Bind("fullNamePattern") String fullNamePattern);
 
-        @SqlQuery("select id, attempt_id, parent_id, state, updated_at " +
-                " from tasks " +
-                " where updated_at > :updatedSince" +
-                " or (updated_at = :updatedSince and id > :lastId)" +
-                " order by updated_at asc, id asc" +
-                " limit :limit")
-        List<TaskStateSummary> findRecentlyChangedTasks(@Bind("updatedSince") Instant updatedSince, @Bind("lastId") long lastId, @Bind("limit") int limit);
-
-        @SqlQuery("select id, attempt_id, parent_id, state, updated_at " +
-                " from tasks " +
-                " where state = :state" +
-                " and id > :lastId" +
-                " order by id asc" +
-                //" order by updated_at asc, id asc" +
-                " limit :limit")
-        List<TaskStateSummary> findTasksByState(@Bind("state") short state, @Bind("lastId") long lastId, @Bind("limit") int limit);
-
         @SqlQuery("select id from tasks " +
                 " where id = :id" +
                 " for update")
@@ -1490,12 +2027,6 @@ public class DatabaseSessionStoreManager
                 " where id = :id")
         long setSuccessfulReport(@Bind("id") long taskId, @Bind("subtaskConfig") Config subtaskConfig, @Bind("exportParams") Config exportParams, @Bind("storeParams") Config storeParams, @Bind("report") Config report);
 
-        @SqlUpdate("update tasks " +
-                " set updated_at = now(), retry_at = NULL, state = " + TaskStateCode.READY_CODE +
-                " where state in (" + TaskStateCode.RETRY_WAITING_CODE +"," + TaskStateCode.GROUP_RETRY_WAITING_CODE + ")" +
-                " and retry_at <= now()")
-        int trySetRetryWaitingToReady();
-
         @SqlQuery("select * from session_monitors" +
                 " where next_run_time <= :currentTime" +
                 " limit :limit" +
@@ -1522,26 +2053,6 @@ public class DatabaseSessionStoreManager
         @SqlUpdate("delete from session_monitors" +
                 " where id = :id")
         void deleteSessionMonitor(@Bind("id") long id);
-
-        @SqlUpdate("delete from tasks" +
-                " where attempt_id = :attemptId")
-        int deleteTasks(@Bind("attemptId") long attemptId);
-
-        @SqlUpdate("delete from task_details" +
-                " where id in (select id from tasks where attempt_id = :attemptId)")
-        void deleteTaskDetails(@Bind("attemptId") long attemptId);
-
-        @SqlUpdate("delete from task_state_details" +
-                " where id in (select id from tasks where attempt_id = :attemptId)")
-        void deleteTaskStateDetails(@Bind("attemptId") long attemptId);
-
-        @SqlUpdate("delete from task_dependencies" +
-                " where downstream_id in (select id from tasks where attempt_id = :attemptId)")
-        void deleteTaskDependencies(@Bind("attemptId") long attemptId);
-
-        @SqlUpdate("delete from resuming_tasks" +
-                " where attempt_id = :attemptId")
-        int deleteResumingTasks(@Bind("attemptId") long attemptId);
     }
 
     private static class InstantMapper
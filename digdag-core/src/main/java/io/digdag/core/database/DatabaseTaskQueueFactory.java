@@ -1,9 +1,8 @@
 package io.digdag.core.database;
 
 import java.util.List;
-import java.io.IOException;
+import java.util.stream.Collectors;
 import com.google.inject.Inject;
-import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import io.digdag.core.repository.ResourceConflictException;
@@ -15,23 +14,47 @@ import io.digdag.spi.TaskQueueServer;
 import io.digdag.spi.TaskQueueClient;
 import io.digdag.spi.TaskStateException;
 import io.digdag.spi.TaskRequest;
+import io.digdag.spi.WakeupBus;
+import io.digdag.core.queue.TaskQueueMetrics;
+import io.digdag.core.queue.TaskRequestCodec;
+import io.digdag.core.queue.WakeupBusManager;
 import io.digdag.core.database.DatabaseTaskQueueStore.LockResult;
+import io.digdag.core.database.DatabaseTaskQueueStore.LockedTask;
+import io.digdag.core.database.DatabaseTaskQueueStore.QueuedTaskEntry;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import static io.digdag.core.queue.QueueSettingStore.DEFAULT_QUEUE_NAME;
+import static io.digdag.core.queue.WakeupBusManager.SHARED_TASK_QUEUE_CHANNEL;
+import static io.digdag.core.queue.WakeupBusManager.TASK_QUEUE_CHANNEL;
 
 public class DatabaseTaskQueueFactory
     implements TaskQueueFactory
 {
     private final DatabaseTaskQueueStore store;
     private final ObjectMapper mapper;
+    private final WakeupBus wakeupBus;
+    private final TaskQueueMetrics metrics;
     private final Object sharedTaskSleepHelper = new Object();
     private final Object taskSleepHelper = new Object();
 
     @Inject
-    public DatabaseTaskQueueFactory(DatabaseTaskQueueStore store, ObjectMapper mapper)
+    public DatabaseTaskQueueFactory(DatabaseTaskQueueStore store, ObjectMapper mapper, WakeupBusManager wakeupBusManager,
+            TaskQueueMetrics metrics)
     {
         this.store = store;
         this.mapper = mapper;
+        this.wakeupBus = wakeupBusManager.getWakeupBus();
+        this.metrics = metrics;
+        // agents sleeping in lockSharedTasks wake up when another server enqueues tasks
+        wakeupBus.subscribe(SHARED_TASK_QUEUE_CHANNEL, () -> noticeEnqueue(sharedTaskSleepHelper));
+        wakeupBus.subscribe(TASK_QUEUE_CHANNEL, () -> noticeEnqueue(taskSleepHelper));
+    }
+
+    @SuppressFBWarnings("NN_NAKED_NOTIFY")
+    private static void noticeEnqueue(Object helper)
+    {
+        synchronized (helper) {
+            helper.notifyAll();
+        }
     }
 
     public String getType()
@@ -41,12 +64,20 @@ public class DatabaseTaskQueueFactory
 
     public TaskQueue getTaskQueue(Config systemConfig)
     {
-        return new DatabaseTaskQueue();
+        return new DatabaseTaskQueue(new TaskRequestCodec(mapper,
+                    TaskRequestCodec.Encoding.of(systemConfig.get("database.queue.taskEncoding", String.class, "smile"))));
     }
 
     public class DatabaseTaskQueue
         implements TaskQueue, TaskQueueServer
     {
+        private final TaskRequestCodec codec;
+
+        public DatabaseTaskQueue(TaskRequestCodec codec)
+        {
+            this.codec = codec;
+        }
+
         @Override
         public void enqueue(TaskRequest request)
             throws TaskStateException
@@ -54,15 +85,17 @@ public class DatabaseTaskQueueFactory
             try {
                 store.enqueue(
                         request.getSiteId(),
+                        request.getProjectId(),
                         request.getQueueName(),
+                        request.getResourceType(),
                         request.getPriority(),
                         request.getTaskId(),
                         encodeTask(request));
                 if (request.getQueueName().equals(DEFAULT_QUEUE_NAME)) {
-                    noticeEnqueue(sharedTaskSleepHelper);
+                    wakeupBus.publish(SHARED_TASK_QUEUE_CHANNEL);
                 }
                 else {
-                    noticeEnqueue(taskSleepHelper);
+                    wakeupBus.publish(TASK_QUEUE_CHANNEL);
                 }
             }
             catch (ResourceConflictException ex) {
@@ -70,6 +103,35 @@ public class DatabaseTaskQueueFactory
             }
         }
 
+        @Override
+        public void enqueue(List<TaskRequest> requests)
+            throws TaskStateException
+        {
+            ImmutableList.Builder<QueuedTaskEntry> entries = ImmutableList.builder();
+            for (TaskRequest request : requests) {
+                entries.add(QueuedTaskEntry.of(
+                            request.getSiteId(),
+                            request.getProjectId(),
+                            request.getQueueName(),
+                            request.getResourceType(),
+                            request.getPriority(),
+                            request.getTaskId(),
+                            encodeTask(request)));
+            }
+            try {
+                store.enqueue(entries.build());
+            }
+            catch (ResourceConflictException ex) {
+                throw new TaskStateException(ex);
+            }
+            if (requests.stream().anyMatch(request -> request.getQueueName().equals(DEFAULT_QUEUE_NAME))) {
+                wakeupBus.publish(SHARED_TASK_QUEUE_CHANNEL);
+            }
+            if (requests.stream().anyMatch(request -> !request.getQueueName().equals(DEFAULT_QUEUE_NAME))) {
+                wakeupBus.publish(TASK_QUEUE_CHANNEL);
+            }
+        }
+
         public TaskQueueServer getServer()
         {
             return this;
@@ -84,22 +146,40 @@ public class DatabaseTaskQueueFactory
         public List<TaskRequest> lockSharedTasks(int limit, String agentId, int lockSeconds, long maxSleepMillis)
         {
             ImmutableList.Builder<TaskRequest> builder = ImmutableList.builder();
-            for (LockResult lock : store.lockSharedTasks(limit, agentId, lockSeconds)) {
-                try {
-                    byte[] data = store.getTaskData(lock.getLockId());
-                    builder.add(decodeTask(data, lock));
-                }
-                catch (ResourceNotFoundException ex) {
-                    continue;
-                }
+            for (LockedTask locked : store.lockSharedTasksWithData(limit, agentId, lockSeconds)) {
+                builder.add(decodeTask(locked.getData(), locked.getLock()));
             }
             List<TaskRequest> result = builder.build();
+            metrics.tasksLocked(result);
             if (result.isEmpty() && maxSleepMillis >= 0) {
                 sleepUntilEnqueue(sharedTaskSleepHelper, maxSleepMillis);
             }
             return result;
         }
 
+        @Override
+        public List<TaskRequest> lockTasks(int siteId, String queueName, int limit, String agentId, int lockSeconds, long maxSleepMillis)
+        {
+            List<LockedTask> locked;
+            try {
+                locked = store.lockTasksWithData(siteId, queueName, limit, agentId, lockSeconds);
+            }
+            catch (ResourceNotFoundException ex) {
+                // queue is created when a task is enqueued first
+                locked = ImmutableList.of();
+            }
+            ImmutableList.Builder<TaskRequest> builder = ImmutableList.builder();
+            for (LockedTask task : locked) {
+                builder.add(decodeTask(task.getData(), task.getLock()));
+            }
+            List<TaskRequest> result = builder.build();
+            metrics.tasksLocked(result);
+            if (result.isEmpty() && maxSleepMillis >= 0) {
+                sleepUntilEnqueue(taskSleepHelper, maxSleepMillis);
+            }
+            return result;
+        }
+
         private void sleepUntilEnqueue(Object helper, long maxSleepMillis)
         {
             synchronized (helper) {
@@ -112,24 +192,25 @@ public class DatabaseTaskQueueFactory
             }
         }
 
-        @SuppressFBWarnings("NN_NAKED_NOTIFY")
-        private void noticeEnqueue(Object helper)
+        @Override
+        public List<String> taskHeartbeat(int siteId, List<String> lockedIds, String agentId, int lockSeconds)
+            throws TaskStateException
         {
-            synchronized (helper) {
-                helper.notifyAll();
-            }
+            // siteId is not checked because an agent locking shared tasks runs
+            // tasks of all sites. TaskResource accepts only requests with the
+            // agent token (server.queue-api.agent-token).
+            List<LockResult> locks = lockedIds.stream()
+                .map(lockId -> decodeLockId(lockId))
+                .collect(Collectors.toList());
+            return store.heartbeat(locks, agentId, lockSeconds).stream()
+                .map(lock -> encodeLockId(lock))
+                .collect(Collectors.toList());
         }
 
         @Override
-        public void taskHeartbeat(int siteId, List<String> lockedIds, String agentId, int lockSeconds)
-            throws TaskStateException
+        public void agentHeartbeat(String agentId, int livenessSeconds)
         {
-            // TODO this is insecure because siteId is not checked
-            for (String lockId : lockedIds) {
-                LockResult lock = decodeLockId(lockId);
-                boolean success = store.heartbeat(lock, agentId, lockSeconds);
-                // TODO throw if not success?
-            }
+            store.agentHeartbeat(agentId, livenessSeconds);
         }
 
         @Override
@@ -147,24 +228,14 @@ public class DatabaseTaskQueueFactory
 
         private byte[] encodeTask(TaskRequest request)
         {
-            try {
-                return mapper.writeValueAsBytes(request);
-            }
-            catch (IOException ex) {
-                throw Throwables.propagate(ex);
-            }
+            return codec.encode(request);
         }
 
         private TaskRequest decodeTask(byte[] data, LockResult lock)
         {
-            try {
-                return TaskRequest.withLockId(
-                    mapper.readValue(data, TaskRequest.class),
-                    encodeLockId(lock));
-            }
-            catch (IOException ex) {
-                throw Throwables.propagate(ex);
-            }
+            return TaskRequest.withLockId(
+                codec.decode(data),
+                encodeLockId(lock));
         }
 
         private String encodeLockId(LockResult lock)
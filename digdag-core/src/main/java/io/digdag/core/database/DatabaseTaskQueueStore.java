@@ -1,6 +1,14 @@
 package io.digdag.core.database;
 
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -21,6 +29,8 @@ import io.digdag.core.queue.StoredQueueSetting;
 import io.digdag.core.queue.ImmutableStoredQueueSetting;
 import org.skife.jdbi.v2.DBI;
 import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.Query;
+import org.skife.jdbi.v2.Update;
 import org.skife.jdbi.v2.sqlobject.SqlQuery;
 import org.skife.jdbi.v2.sqlobject.SqlUpdate;
 import org.skife.jdbi.v2.sqlobject.Bind;
@@ -33,7 +43,10 @@ import org.immutables.value.Value;
 import io.digdag.client.config.Config;
 import io.digdag.core.repository.ResourceConflictException;
 import io.digdag.core.repository.ResourceNotFoundException;
+import io.digdag.core.database.TenantRoundRobin.WaitingTenant;
 import static io.digdag.core.queue.QueueSettingStore.DEFAULT_QUEUE_NAME;
+import static io.digdag.core.queue.TaskQueueManager.getProjectWeight;
+import static io.digdag.core.queue.TaskQueueManager.getResourceTypeMaxConcurrency;
 
 public class DatabaseTaskQueueStore
         extends BasicDatabaseStoreManager<DatabaseTaskQueueStore.Dao>
@@ -54,19 +67,81 @@ public class DatabaseTaskQueueStore
         }
     }
 
+    @Value.Immutable
+    public static interface LockedTask
+    {
+        LockResult getLock();
+
+        byte[] getData();
+
+        public static LockedTask of(LockResult lock, byte[] data)
+        {
+            return ImmutableLockedTask.builder()
+                .lock(lock)
+                .data(data)
+                .build();
+        }
+    }
+
+    @Value.Immutable
+    public static interface QueuedTaskEntry
+    {
+        int getSiteId();
+
+        int getProjectId();
+
+        String getQueueName();
+
+        Optional<String> getResourceType();
+
+        int getPriority();
+
+        long getTaskId();
+
+        byte[] getData();
+
+        public static QueuedTaskEntry of(int siteId, int projectId, String queueName, Optional<String> resourceType, int priority, long taskId, byte[] data)
+        {
+            return ImmutableQueuedTaskEntry.builder()
+                .siteId(siteId)
+                .projectId(projectId)
+                .queueName(queueName)
+                .resourceType(resourceType)
+                .priority(priority)
+                .taskId(taskId)
+                .data(data)
+                .build();
+        }
+    }
+
+    private static final int ENQUEUE_INSERT_ROWS = 100;
+
+    // locks are released in transactions of this number of rows so that
+    // releasing a large number of locks doesn't hold row locks for long
+    private static final int RELEASE_LOCK_CHUNK_ROWS = 1000;
+
     private final QueueSettingStoreManager qm;
+    private final Config systemConfig;
     private final int expireLockInterval;
     private final LocalLockMap localLockMap = new LocalLockMap();
+    // h2 database doesn't lock counter rows. Lock attempts are serialized in
+    // this process until commit so that they see counts of each other.
+    private final Object localLockAttempt = new Object();
+    private final TenantRoundRobin tenantRoundRobin;
+    // {[queueId, resource type name] => resource_types.id}
+    private final Map<List<Object>, Integer> resourceTypeIdCache = new ConcurrentHashMap<>();
     private final ScheduledExecutorService expireExecutor;
 
     private final boolean skipLockedAvailable;
 
     @Inject
-    public DatabaseTaskQueueStore(DBI dbi, DatabaseConfig config, QueueSettingStoreManager qm)
+    public DatabaseTaskQueueStore(DBI dbi, DatabaseConfig config, QueueSettingStoreManager qm, Config systemConfig)
     {
         super(config.getType(), Dao.class, dbi);
         this.qm = qm;
+        this.systemConfig = systemConfig;
         this.expireLockInterval = config.getExpireLockInterval();
+        this.tenantRoundRobin = new TenantRoundRobin(projectId -> getProjectWeight(systemConfig, projectId));
         this.expireExecutor = Executors.newSingleThreadScheduledExecutor(
                 new ThreadFactoryBuilder()
                 .setDaemon(true)
@@ -122,28 +197,119 @@ public class DatabaseTaskQueueStore
         return "extract(epoch from now())";
     }
 
-    // TODO support Optional<String> resourceType
-    public long enqueue(int siteId, String queueName, int priority, long taskId, byte[] data)
+    // h2 doesn't support extract(epoch ...)
+    private String currentUnixTimestampSql()
+    {
+        if (isSharedDatabase()) {
+            return statementUnixTimestampSql();
+        }
+        else {
+            return Long.toString(Instant.now().getEpochSecond());
+        }
+    }
+
+    public long enqueue(int siteId, int projectId, String queueName, Optional<String> resourceType, int priority, long taskId, byte[] data)
         throws ResourceConflictException
     {
         boolean useSharedTaskQueue = queueName.equals(DEFAULT_QUEUE_NAME);
-        Integer resourceTypeId = null;
 
         return transaction((handle, dao, ts) -> {
             int queueId = qm.getQueueIdByNameOrInsertDefault(siteId, queueName);
+            Integer resourceTypeId = getResourceTypeId(queueId, resourceType);
             long queuedTaskId = catchConflict(() ->
-                dao.insertQueuedTask(siteId, queueId, priority, resourceTypeId, taskId, data),
+                dao.insertQueuedTask(siteId, projectId, queueId, priority, resourceTypeId, taskId, data),
                 "lock id=%d in queue id=%d", taskId, queueId);
             if (useSharedTaskQueue) {
-                dao.insertQueuedSharedTaskLock(queuedTaskId, queueId, priority, resourceTypeId);
+                dao.insertQueuedSharedTaskLock(queuedTaskId, projectId, queueId, priority, resourceTypeId);
             }
             else {
-                dao.insertQueuedTaskLock(queuedTaskId, queueId, priority, resourceTypeId);
+                dao.insertQueuedTaskLock(queuedTaskId, projectId, queueId, priority, resourceTypeId);
             }
             return queuedTaskId;
         }, ResourceConflictException.class);
     }
 
+    public void enqueue(List<QueuedTaskEntry> entries)
+        throws ResourceConflictException
+    {
+        if (entries.isEmpty()) {
+            return;
+        }
+
+        // group entries by queue and resource type keeping order so that one multi-row
+        // insert statement is issued for up to ENQUEUE_INSERT_ROWS tasks of a group.
+        ListMultimap<List<Object>, QueuedTaskEntry> groups = Multimaps.index(entries,
+                entry -> ImmutableList.of(entry.getSiteId(), entry.getQueueName(), entry.getResourceType()));
+
+        this.<Boolean, ResourceConflictException>transaction((handle, dao, ts) -> {
+            for (List<QueuedTaskEntry> group : Multimaps.asMap(groups).values()) {
+                int siteId = group.get(0).getSiteId();
+                String queueName = group.get(0).getQueueName();
+                boolean useSharedTaskQueue = queueName.equals(DEFAULT_QUEUE_NAME);
+                int queueId = qm.getQueueIdByNameOrInsertDefault(siteId, queueName);
+                Integer resourceTypeId = getResourceTypeId(queueId, group.get(0).getResourceType());
+
+                for (List<QueuedTaskEntry> rows : Lists.partition(group, ENQUEUE_INSERT_ROWS)) {
+                    catchConflict(() -> insertQueuedTasks(handle, siteId, queueId, resourceTypeId, rows),
+                            "lock of task ids=%s in queue id=%d",
+                            rows.stream().map(entry -> entry.getTaskId()).collect(Collectors.toList()), queueId);
+
+                    // lock rows use the same id with queued_tasks
+                    handle.createStatement(
+                            "insert into " + (useSharedTaskQueue ? "queued_shared_task_locks" : "queued_task_locks") +
+                            " (id, project_id, queue_id, priority, resource_type_id, retry_count, hold_expire_time)" +
+                            " select id, project_id, queue_id, priority, resource_type_id, 0, NULL" +
+                            " from queued_tasks" +
+                            " where queue_id = :queueId" +
+                            " and task_id in (" +
+                                rows.stream()
+                                .map(entry -> Long.toString(entry.getTaskId())).collect(Collectors.joining(", ")) + ")"
+                            )
+                        .bind("queueId", queueId)
+                        .execute();
+                }
+            }
+            return true;
+        }, ResourceConflictException.class);
+    }
+
+    private Integer getResourceTypeId(int queueId, Optional<String> resourceType)
+    {
+        if (!resourceType.isPresent()) {
+            return null;
+        }
+        String name = resourceType.get();
+        return resourceTypeIdCache.computeIfAbsent(ImmutableList.of(queueId, name), key ->
+                qm.getResourceTypeIdByNameOrInsert(queueId, name,
+                    getResourceTypeMaxConcurrency(systemConfig, name)));
+    }
+
+    private int insertQueuedTasks(Handle handle, int siteId, int queueId, Integer resourceTypeId, List<QueuedTaskEntry> rows)
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("insert into queued_tasks" +
+                " (site_id, project_id, queue_id, priority, resource_type_id, task_id, data, created_at)" +
+                " values ");
+        for (int i = 0; i < rows.size(); i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append("(:siteId, :projectId" + i + ", :queueId, :priority" + i + ", :resourceTypeId, :taskId" + i + ", :data" + i + ", now())");
+        }
+        Update update = handle.createStatement(sb.toString())
+            .bind("siteId", siteId)
+            .bind("queueId", queueId)
+            .bind("resourceTypeId", resourceTypeId);
+        for (int i = 0; i < rows.size(); i++) {
+            QueuedTaskEntry entry = rows.get(i);
+            update.bind("projectId" + i, entry.getProjectId())
+                .bind("priority" + i, entry.getPriority())
+                .bind("taskId" + i, entry.getTaskId())
+                .bind("data" + i, entry.getData());
+        }
+        return update.execute();
+    }
+
     public void delete(int siteId, LockResult lock, String agentId)
         throws ResourceNotFoundException, ResourceConflictException
     {
@@ -155,6 +321,9 @@ public class DatabaseTaskQueueStore
                 throw new ResourceNotFoundException("Deleting lock does not exist: lock id=" + lock.getLockId() + " site id=" + siteId);
             }
 
+            String tableName = lock.getSharedTask() ? "queued_shared_task_locks" : "queued_task_locks";
+            Multiset<List<Integer>> keys = getRunningCountKeys(handle, tableName, Long.toString(lock.getLockId()));
+
             if (lock.getSharedTask()) {
                 deleted = dao.deleteSharedTaskLock(lock.getLockId(), agentId);
             }
@@ -164,6 +333,8 @@ public class DatabaseTaskQueueStore
             if (deleted == 0) {
                 throw new ResourceConflictException("Deleting lock does not exist or preempted by another agent: lock id=" + lock.getLockId() + " agent id=" + agentId);
             }
+            // the lock was held because hold_agent_id matched
+            addRunningCounts(handle, keys, -1);
 
             return true;
         }, ResourceNotFoundException.class, ResourceConflictException.class);
@@ -171,40 +342,23 @@ public class DatabaseTaskQueueStore
 
     public List<LockResult> lockSharedTasks(int limit, String agentId, int lockSeconds)
     {
-        // optimized implementation of
-        //   select distinct queue_id as id from locks where hold_expire_time is null
+        if (isSharedDatabase()) {
+            return lockSharedTasksInTransaction(limit, agentId, lockSeconds);
+        }
+        synchronized (localLockAttempt) {
+            return lockSharedTasksInTransaction(limit, agentId, lockSeconds);
+        }
+    }
+
+    private List<LockResult> lockSharedTasksInTransaction(int limit, String agentId, int lockSeconds)
+    {
         return transaction((handle, dao, ts) -> {
-            List<Integer> queueIds = handle.createQuery(
-                "with recursive t (queue_id) as (" +
-                    "(" +
-                        "select queue_id from queued_shared_task_locks " +
-                        "where hold_expire_time is null " +
-                        "order by queue_id limit 1" +
-                    ") " +
-                    "union all " +
-                    "select (" +
-                        "select queue_id from queued_shared_task_locks " +
-                        "where hold_expire_time is null and queue_id > t.queue_id " +
-                        "order by queue_id limit 1" +
-                    ") from t where t.queue_id is not null" +
-                ") " +
-                "select queue_id as id from t " +
-                "where queue_id is not null"
-                )
-                .mapTo(int.class)
-                .list();
+            LinkedHashMap<WaitingTenant, Integer> slots = tenantRoundRobin.schedule("shared",
+                    listWaitingTenants(handle, "queued_shared_task_locks", Optional.absent(), limit), limit);
             ImmutableList.Builder<LockResult> builder = ImmutableList.builder();
-            int remaining = limit;
-            for (int queueId : queueIds) {
-                List<Long> lockIds = tryLockTasks(handle, "queued_shared_task_locks", queueId, remaining);
-                if (!lockIds.isEmpty()) {
-                    for (long lockId : lockIds) {
-                        builder.add(LockResult.of(true, lockId));
-                    }
-                    remaining -= lockIds.size();
-                    if (remaining <= 0) {
-                        break;
-                    }
+            for (Map.Entry<Integer, Map<Integer, Integer>> queue : slotsByQueue(slots).entrySet()) {
+                for (long lockId : tryLockTasks(handle, "queued_shared_task_locks", queue.getKey(), queue.getValue())) {
+                    builder.add(LockResult.of(true, lockId));
                 }
             }
             List<LockResult> results = builder.build();
@@ -213,15 +367,247 @@ public class DatabaseTaskQueueStore
         });
     }
 
+    // Tenants are projects in a queue that have waiting tasks. Returns number
+    // of waiting tasks of each tenant at each priority. Only the highest
+    // priority limit tasks of a tenant are counted because a lock attempt
+    // can't take more.
+    private List<WaitingTenant> listWaitingTenants(Handle handle, String tableName, Optional<Integer> queueId, int limit)
+    {
+        String queueFilter = queueId.isPresent() ? "and queue_id = " + queueId.get() + " " : "";
+        if (isSharedDatabase()) {
+            // optimized implementation of
+            //   select queue_id, project_id from locks where hold_expire_time is null group by queue_id, project_id
+            // followed by counting top tasks of each tenant
+            return handle.createQuery(
+                    "with recursive t (queue_id, project_id) as (" +
+                        "(" +
+                            "select queue_id, project_id from " + tableName + " " +
+                            "where hold_expire_time is null " + queueFilter +
+                            "order by queue_id, project_id limit 1" +
+                        ") " +
+                        "union all " +
+                        "select n.queue_id, n.project_id from t " +
+                        "cross join lateral (" +
+                            "select queue_id, project_id from " + tableName + " " +
+                            "where hold_expire_time is null " + queueFilter +
+                            "and (queue_id, project_id) > (t.queue_id, t.project_id) " +
+                            "order by queue_id, project_id limit 1" +
+                        ") n" +
+                    ") " +
+                    "select t.queue_id, t.project_id, w.priority, count(*) as waiting from t " +
+                    "cross join lateral (" +
+                        "select priority from " + tableName + " " +
+                        "where hold_expire_time is null " +
+                        "and queue_id = t.queue_id and project_id = t.project_id " +
+                        "order by priority desc limit :limit" +
+                    ") w " +
+                    "group by t.queue_id, t.project_id, w.priority"
+                )
+                .bind("limit", limit)
+                .map((index, r, ctx) -> new WaitingTenant(r.getInt("queue_id"), r.getInt("project_id"), r.getInt("priority"), r.getInt("waiting")))
+                .list();
+        }
+        else {
+            return handle.createQuery(
+                    "select queue_id, project_id, priority, count(*) as waiting " +
+                    "from " + tableName + " " +
+                    "where hold_expire_time is null " + queueFilter +
+                    "group by queue_id, project_id, priority"
+                )
+                .map((index, r, ctx) -> new WaitingTenant(r.getInt("queue_id"), r.getInt("project_id"), r.getInt("priority"), r.getInt("waiting")))
+                .list();
+        }
+    }
+
+    // {queueId => {projectId => number of tasks}} keeping order of slots
+    private static Map<Integer, Map<Integer, Integer>> slotsByQueue(LinkedHashMap<WaitingTenant, Integer> slots)
+    {
+        Map<Integer, Map<Integer, Integer>> queues = new LinkedHashMap<>();
+        for (Map.Entry<WaitingTenant, Integer> slot : slots.entrySet()) {
+            queues.computeIfAbsent(slot.getKey().getQueueId(), key -> new LinkedHashMap<>())
+                .put(slot.getKey().getProjectId(), slot.getValue());
+        }
+        return queues;
+    }
+
+    public List<LockedTask> lockSharedTasksWithData(int limit, String agentId, int lockSeconds)
+    {
+        if (skipLockedAvailable) {
+            return lockSharedTasksSkipLocked(limit, agentId, lockSeconds);
+        }
+        return withData(lockSharedTasks(limit, agentId, lockSeconds));
+    }
+
+    public List<LockedTask> lockTasksWithData(int siteId, String queueName, int limit, String agentId, int lockSeconds)
+        throws ResourceNotFoundException
+    {
+        return withData(lockTasks(siteId, queueName, limit, agentId, lockSeconds));
+    }
+
+    private List<LockedTask> withData(List<LockResult> locks)
+    {
+        if (locks.isEmpty()) {
+            return ImmutableList.of();
+        }
+        // fetch data of all locked tasks at once. a task deleted concurrently is skipped
+        Map<Long, byte[]> data = autoCommit((handle, dao) ->
+                handle.createQuery(
+                    "select id, data from queued_tasks" +
+                    " where id in (" +
+                        locks.stream()
+                        .map(it -> Long.toString(it.getLockId())).collect(Collectors.joining(", ")) +
+                    ")"
+                    )
+                .map((index, r, ctx) -> Maps.immutableEntry(r.getLong("id"), r.getBytes("data")))
+                .list())
+            .stream()
+            .collect(Collectors.toMap(entry -> entry.getKey(), entry -> entry.getValue()));
+        ImmutableList.Builder<LockedTask> builder = ImmutableList.builder();
+        for (LockResult lock : locks) {
+            byte[] bytes = data.get(lock.getLockId());
+            if (bytes != null) {
+                builder.add(LockedTask.of(lock, bytes));
+            }
+        }
+        return builder.build();
+    }
+
+    private List<LockedTask> lockSharedTasksSkipLocked(int limit, String agentId, int lockSeconds)
+    {
+        // Claims tasks of tenants given by tenantRoundRobin, sets hold and returns their
+        // data in one statement. Rows locked by other agents are skipped instead of
+        // waiting for them.
+        // Number of tasks claimed from a queue is limited by its remaining concurrency.
+        // Counter rows of the queues are locked first as tryLockTasks does so that
+        // concurrent agents don't overcommit. Queues locked by another agent are
+        // skipped in this round.
+        return transaction((handle, dao, ts) -> {
+            LinkedHashMap<WaitingTenant, Integer> scheduled = tenantRoundRobin.schedule("shared",
+                    listWaitingTenants(handle, "queued_shared_task_locks", Optional.absent(), limit), limit);
+            if (scheduled.isEmpty()) {
+                return ImmutableList.of();
+            }
+            Set<Integer> lockedQueueIds = ImmutableSet.copyOf(handle.createQuery(
+                        "select rc.queue_id " +
+                        "from queue_running_counts rc " +
+                        "where rc.resource_type_id = 0 " +
+                        "and rc.queue_id in (" +
+                            scheduled.keySet().stream()
+                            .map(tenant -> Integer.toString(tenant.getQueueId())).distinct().collect(Collectors.joining(", ")) +
+                        ") " +
+                        "order by rc.queue_id " +
+                        "for update of rc skip locked"
+                    )
+                    .mapTo(Integer.class)
+                    .list());
+            LinkedHashMap<WaitingTenant, Integer> slots = new LinkedHashMap<>();
+            for (Map.Entry<WaitingTenant, Integer> slot : scheduled.entrySet()) {
+                if (lockedQueueIds.contains(slot.getKey().getQueueId())) {
+                    slots.put(slot.getKey(), slot.getValue());
+                }
+            }
+            if (slots.isEmpty()) {
+                return ImmutableList.of();
+            }
+            StringBuilder plan = new StringBuilder();
+            int ord = 0;
+            for (Map.Entry<WaitingTenant, Integer> slot : slots.entrySet()) {
+                if (ord > 0) {
+                    plan.append(", ");
+                }
+                plan.append("(" + slot.getKey().getQueueId() + ", " + slot.getKey().getProjectId() + ", " + slot.getValue() + ", " + ord + ")");
+                ord++;
+            }
+
+            Multiset<List<Integer>> keys = HashMultiset.create();
+            List<LockedTask> tasks = handle.createQuery(
+                    "with plan (queue_id, project_id, n, ord) as (" +
+                        "values " + plan +
+                    "), " +
+                    "candidates as (" +
+                        "select l.id, l.queue_id, l.resource_type_id, l.priority, p.ord " +
+                        "from plan p " +
+                        "cross join lateral (" +
+                            "select ks.id, ks.queue_id, ks.resource_type_id, ks.priority " +
+                            "from queued_shared_task_locks ks " +
+                            "where ks.queue_id = p.queue_id " +
+                            "and ks.project_id = p.project_id " +
+                            "and ks.hold_expire_time is null " +
+                            "and not exists (" +
+                                "select * from resource_types rt " +
+                                "join queue_running_counts rc " +
+                                "on rc.queue_id = rt.queue_id and rc.resource_type_id = rt.id " +
+                                "where rt.id = ks.resource_type_id " +
+                                "and rt.max_concurrency <= rc.running" +
+                            ") " +
+                            "order by ks.priority desc, ks.id asc " +
+                            "limit p.n " +
+                            "for update skip locked" +
+                        ") l" +
+                    "), " +
+                    "ranked as (" +
+                        "select c.id, " +
+                        "row_number() over (partition by c.queue_id order by c.ord, c.priority desc, c.id asc) as rn, " +
+                        "q.max_concurrency - coalesce(rc.running, 0) as available, " +
+                        "row_number() over (partition by c.queue_id, c.resource_type_id order by c.priority desc, c.id asc) as resource_rn, " +
+                        "rt.max_concurrency - coalesce(rtc.running, 0) as resource_available " +
+                        "from candidates c " +
+                        "join queues q on q.id = c.queue_id " +
+                        "left join queue_running_counts rc " +
+                        "on rc.queue_id = c.queue_id and rc.resource_type_id = 0 " +
+                        "left join resource_types rt on rt.id = c.resource_type_id " +
+                        "left join queue_running_counts rtc " +
+                        "on rtc.queue_id = c.queue_id and rtc.resource_type_id = c.resource_type_id" +
+                    "), " +
+                    "updated as (" +
+                        "update queued_shared_task_locks " +
+                        "set hold_expire_time = " + statementUnixTimestampSql() + " + :lockSeconds, hold_agent_id = :agentId " +
+                        "where id in (" +
+                            "select id from ranked " +
+                            "where rn <= available " +
+                            "and (resource_available is null or resource_rn <= resource_available)" +
+                        ") " +
+                        "returning id, priority, queue_id, resource_type_id" +
+                    ") " +
+                    "select u.id, u.queue_id, u.resource_type_id, qt.data " +
+                    "from updated u " +
+                    "join queued_tasks qt on qt.id = u.id " +
+                    "order by u.priority desc, u.id asc"
+                    )
+                .bind("lockSeconds", lockSeconds)
+                .bind("agentId", agentId)
+                .map((index, r, ctx) -> {
+                    keys.add(runningCountKey(r));
+                    return LockedTask.of(LockResult.of(true, r.getLong("id")), r.getBytes("data"));
+                })
+                .list();
+            addRunningCounts(handle, keys, 1);
+            return tasks;
+        });
+    }
+
     public List<LockResult> lockTasks(int siteId, String queueName, int limit, String agentId, int lockSeconds)
         throws ResourceNotFoundException
     {
         int queueId = qm.getQueueIdByName(siteId, queueName);
+        if (isSharedDatabase()) {
+            return lockTasksInTransaction(queueId, limit, agentId, lockSeconds);
+        }
+        synchronized (localLockAttempt) {
+            return lockTasksInTransaction(queueId, limit, agentId, lockSeconds);
+        }
+    }
+
+    private List<LockResult> lockTasksInTransaction(int queueId, int limit, String agentId, int lockSeconds)
+    {
         return transaction((handle, dao, ts) -> {
-            List<Long> lockIds = tryLockTasks(handle, "queued_task_locks", queueId, limit);
+            LinkedHashMap<WaitingTenant, Integer> slots = tenantRoundRobin.schedule("queue " + queueId,
+                    listWaitingTenants(handle, "queued_task_locks", Optional.of(queueId), limit), limit);
             ImmutableList.Builder<LockResult> builder = ImmutableList.builder();
-            for (long lockId : lockIds) {
-                builder.add(LockResult.of(false, lockId));
+            for (Map.Entry<Integer, Map<Integer, Integer>> queue : slotsByQueue(slots).entrySet()) {
+                for (long lockId : tryLockTasks(handle, "queued_task_locks", queue.getKey(), queue.getValue())) {
+                    builder.add(LockResult.of(false, lockId));
+                }
             }
             List<LockResult> results = builder.build();
             setHold(handle, "queued_task_locks", results, agentId, lockSeconds);
@@ -234,14 +620,13 @@ public class DatabaseTaskQueueStore
         if (locks.isEmpty()) {
             return;
         }
+        String idList = locks.stream()
+            .map(it -> Long.toString(it.getLockId())).collect(Collectors.joining(", "));
         if (isSharedDatabase()) {
             handle.createStatement(
                     "update " + tableName +
                     " set hold_expire_time = " + statementUnixTimestampSql() + " + :lockSeconds, hold_agent_id = :agentId" +
-                    " where id in (" +
-                        locks.stream()
-                        .map(it -> Long.toString(it.getLockId())).collect(Collectors.joining(", ")) +
-                    ")"
+                    " where id in (" + idList + ")"
                 )
                 .bind("lockSeconds", lockSeconds)
                 .bind("agentId", agentId)
@@ -251,50 +636,157 @@ public class DatabaseTaskQueueStore
             handle.createStatement(
                     "update " + tableName +
                     " set hold_expire_time = :expireTime, hold_agent_id = :agentId" +
-                    " where id in (" +
-                        locks.stream()
-                        .map(it -> Long.toString(it.getLockId())).collect(Collectors.joining(", ")) +
-                    ")"
+                    " where id in (" + idList + ")"
                 )
                 .bind("expireTime", Instant.now().getEpochSecond() + lockSeconds)
                 .bind("agentId", agentId)
                 .execute();
         }
+        addRunningCounts(handle, getRunningCountKeys(handle, tableName, idList), 1);
     }
 
-    public boolean heartbeat(LockResult lock, String agentId, int lockSeconds)
+    // Number of held locks is maintained in queue_running_counts in the same
+    // transaction with hold_expire_time so that lock attempts read one row per
+    // queue and resource type instead of counting held locks.
+    // resource_type_id = 0 is the total of a queue.
+
+    private static List<Integer> runningCountKey(ResultSet r)
+        throws SQLException
     {
-        String tableName = lock.getSharedTask() ? "queued_shared_task_locks" : "queued_task_locks";
+        // getInt returns 0 if resource_type_id is NULL
+        return ImmutableList.of(r.getInt("queue_id"), r.getInt("resource_type_id"));
+    }
 
-        return autoCommit((handle, dao) -> {
-            if (isSharedDatabase()) {
-                return handle.createStatement(
-                        "update " + tableName +
-                        " set hold_expire_time = " + statementUnixTimestampSql() + " + :lockSeconds" +
-                        " where id = :id" +
-                        " and hold_agent_id = :agentId"
-                    )
-                    .bind("lockSeconds", lockSeconds)
-                    .bind("id", lock.getLockId())
-                    .bind("agentId", agentId)
-                    .execute();
+    private Multiset<List<Integer>> getRunningCountKeys(Handle handle, String tableName, String idList)
+    {
+        return HashMultiset.create(
+                handle.createQuery(
+                    "select queue_id, resource_type_id from " + tableName +
+                    " where id in (" + idList + ")"
+                )
+                .map((index, r, ctx) -> runningCountKey(r))
+                .list());
+    }
+
+    private void addRunningCounts(Handle handle, Multiset<List<Integer>> keys, int sign)
+    {
+        // rows are updated in the order of queue totals then resource types
+        // sorted by id to avoid deadlocks with concurrent transactions
+        SortedMap<Integer, Integer> queueCounts = new TreeMap<>();
+        SortedMap<List<Integer>, Integer> resourceCounts = new TreeMap<>(
+                Comparator.<List<Integer>>comparingInt(key -> key.get(0)).thenComparingInt(key -> key.get(1)));
+        for (Multiset.Entry<List<Integer>> entry : keys.entrySet()) {
+            int queueId = entry.getElement().get(0);
+            queueCounts.merge(queueId, entry.getCount(), Integer::sum);
+            if (entry.getElement().get(1) != 0) {
+                resourceCounts.put(entry.getElement(), entry.getCount());
             }
-            else {
-                return handle.createStatement(
-                        "update " + tableName +
-                        " set hold_expire_time = :expireTime" +
-                        " where id = :id" +
-                        " and hold_agent_id = :agentId"
-                    )
-                    .bind("expireTime", Instant.now().getEpochSecond() + lockSeconds)
-                    .bind("id", lock.getLockId())
-                    .bind("agentId", agentId)
-                    .execute();
+        }
+        for (Map.Entry<Integer, Integer> entry : queueCounts.entrySet()) {
+            addRunningCount(handle, entry.getKey(), 0, sign * entry.getValue());
+        }
+        for (Map.Entry<List<Integer>, Integer> entry : resourceCounts.entrySet()) {
+            addRunningCount(handle, entry.getKey().get(0), entry.getKey().get(1), sign * entry.getValue());
+        }
+    }
+
+    private void addRunningCount(Handle handle, int queueId, int resourceTypeId, int delta)
+    {
+        // rows are inserted when the queue or the resource type is created.
+        // the row is locked first so that concurrent transactions update it one by one
+        Integer locked = handle.createQuery(
+                "select running from queue_running_counts" +
+                " where queue_id = :queueId" +
+                " and resource_type_id = :resourceTypeId" +
+                (isSharedDatabase() ? " for update" : "")
+            )
+            .bind("queueId", queueId)
+            .bind("resourceTypeId", resourceTypeId)
+            .mapTo(Integer.class)
+            .first();
+        if (locked == null) {
+            throw new IllegalStateException("Running count of queue id=" + queueId + " resource type id=" + resourceTypeId + " does not exist");
+        }
+        handle.createStatement(
+                "update queue_running_counts" +
+                " set running = running + :delta" +
+                " where queue_id = :queueId" +
+                " and resource_type_id = :resourceTypeId"
+            )
+            .bind("delta", delta)
+            .bind("queueId", queueId)
+            .bind("resourceTypeId", resourceTypeId)
+            .execute();
+    }
+
+    // Extends holds of locks at once. Returns locks that are not held by the agent any more.
+    public List<LockResult> heartbeat(List<LockResult> locks, String agentId, int lockSeconds)
+    {
+        if (locks.isEmpty()) {
+            return ImmutableList.of();
+        }
+        return transaction((handle, dao, ts) -> {
+            ImmutableList.Builder<LockResult> lost = ImmutableList.builder();
+            for (boolean sharedTask : new boolean[] { true, false }) {
+                List<Long> lockIds = locks.stream()
+                    .filter(lock -> lock.getSharedTask() == sharedTask)
+                    .map(lock -> lock.getLockId())
+                    .collect(Collectors.toList());
+                if (lockIds.isEmpty()) {
+                    continue;
+                }
+                String tableName = sharedTask ? "queued_shared_task_locks" : "queued_task_locks";
+                Set<Long> held = ImmutableSet.copyOf(heartbeat(handle, tableName, lockIds, agentId, lockSeconds));
+                for (long lockId : lockIds) {
+                    if (!held.contains(lockId)) {
+                        lost.add(LockResult.of(sharedTask, lockId));
+                    }
+                }
             }
-        }) > 0;
+            return lost.build();
+        });
+    }
+
+    private List<Long> heartbeat(Handle handle, String tableName, List<Long> lockIds, String agentId, int lockSeconds)
+    {
+        String idList = lockIds.stream()
+            .map(id -> Long.toString(id)).collect(Collectors.joining(", "));
+        if (isSharedDatabase()) {
+            return handle.createQuery(
+                    "update " + tableName +
+                    " set hold_expire_time = " + statementUnixTimestampSql() + " + :lockSeconds" +
+                    " where id in (" + idList + ")" +
+                    " and hold_agent_id = :agentId" +
+                    " returning id"
+                )
+                .bind("lockSeconds", lockSeconds)
+                .bind("agentId", agentId)
+                .mapTo(long.class)
+                .list();
+        }
+        else {
+            handle.createStatement(
+                    "update " + tableName +
+                    " set hold_expire_time = :expireTime" +
+                    " where id in (" + idList + ")" +
+                    " and hold_agent_id = :agentId"
+                )
+                .bind("expireTime", Instant.now().getEpochSecond() + lockSeconds)
+                .bind("agentId", agentId)
+                .execute();
+            return handle.createQuery(
+                    "select id from " + tableName +
+                    " where id in (" + idList + ")" +
+                    " and hold_agent_id = :agentId"
+                )
+                .bind("agentId", agentId)
+                .mapTo(long.class)
+                .list();
+        }
     }
 
-    private List<Long> tryLockTasks(Handle handle, String tableName, int qId, int limit)
+    // projectSlots is {projectId => max number of tasks}. Projects are tried in its order.
+    private List<Long> tryLockTasks(Handle handle, String tableName, int qId, Map<Integer, Integer> projectSlots)
     {
         boolean locked;
         try {
@@ -305,77 +797,79 @@ public class DatabaseTaskQueueStore
         }
         if (locked) {
             try {
-                // TODO if isSharedDatabase (postgresql) and skipLockedAvailable is false, use pg_try_advisory_lock
-                //      to lock qId so that only one thread can start a task in a qId concurrently and number of
-                //      running tasks doesn't overcommit
-                if (isSharedDatabase()) {
-                    return handle.createQuery(
-                            "with rr as (" +
-                                "select resource_type_id, count(*) as count " +
-                                "from " + tableName + " " +
-                                "where queue_id = " + qId + " " +
-                                "and hold_expire_time is not null " +
-                                "and resource_type_id is not null " +
-                                "group by resource_type_id" +
-                            ") " +
-                            "select ks.id " +
-                            "from " + tableName + " ks " +
-                            "where exists ( " +
-                                "select * from queues " +
-                                "where id = " + qId + " " +
-                                "and max_concurrency > (select coalesce(sum(count), 0) from rr)" +
-                                (skipLockedAvailable ? " for update skip locked" : "") +
-                            ") " +
-                            "and queue_id = " + qId + " " +
-                            "and not exists ( " +
-                                "select * from resource_types rt " +
-                                "join rr on rt.id = rr.resource_type_id " +
-                                "where rt.id = ks.resource_type_id " +
-                                "and rt.max_concurrency <= count" +
-                            ") " +
-                            "and hold_expire_time is null " +
-                            "order by priority desc, id asc " +
-                            "for update"
-                        )
-                        .mapTo(long.class)
-                        .list();
+                // On postgresql, counter row of the queue is locked so that only one
+                // transaction can start tasks in a qId concurrently and number of running
+                // tasks doesn't overcommit. h2 database doesn't need FOR UPDATE.
+                Integer available = handle.createQuery(
+                        "select q.max_concurrency - rc.running " +
+                        "from queues q " +
+                        "join queue_running_counts rc " +
+                        "on rc.queue_id = q.id and rc.resource_type_id = 0 " +
+                        "where q.id = " + qId +
+                        (isSharedDatabase() ? " for update of rc" : "") +
+                        (skipLockedAvailable ? " skip locked" : "")
+                    )
+                    .mapTo(Integer.class)
+                    .first();
+                if (available == null || available <= 0) {
+                    return ImmutableList.of();
                 }
-                else {
-                    return handle.createQuery(
-                            "select ks.id " +
+
+                // remaining concurrency of resource types used in this queue
+                Map<Integer, Integer> resourceAvailable = new HashMap<>();
+                handle.createQuery(
+                        "select rt.id, rt.max_concurrency - coalesce(rc.running, 0) as available " +
+                        "from resource_types rt " +
+                        "left join queue_running_counts rc " +
+                        "on rc.queue_id = rt.queue_id and rc.resource_type_id = rt.id " +
+                        "where rt.queue_id = " + qId
+                    )
+                    .map((index, r, ctx) -> resourceAvailable.put(r.getInt("id"), r.getInt("available")))
+                    .list();
+                List<Integer> fullResourceTypeIds = resourceAvailable.entrySet().stream()
+                    .filter(entry -> entry.getValue() <= 0)
+                    .map(entry -> entry.getKey())
+                    .collect(Collectors.toList());
+
+                ImmutableList.Builder<Long> builder = ImmutableList.builder();
+                int remaining = available;
+                for (Map.Entry<Integer, Integer> project : projectSlots.entrySet()) {
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    List<Map.Entry<Long, Integer>> candidates = handle.createQuery(
+                            "select ks.id, ks.resource_type_id " +
                             "from " + tableName + " ks " +
                             "where queue_id = " + qId + " " +
-                            "and exists (" +
-                                "select * from queues " +
-                                "where id = " + qId + " " +
-                                "and max_concurrency > (" +
-                                    "select count(*) as count " +
-                                    "from " + tableName + " " +
-                                    "where queue_id = " + qId + " " +
-                                    "and hold_expire_time is not null" +
-                                ")" +
-                            ") " +
-                            "and not exists (" +
-                                "select rt.id " +
-                                "from resource_types rt " +
-                                "join (" +
-                                    "select resource_type_id, count(*) as count " +
-                                    "from " + tableName + " " +
-                                    "where queue_id = " + qId + " " +
-                                    "and hold_expire_time is not null " +
-                                    "and resource_type_id is not null " +
-                                    "group by resource_type_id" +
-                                ") rr on rt.id = rr.resource_type_id " +
-                                "where rt.id = ks.resource_type_id " +
-                                "and rt.max_concurrency <= count" +
-                            ") " +
+                            "and project_id = " + project.getKey() + " " +
                             "and hold_expire_time is null " +
-                            "order by priority desc, id asc"
-                            // h2 database doesn't need FOR UPDATE
+                            (fullResourceTypeIds.isEmpty() ? "" :
+                                "and (resource_type_id is null or resource_type_id not in (" +
+                                    fullResourceTypeIds.stream()
+                                    .map(id -> Integer.toString(id)).collect(Collectors.joining(", ")) +
+                                ")) ") +
+                            "order by priority desc, id asc " +
+                            "limit " + Math.min(project.getValue(), remaining) +
+                            (isSharedDatabase() ? " for update" : "")
                         )
-                        .mapTo(long.class)
+                        .map((index, r, ctx) -> Maps.immutableEntry(r.getLong("id"), r.getInt("resource_type_id")))
                         .list();
+
+                    // a batch may contain more tasks of a resource type than its remaining concurrency
+                    for (Map.Entry<Long, Integer> candidate : candidates) {
+                        int resourceTypeId = candidate.getValue();
+                        if (resourceTypeId != 0 && resourceAvailable.containsKey(resourceTypeId)) {
+                            int rest = resourceAvailable.get(resourceTypeId);
+                            if (rest <= 0) {
+                                continue;
+                            }
+                            resourceAvailable.put(resourceTypeId, rest - 1);
+                        }
+                        builder.add(candidate.getKey());
+                        remaining--;
+                    }
                 }
+                return builder.build();
             }
             finally {
                 localLockMap.unlock(qId);
@@ -386,36 +880,98 @@ public class DatabaseTaskQueueStore
         }
     }
 
-    private void expireLocks()
+    // Refreshes liveness of an agent. Locks held by an agent are released
+    // when it doesn't call this method for livenessSeconds.
+    public void agentHeartbeat(String agentId, int livenessSeconds)
     {
+        autoCommit((handle, dao) -> {
+            int n;
+            if (isSharedDatabase()) {
+                n = handle.createStatement(
+                        "update agents" +
+                        " set expire_time = " + statementUnixTimestampSql() + " + :livenessSeconds" +
+                        " where agent_id = :agentId"
+                    )
+                    .bind("livenessSeconds", livenessSeconds)
+                    .bind("agentId", agentId)
+                    .execute();
+            }
+            else {
+                n = handle.createStatement(
+                        "update agents" +
+                        " set expire_time = :expireTime" +
+                        " where agent_id = :agentId"
+                    )
+                    .bind("expireTime", Instant.now().getEpochSecond() + livenessSeconds)
+                    .bind("agentId", agentId)
+                    .execute();
+            }
+            if (n == 0) {
+                try {
+                    handle.createStatement(
+                            "insert into agents (agent_id, expire_time, created_at)" +
+                            " values (:agentId, :expireTime, now())"
+                        )
+                        .bind("agentId", agentId)
+                        .bind("expireTime", Instant.now().getEpochSecond() + livenessSeconds)
+                        .execute();
+                }
+                catch (UnableToExecuteStatementException ex) {
+                    // the same agent inserted the row concurrently
+                    if (!(ex.getCause() instanceof SQLException) || !isConflictException((SQLException) ex.getCause())) {
+                        throw ex;
+                    }
+                }
+            }
+            return n;
+        });
+    }
+
+    void expireLocks()
+    {
+        releaseDeadAgentLocks();
         expireLocks("queued_shared_task_locks");
         expireLocks("queued_task_locks");
     }
 
-    private void expireLocks(String tableName)
+    private void releaseDeadAgentLocks()
     {
         try {
-            int c = autoCommit((handle, dao) -> {
-                if (isSharedDatabase()) {
-                    return handle.createStatement(
-                            "update " + tableName +
-                            " set hold_expire_time = NULL, hold_agent_id = NULL, retry_count = retry_count + 1" +
-                            " where hold_expire_time is not null" +
-                            " and hold_expire_time < " + statementUnixTimestampSql()
-                        )
-                        .execute();
-                }
-                else {
-                    return handle.createStatement(
-                            "update " + tableName +
-                            " set hold_expire_time = NULL, hold_agent_id = NULL, retry_count = retry_count + 1" +
-                            " where hold_expire_time is not null" +
-                            " and hold_expire_time < :expireTime"
+            List<String> deadAgentIds = autoCommit((handle, dao) ->
+                    handle.createQuery(
+                        "select agent_id from agents" +
+                        " where expire_time < " + currentUnixTimestampSql()
+                    )
+                    .mapTo(String.class)
+                    .list());
+            for (String agentId : deadAgentIds) {
+                int c = releaseLocks("queued_shared_task_locks", "hold_agent_id = :agentId", agentId) +
+                    releaseLocks("queued_task_locks", "hold_agent_id = :agentId", agentId);
+                // the agent may have come back while releasing the locks
+                autoCommit((handle, dao) ->
+                        handle.createStatement(
+                            "delete from agents" +
+                            " where agent_id = :agentId" +
+                            " and expire_time < " + currentUnixTimestampSql()
                         )
-                        .bind("expireTime", Instant.now().getEpochSecond())
-                        .execute();
+                        .bind("agentId", agentId)
+                        .execute());
+                if (c > 0) {
+                    logger.warn("Agent {} is not alive. {} task locks held by the agent are released. Tasks will be retried.", agentId, c);
                 }
-            });
+            }
+        }
+        catch (Throwable t) {
+            logger.error("An uncaught exception is ignored. Lock expireation thread will be retried.", t);
+        }
+    }
+
+    private void expireLocks(String tableName)
+    {
+        try {
+            int c = releaseLocks(tableName,
+                    "hold_expire_time is not null and hold_expire_time < " + currentUnixTimestampSql(),
+                    null);
             if (c > 0) {
                 logger.warn("{} task locks are expired. Tasks will be retried.", c);
             }
@@ -425,6 +981,52 @@ public class DatabaseTaskQueueStore
         }
     }
 
+    // Releases locks matching the condition in chunks and returns number of released locks.
+    // agentId is bound to :agentId if the condition uses it.
+    private int releaseLocks(String tableName, String condition, String agentId)
+    {
+        int total = 0;
+        while (true) {
+            int c = transaction((handle, dao, ts) -> {
+                Multiset<List<Integer>> keys = HashMultiset.create();
+                Query<Map<String, Object>> query = handle.createQuery(
+                        "select id, queue_id, resource_type_id from " + tableName +
+                        " where " + condition +
+                        " order by id" +
+                        " limit " + RELEASE_LOCK_CHUNK_ROWS +
+                        (isSharedDatabase() ? " for update" : "")
+                    );
+                if (agentId != null) {
+                    query.bind("agentId", agentId);
+                }
+                List<Long> lockIds = query
+                    .map((index, r, ctx) -> {
+                        keys.add(runningCountKey(r));
+                        return r.getLong("id");
+                    })
+                    .list();
+                if (lockIds.isEmpty()) {
+                    return 0;
+                }
+                handle.createStatement(
+                        "update " + tableName +
+                        " set hold_expire_time = NULL, hold_agent_id = NULL, retry_count = retry_count + 1" +
+                        " where id in (" +
+                            lockIds.stream()
+                            .map(id -> Long.toString(id)).collect(Collectors.joining(", ")) +
+                        ")"
+                    )
+                    .execute();
+                addRunningCounts(handle, keys, -1);
+                return lockIds.size();
+            });
+            total += c;
+            if (c < RELEASE_LOCK_CHUNK_ROWS) {
+                return total;
+            }
+        }
+    }
+
     public byte[] getTaskData(long lockId)
         throws ResourceNotFoundException
     {
@@ -434,24 +1036,25 @@ public class DatabaseTaskQueueStore
     public interface Dao
     {
         @SqlUpdate("insert into queued_tasks" +
-                " (site_id, queue_id, priority, resource_type_id, task_id, data, created_at)" +
-                " values (:siteId, :queueId, :priority, :resourceTypeId, :taskId, :data, now())")
+                " (site_id, project_id, queue_id, priority, resource_type_id, task_id, data, created_at)" +
+                " values (:siteId, :projectId, :queueId, :priority, :resourceTypeId, :taskId, :data, now())")
         @GetGeneratedKeys
-        long insertQueuedTask(@Bind("siteId") int siteId, @Bind("queueId") int queueId, @Bind("priority") int priority,
+        long insertQueuedTask(@Bind("siteId") int siteId, @Bind("projectId") int projectId,
+                @Bind("queueId") int queueId, @Bind("priority") int priority,
                 @Bind("resourceTypeId") Integer resourceTypeId, @Bind("taskId") long taskId,
                 @Bind("data") byte[] data);
 
         @SqlUpdate("insert into queued_shared_task_locks" +
-                " (id, queue_id, priority, resource_type_id, retry_count, hold_expire_time)" +
-                " values (:id, :queueId, :priority, :resourceTypeId, 0, NULL)")
-        int insertQueuedSharedTaskLock(@Bind("id") long id,
+                " (id, project_id, queue_id, priority, resource_type_id, retry_count, hold_expire_time)" +
+                " values (:id, :projectId, :queueId, :priority, :resourceTypeId, 0, NULL)")
+        int insertQueuedSharedTaskLock(@Bind("id") long id, @Bind("projectId") int projectId,
                 @Bind("queueId") int queueId, @Bind("priority") int priority,
                 @Bind("resourceTypeId") Integer resourceTypeId);
 
         @SqlUpdate("insert into queued_task_locks" +
-                " (id, queue_id, priority, resource_type_id, retry_count, hold_expire_time)" +
-                " values (:id, :queueId, :priority, :resourceTypeId, 0, NULL)")
-        int insertQueuedTaskLock(@Bind("id") long id,
+                " (id, project_id, queue_id, priority, resource_type_id, retry_count, hold_expire_time)" +
+                " values (:id, :projectId, :queueId, :priority, :resourceTypeId, 0, NULL)")
+        int insertQueuedTaskLock(@Bind("id") long id, @Bind("projectId") int projectId,
                 @Bind("queueId") int queueId, @Bind("priority") int priority,
                 @Bind("resourceTypeId") Integer resourceTypeId);
 
@@ -0,0 +1,153 @@
+package io.digdag.core.database;
+
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.PreDestroy;
+import com.google.inject.Inject;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.exceptions.UnableToExecuteStatementException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import io.digdag.client.config.Config;
+import io.digdag.spi.WakeupBus;
+import io.digdag.spi.WakeupBusFactory;
+import io.digdag.core.queue.LocalWakeupBus;
+
+// WakeupBus that polls version numbers of channels stored in
+// wakeup_channels table. This works with any database including h2
+// and PostgreSQL behind a connection pooler that doesn't support LISTEN.
+// Publishes are coalesced. Version of a channel is incremented at most once
+// in wakeup-bus.publish-interval-millis however many times it's published.
+public class DatabaseWakeupBusFactory
+        implements WakeupBusFactory
+{
+    private static final Logger logger = LoggerFactory.getLogger(DatabaseWakeupBusFactory.class);
+
+    private final DBI dbi;
+    private final ScheduledExecutorService pollExecutor;
+    private DatabaseWakeupBus bus;
+
+    @Inject
+    public DatabaseWakeupBusFactory(DBI dbi)
+    {
+        this.dbi = dbi;
+        this.pollExecutor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("wakeup-bus-poller-%d")
+                .build()
+                );
+    }
+
+    public String getType()
+    {
+        return "database";
+    }
+
+    public synchronized WakeupBus getWakeupBus(Config systemConfig)
+    {
+        if (bus == null) {
+            long pollIntervalMillis = systemConfig.get("wakeup-bus.poll-interval-millis", long.class, 200L);
+            long publishIntervalMillis = systemConfig.get("wakeup-bus.publish-interval-millis", long.class, 50L);
+            bus = new DatabaseWakeupBus();
+            pollExecutor.scheduleWithFixedDelay(() -> bus.poll(),
+                    pollIntervalMillis, pollIntervalMillis, TimeUnit.MILLISECONDS);
+            pollExecutor.scheduleWithFixedDelay(() -> bus.flush(),
+                    publishIntervalMillis, publishIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+        return bus;
+    }
+
+    @PreDestroy
+    public synchronized void shutdown()
+    {
+        pollExecutor.shutdown();
+        if (bus != null) {
+            try {
+                pollExecutor.awaitTermination(10, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            bus.flush();
+        }
+    }
+
+    private class DatabaseWakeupBus
+            extends LocalWakeupBus
+    {
+        // accessed only by the poller thread
+        private final Map<String, Long> lastVersions = new HashMap<>();
+        private boolean initialized = false;
+
+        // channels published since the last flush
+        private final Set<String> pendingChannels = ConcurrentHashMap.newKeySet();
+
+        @Override
+        public void publish(String channel)
+        {
+            fire(channel);
+            pendingChannels.add(channel);
+        }
+
+        public void flush()
+        {
+            if (pendingChannels.isEmpty()) {
+                return;
+            }
+            try (Handle handle = dbi.open()) {
+                for (String channel : pendingChannels) {
+                    // a channel published after this removal is flushed next time
+                    pendingChannels.remove(channel);
+                    incrementVersion(handle, channel);
+                }
+            }
+            catch (RuntimeException ex) {
+                logger.warn("Failed to publish notifications", ex);
+            }
+        }
+
+        private void incrementVersion(Handle handle, String channel)
+        {
+            int n = handle.createStatement("update wakeup_channels set version = version + 1 where name = :name")
+                .bind("name", channel)
+                .execute();
+            if (n == 0) {
+                try {
+                    handle.createStatement("insert into wakeup_channels (name, version) values (:name, 1)")
+                        .bind("name", channel)
+                        .execute();
+                }
+                catch (UnableToExecuteStatementException ex) {
+                    // another server inserted the channel concurrently.
+                    // its version change wakes up listeners anyway.
+                }
+            }
+        }
+
+        public void poll()
+        {
+            try (Handle handle = dbi.open()) {
+                for (Map<String, Object> row : handle.createQuery("select name, version from wakeup_channels").list()) {
+                    String channel = (String) row.get("name");
+                    long version = ((Number) row.get("version")).longValue();
+                    Long lastVersion = lastVersions.put(channel, version);
+                    if (initialized && (lastVersion == null || lastVersion != version)) {
+                        fire(channel);
+                    }
+                }
+                initialized = true;
+            }
+            catch (RuntimeException ex) {
+                logger.warn("Failed to poll wakeup channels", ex);
+            }
+        }
+    }
+}
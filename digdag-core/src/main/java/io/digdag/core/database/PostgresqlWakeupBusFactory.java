@@ -0,0 +1,233 @@
+package io.digdag.core.database;
+
+import java.util.Set;
+import java.util.HashSet;
+import java.util.List;
+import java.util.ArrayList;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.sql.SQLException;
+import javax.annotation.PreDestroy;
+import com.google.inject.Inject;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import io.digdag.client.config.Config;
+import io.digdag.spi.WakeupBus;
+import io.digdag.spi.WakeupBusFactory;
+import io.digdag.core.queue.LocalWakeupBus;
+
+// WakeupBus using LISTEN/NOTIFY of PostgreSQL. A dedicated connection
+// outside of the connection pool keeps listening channels and a thread
+// polls notifications on it. The connection doesn't take a slot of the pool
+// used by transactions.
+//
+// Publishing doesn't touch the database either. Published channels are
+// marked pending and the listener thread sends one NOTIFY per channel on its
+// connection at most once in wakeup-bus.publish-interval-millis.
+public class PostgresqlWakeupBusFactory
+        implements WakeupBusFactory
+{
+    private static final Logger logger = LoggerFactory.getLogger(PostgresqlWakeupBusFactory.class);
+
+    private final DatabaseConfig config;
+    private PostgresqlWakeupBus bus;
+
+    @Inject
+    public PostgresqlWakeupBusFactory(DatabaseConfig config)
+    {
+        this.config = config;
+    }
+
+    public String getType()
+    {
+        return "postgresql";
+    }
+
+    public synchronized WakeupBus getWakeupBus(Config systemConfig)
+    {
+        if (bus == null) {
+            long pollIntervalMillis = systemConfig.get("wakeup-bus.poll-interval-millis", long.class, 500L);
+            long publishIntervalMillis = systemConfig.get("wakeup-bus.publish-interval-millis", long.class, 50L);
+            bus = new PostgresqlWakeupBus(pollIntervalMillis, publishIntervalMillis);
+            bus.start();
+        }
+        return bus;
+    }
+
+    @PreDestroy
+    public synchronized void shutdown()
+    {
+        if (bus != null) {
+            bus.shutdown();
+        }
+    }
+
+    private class PostgresqlWakeupBus
+            extends LocalWakeupBus
+            implements Runnable
+    {
+        private final long pollIntervalMillis;
+        private final long publishIntervalMillis;
+        private final Thread thread;
+        private volatile boolean stop = false;
+
+        // channels published since the last flush. guarded by itself
+        private final Set<String> pendingChannels = new HashSet<>();
+
+        public PostgresqlWakeupBus(long pollIntervalMillis, long publishIntervalMillis)
+        {
+            this.pollIntervalMillis = pollIntervalMillis;
+            this.publishIntervalMillis = publishIntervalMillis;
+            this.thread = new Thread(this, "wakeup-bus-listener");
+            this.thread.setDaemon(true);
+        }
+
+        public void start()
+        {
+            thread.start();
+        }
+
+        public void shutdown()
+        {
+            stop = true;
+            thread.interrupt();
+        }
+
+        @Override
+        public void publish(String channel)
+        {
+            // listeners in this process are woken up through the notification
+            // as well but waking up them here doesn't wait for the roundtrip.
+            fire(channel);
+            synchronized (pendingChannels) {
+                if (pendingChannels.add(channel)) {
+                    pendingChannels.notifyAll();
+                }
+            }
+        }
+
+        private List<String> takePendingChannels()
+        {
+            synchronized (pendingChannels) {
+                List<String> channels = new ArrayList<>(pendingChannels);
+                pendingChannels.clear();
+                return channels;
+            }
+        }
+
+        // waits until a channel is published or the poll interval passes
+        private void waitForPublish()
+        {
+            boolean published;
+            synchronized (pendingChannels) {
+                if (pendingChannels.isEmpty()) {
+                    try {
+                        pendingChannels.wait(pollIntervalMillis);
+                    }
+                    catch (InterruptedException ex) {
+                        // shutdown() interrupts this thread
+                        return;
+                    }
+                }
+                published = !pendingChannels.isEmpty();
+            }
+            if (published) {
+                // coalesces channels published following this one
+                sleep(publishIntervalMillis);
+            }
+        }
+
+        @Override
+        public void run()
+        {
+            while (!stop) {
+                try (Connection conn = DriverManager.getConnection(
+                            DatabaseConfig.buildJdbcUrl(config), DatabaseConfig.buildJdbcProperties(config))) {
+                    listen(conn);
+                }
+                catch (SQLException | RuntimeException ex) {
+                    if (stop) {
+                        break;
+                    }
+                    logger.warn("Failed to listen notifications. Retrying", ex);
+                }
+
+                // notifications could be missed while reconnecting
+                for (String channel : getSubscribedChannels()) {
+                    fire(channel);
+                }
+                sleep(1000);
+            }
+        }
+
+        private void listen(Connection conn)
+            throws SQLException
+        {
+            conn.setAutoCommit(true);
+            PGConnection pgConn = conn.unwrap(PGConnection.class);
+            Set<String> listening = new HashSet<>();
+            try (Statement stmt = conn.createStatement()) {
+                while (!stop) {
+                    for (String channel : getSubscribedChannels()) {
+                        if (listening.add(channel)) {
+                            // channel names are constants that are valid identifiers
+                            stmt.execute("listen " + channel);
+                        }
+                    }
+
+                    notifyPendingChannels(stmt);
+
+                    // PostgreSQL JDBC driver receives notifications only when
+                    // it sends a query
+                    stmt.execute("select 1");
+                    PGNotification[] notifications = pgConn.getNotifications();
+                    if (notifications != null) {
+                        Set<String> channels = new HashSet<>();
+                        for (PGNotification notification : notifications) {
+                            channels.add(notification.getName());
+                        }
+                        for (String channel : channels) {
+                            fire(channel);
+                        }
+                    }
+
+                    waitForPublish();
+                }
+            }
+        }
+
+        private void notifyPendingChannels(Statement stmt)
+            throws SQLException
+        {
+            List<String> channels = takePendingChannels();
+            try {
+                for (String channel : channels) {
+                    // this connection is in autocommit mode. Listeners on this
+                    // connection including this server receive it as well.
+                    // channel names are constants that are valid identifiers
+                    stmt.execute("notify " + channel);
+                }
+            }
+            catch (SQLException ex) {
+                // sent again after reconnecting
+                synchronized (pendingChannels) {
+                    pendingChannels.addAll(channels);
+                }
+                throw ex;
+            }
+        }
+
+        private void sleep(long millis)
+        {
+            try {
+                Thread.sleep(millis);
+            }
+            catch (InterruptedException ex) {
+                // shutdown() interrupts this thread
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package io.digdag.core.database;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.IntUnaryOperator;
+import java.util.stream.Collectors;
+
+/**
+ * Decides how many tasks to take from each tenant, a project in a queue,
+ * in a lock attempt so that a project with a large backlog doesn't starve
+ * other projects.
+ *
+ * Higher priority tasks come first. Slots of a priority level are filled
+ * before lower levels get any. Within a level, slots are given in rounds. In
+ * a round, a tenant gets as many slots as the weight of its project
+ * (queue.projects.<project id>.weight, 1 by default) but no more than its
+ * tasks waiting at the level, and slots a tenant can't use go to the others.
+ * Tenants are served in round-robin order starting from the tenant next to
+ * the one served last in the previous attempt.
+ */
+class TenantRoundRobin
+{
+    // number of tasks of a tenant waiting at a priority
+    public static class WaitingTenant
+    {
+        private final int queueId;
+        private final int projectId;
+        private final int priority;
+        private final int waiting;
+
+        public WaitingTenant(int queueId, int projectId, int priority, int waiting)
+        {
+            this.queueId = queueId;
+            this.projectId = projectId;
+            this.priority = priority;
+            this.waiting = waiting;
+        }
+
+        public int getQueueId()
+        {
+            return queueId;
+        }
+
+        public int getProjectId()
+        {
+            return projectId;
+        }
+
+        public int getPriority()
+        {
+            return priority;
+        }
+
+        public int getWaiting()
+        {
+            return waiting;
+        }
+    }
+
+    private static final Comparator<WaitingTenant> KEY_ORDER =
+        Comparator.comparingInt(WaitingTenant::getQueueId)
+        .thenComparingInt(WaitingTenant::getProjectId);
+
+    private final IntUnaryOperator projectWeight;
+
+    // {scope => tenant served last}
+    private final Map<String, WaitingTenant> lastServed = new HashMap<>();
+
+    public TenantRoundRobin(IntUnaryOperator projectWeight)
+    {
+        this.projectWeight = projectWeight;
+    }
+
+    // tenants may include multiple entries of a tenant at different priorities.
+    // Returned map has one entry per tenant in the order slots are given.
+    public synchronized LinkedHashMap<WaitingTenant, Integer> schedule(String scope, List<WaitingTenant> tenants, int limit)
+    {
+        LinkedHashMap<WaitingTenant, Integer> slots = new LinkedHashMap<>();
+        if (tenants.isEmpty() || limit <= 0) {
+            return slots;
+        }
+
+        Map<Integer, List<WaitingTenant>> levels = tenants.stream()
+            .collect(Collectors.groupingBy(WaitingTenant::getPriority));
+        List<Integer> priorities = levels.keySet().stream()
+            .sorted(Comparator.reverseOrder())
+            .collect(Collectors.toList());
+
+        // a tenant appearing at multiple levels gets slots as one entry
+        TreeMap<WaitingTenant, WaitingTenant> keys = new TreeMap<>(KEY_ORDER);
+
+        WaitingTenant last = null;
+        int remaining = limit;
+        for (int priority : priorities) {
+            List<WaitingTenant> order = rotate(levels.get(priority), lastServed.get(scope));
+            int[] left = order.stream().mapToInt(WaitingTenant::getWaiting).toArray();
+            boolean progress = true;
+            while (remaining > 0 && progress) {
+                progress = false;
+                for (int i = 0; i < order.size() && remaining > 0; i++) {
+                    WaitingTenant tenant = order.get(i);
+                    int n = Math.min(Math.min(projectWeight.applyAsInt(tenant.getProjectId()), left[i]), remaining);
+                    if (n <= 0) {
+                        continue;
+                    }
+                    WaitingTenant key = keys.computeIfAbsent(tenant, t -> t);
+                    slots.merge(key, n, Integer::sum);
+                    left[i] -= n;
+                    remaining -= n;
+                    last = tenant;
+                    progress = true;
+                }
+            }
+            if (remaining <= 0) {
+                break;
+            }
+        }
+        if (last != null) {
+            lastServed.put(scope, last);
+        }
+        return slots;
+    }
+    private static List<WaitingTenant> rotate(List<WaitingTenant> tenants, WaitingTenant last)
+    {
+        List<WaitingTenant> sorted = new ArrayList<>(tenants);
+        sorted.sort(KEY_ORDER);
+        if (last == null) {
+            return sorted;
+        }
+        int start = 0;
+        while (start < sorted.size() && KEY_ORDER.compare(sorted.get(start), last) <= 0) {
+            start++;
+        }
+        List<WaitingTenant> rotated = new ArrayList<>(sorted.subList(start, sorted.size()));
+        rotated.addAll(sorted.subList(0, start));
+        return rotated;
+    }
+}
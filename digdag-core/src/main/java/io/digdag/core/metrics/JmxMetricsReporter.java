@@ -0,0 +1,37 @@
+package io.digdag.core.metrics;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import com.google.inject.Inject;
+import com.codahale.metrics.JmxReporter;
+import com.codahale.metrics.MetricRegistry;
+import io.digdag.client.config.Config;
+
+public class JmxMetricsReporter
+{
+    private final JmxReporter reporter;
+    private final boolean enabled;
+
+    @Inject
+    public JmxMetricsReporter(MetricRegistry registry, Config systemConfig)
+    {
+        this.reporter = JmxReporter.forRegistry(registry)
+            .inDomain(systemConfig.get("metrics.jmx.domain", String.class, "io.digdag"))
+            .build();
+        this.enabled = systemConfig.get("metrics.jmx.enabled", boolean.class, false);
+    }
+
+    @PostConstruct
+    public void start()
+    {
+        if (enabled) {
+            reporter.start();
+        }
+    }
+
+    @PreDestroy
+    public void stop()
+    {
+        reporter.stop();
+    }
+}
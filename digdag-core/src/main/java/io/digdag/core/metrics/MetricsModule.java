@@ -0,0 +1,17 @@
+package io.digdag.core.metrics;
+
+import com.google.inject.Module;
+import com.google.inject.Binder;
+import com.google.inject.Scopes;
+import com.codahale.metrics.MetricRegistry;
+
+public class MetricsModule
+        implements Module
+{
+    @Override
+    public void configure(Binder binder)
+    {
+        binder.bind(MetricRegistry.class).in(Scopes.SINGLETON);
+        binder.bind(JmxMetricsReporter.class).asEagerSingleton();
+    }
+}
@@ -0,0 +1,101 @@
+package io.digdag.core.queue;
+
+import java.util.List;
+import java.util.stream.Collectors;
+import com.google.common.base.Optional;
+import io.digdag.client.DigdagClient;
+import io.digdag.client.api.RestAgentHeartbeatRequest;
+import io.digdag.client.api.RestTaskHeartbeatRequest;
+import io.digdag.client.api.RestTaskLockRequest;
+import io.digdag.client.api.RestTaskLockResult;
+import io.digdag.client.config.Config;
+import io.digdag.spi.TaskQueueClient;
+import io.digdag.spi.TaskRequest;
+import io.digdag.spi.TaskStateException;
+import static io.digdag.core.queue.QueueSettingStore.DEFAULT_QUEUE_NAME;
+
+/**
+ * TaskQueueClient that takes tasks through REST API of a digdag server
+ * so that agents don't need connections to the database.
+ */
+public class HttpTaskQueueClient
+        implements TaskQueueClient
+{
+    // credential of agents. See server.queue-api.agent-token
+    public static final String AGENT_TOKEN_HEADER = "X-Digdag-Agent-Token";
+
+    private final DigdagClient client;
+
+    public HttpTaskQueueClient(DigdagClient client)
+    {
+        this.client = client;
+    }
+
+    @Override
+    public List<TaskRequest> lockSharedTasks(int limit, String agentId, int lockSeconds, long maxSleepMillis)
+    {
+        return lockTasks(Optional.absent(), limit, agentId, lockSeconds, maxSleepMillis);
+    }
+
+    @Override
+    public List<TaskRequest> lockTasks(int siteId, String queueName, int limit, String agentId, int lockSeconds, long maxSleepMillis)
+    {
+        // site id is decided by the server from authentication
+        return lockTasks(Optional.of(queueName), limit, agentId, lockSeconds, maxSleepMillis);
+    }
+
+    private List<TaskRequest> lockTasks(Optional<String> queueName, int limit, String agentId, int lockSeconds, long maxSleepMillis)
+    {
+        RestTaskLockResult result = client.lockTasks(
+                RestTaskLockRequest.builder()
+                .queueName(queueName.transform(name -> name.equals(DEFAULT_QUEUE_NAME) ? null : name))
+                .limit(limit)
+                .agentId(agentId)
+                .lockSeconds(lockSeconds)
+                .maxSleepMillis(maxSleepMillis)
+                .build());
+        return result.getTasks().stream()
+            .map(task -> task.convert(TaskRequest.class))
+            .collect(Collectors.toList());
+    }
+
+    @Override
+    public List<String> taskHeartbeat(int siteId, List<String> lockedIds, String agentId, int lockSeconds)
+        throws TaskStateException
+    {
+        return client.taskHeartbeat(
+                RestTaskHeartbeatRequest.builder()
+                .lockIds(lockedIds)
+                .agentId(agentId)
+                .lockSeconds(lockSeconds)
+                .build())
+            .getLostLockIds();
+    }
+
+    @Override
+    public void agentHeartbeat(String agentId, int livenessSeconds)
+    {
+        client.agentHeartbeat(RestAgentHeartbeatRequest.of(agentId, livenessSeconds));
+    }
+
+    static Optional<HttpTaskQueueClient> fromConfig(Config systemConfig)
+    {
+        Optional<String> host = systemConfig.getOptional("agent.server.host", String.class);
+        if (!host.isPresent()) {
+            return Optional.absent();
+        }
+        DigdagClient.Builder builder = DigdagClient.builder()
+            .host(host.get())
+            .port(systemConfig.get("agent.server.port", int.class, 65432))
+            .ssl(systemConfig.get("agent.server.ssl", boolean.class, false));
+        Optional<String> authorization = systemConfig.getOptional("agent.server.authorization", String.class);
+        if (authorization.isPresent()) {
+            builder.header("Authorization", authorization.get());
+        }
+        Optional<String> agentToken = systemConfig.getOptional("agent.server.agent-token", String.class);
+        if (agentToken.isPresent()) {
+            builder.header(AGENT_TOKEN_HEADER, agentToken.get());
+        }
+        return Optional.of(new HttpTaskQueueClient(builder.build()));
+    }
+}
@@ -0,0 +1,57 @@
+package io.digdag.core.queue;
+
+import java.util.List;
+import java.util.Set;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Multimaps;
+import com.google.common.collect.ArrayListMultimap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import io.digdag.spi.WakeupBus;
+
+// WakeupBus that wakes up listeners only in this process.
+// Implementations that deliver notices across servers extend this class.
+public class LocalWakeupBus
+        implements WakeupBus
+{
+    private static final Logger logger = LoggerFactory.getLogger(LocalWakeupBus.class);
+
+    private final ListMultimap<String, Runnable> listeners = Multimaps.synchronizedListMultimap(ArrayListMultimap.create());
+
+    @Override
+    public void publish(String channel)
+    {
+        fire(channel);
+    }
+
+    @Override
+    public void subscribe(String channel, Runnable listener)
+    {
+        listeners.put(channel, listener);
+    }
+
+    protected Set<String> getSubscribedChannels()
+    {
+        synchronized (listeners) {
+            return ImmutableSet.copyOf(listeners.keySet());
+        }
+    }
+
+    protected void fire(String channel)
+    {
+        List<Runnable> list;
+        synchronized (listeners) {
+            list = ImmutableList.copyOf(listeners.get(channel));
+        }
+        for (Runnable listener : list) {
+            try {
+                listener.run();
+            }
+            catch (RuntimeException ex) {
+                logger.error("Uncaught exception in a wakeup listener of channel {}", channel, ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package io.digdag.core.queue;
+
+import io.digdag.spi.WakeupBus;
+import io.digdag.spi.WakeupBusFactory;
+import io.digdag.client.config.Config;
+
+public class LocalWakeupBusFactory
+        implements WakeupBusFactory
+{
+    public String getType()
+    {
+        return "local";
+    }
+
+    public WakeupBus getWakeupBus(Config systemConfig)
+    {
+        return new LocalWakeupBus();
+    }
+}
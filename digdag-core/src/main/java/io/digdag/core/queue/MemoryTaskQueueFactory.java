@@ -0,0 +1,365 @@
+package io.digdag.core.queue;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.inject.Inject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import io.digdag.client.config.Config;
+import io.digdag.core.repository.ResourceConflictException;
+import io.digdag.core.repository.ResourceNotFoundException;
+import io.digdag.spi.TaskQueue;
+import io.digdag.spi.TaskQueueClient;
+import io.digdag.spi.TaskQueueFactory;
+import io.digdag.spi.TaskQueueServer;
+import io.digdag.spi.TaskRequest;
+import io.digdag.spi.TaskStateException;
+import static io.digdag.core.queue.QueueSettingStore.DEFAULT_QUEUE_NAME;
+
+/**
+ * Task queue that keeps tasks in memory of this process.
+ *
+ * This is for local mode and single-node servers where agents run in the same
+ * process. Queued tasks are lost when the process exits, so this is not
+ * suitable if the database outlives the process; tasks that were queued
+ * but not finished stay RUNNING. Max concurrency of resource types and named
+ * queues is applied; the number of running tasks of the shared queue is limited
+ * by agent threads.
+ */
+public class MemoryTaskQueueFactory
+        implements TaskQueueFactory
+{
+    private final QueueSettingStoreManager qm;
+    private final TaskQueueMetrics metrics;
+
+    @Inject
+    public MemoryTaskQueueFactory(QueueSettingStoreManager qm, TaskQueueMetrics metrics)
+    {
+        this.qm = qm;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public String getType()
+    {
+        return "memory";
+    }
+
+    @Override
+    public TaskQueue getTaskQueue(Config systemConfig)
+    {
+        return new MemoryTaskQueue(systemConfig, qm, metrics,
+                systemConfig.get("queue.memory.expire-lock-interval", int.class, 10));
+    }
+
+    private static class QueuedTask
+    {
+        private final long lockId;
+        private final TaskRequest request;
+
+        // set while an agent holds the lock
+        private volatile String agentId;
+        private volatile long holdExpireMillis;
+
+        QueuedTask(long lockId, TaskRequest request)
+        {
+            this.lockId = lockId;
+            this.request = request;
+        }
+    }
+
+    public static class MemoryTaskQueue
+            implements TaskQueue, TaskQueueServer
+    {
+        private static final Logger logger = LoggerFactory.getLogger(MemoryTaskQueue.class);
+
+        private static final Comparator<QueuedTask> ORDER =
+            Comparator.<QueuedTask>comparingInt(task -> -task.request.getPriority())
+            .thenComparingLong(task -> task.lockId);
+
+        private final AtomicLong nextLockId = new AtomicLong(1);
+        private final Config systemConfig;
+        private final QueueSettingStoreManager qm;
+        private final TaskQueueMetrics metrics;
+        private final long expireLockIntervalMillis;
+
+        // all queued tasks including locked ones. {taskId => QueuedTask}
+        private final Map<Long, QueuedTask> tasks = new ConcurrentHashMap<>();
+        // tasks of the shared queue waiting for an agent
+        private final PriorityBlockingQueue<QueuedTask> waiting = new PriorityBlockingQueue<>(64, ORDER);
+        // tasks of named queues waiting for an agent. {[siteId, queueName] => tasks}
+        private final Map<List<Object>, PriorityBlockingQueue<QueuedTask>> customWaiting = new ConcurrentHashMap<>();
+        // locked tasks. {lockId => QueuedTask}
+        private final Map<Long, QueuedTask> locked = new ConcurrentHashMap<>();
+
+        // number of locked tasks for each resource type of a queue as same as
+        // DatabaseTaskQueueFactory. {[siteId, queueName, resourceType] => count} guarded by waiting
+        private final Map<List<Object>, Integer> resourceRunning = new HashMap<>();
+        private final Map<String, Integer> resourceMaxConcurrency = new ConcurrentHashMap<>();
+        // number of locked tasks for each named queue. {[siteId, queueName] => count} guarded by waiting
+        private final Map<List<Object>, Integer> queueRunning = new HashMap<>();
+        private final Map<List<Object>, Integer> queueMaxConcurrency = new ConcurrentHashMap<>();
+
+        private final AtomicLong lastExpireCheckMillis = new AtomicLong(0);
+
+        MemoryTaskQueue(Config systemConfig, QueueSettingStoreManager qm, TaskQueueMetrics metrics, int expireLockIntervalSeconds)
+        {
+            this.systemConfig = systemConfig;
+            this.qm = qm;
+            this.metrics = metrics;
+            this.expireLockIntervalMillis = TimeUnit.SECONDS.toMillis(expireLockIntervalSeconds);
+        }
+
+        @Override
+        public TaskQueueServer getServer()
+        {
+            return this;
+        }
+
+        @Override
+        public TaskQueueClient getDirectClientIfSupported()
+        {
+            return this;
+        }
+
+        @Override
+        public void enqueue(TaskRequest request)
+            throws TaskStateException
+        {
+            enqueue(ImmutableList.of(request));
+        }
+
+        @Override
+        public void enqueue(List<TaskRequest> requests)
+            throws TaskStateException
+        {
+            // a batch is enqueued atomically as same as DatabaseTaskQueueFactory
+            List<QueuedTask> added = new ArrayList<>();
+            for (TaskRequest request : requests) {
+                QueuedTask task = new QueuedTask(nextLockId.getAndIncrement(), request);
+                if (tasks.putIfAbsent(request.getTaskId(), task) != null) {
+                    for (QueuedTask a : added) {
+                        tasks.remove(a.request.getTaskId(), a);
+                    }
+                    throw new TaskStateException(new ResourceConflictException(
+                                "Task id=" + request.getTaskId() + " is already queued"));
+                }
+                added.add(task);
+            }
+            for (QueuedTask task : added) {
+                waitingQueueOf(task).add(task);
+            }
+            synchronized (waiting) {
+                waiting.notifyAll();
+            }
+        }
+
+        private PriorityBlockingQueue<QueuedTask> waitingQueueOf(QueuedTask task)
+        {
+            Optional<List<Object>> queueKey = customQueueKeyOf(task);
+            if (queueKey.isPresent()) {
+                return customWaitingQueue(queueKey.get());
+            }
+            else {
+                return waiting;
+            }
+        }
+
+        private static Optional<List<Object>> customQueueKeyOf(QueuedTask task)
+        {
+            if (task.request.getQueueName().equals(DEFAULT_QUEUE_NAME)) {
+                return Optional.absent();
+            }
+            return Optional.of(ImmutableList.of(task.request.getSiteId(), task.request.getQueueName()));
+        }
+
+        private PriorityBlockingQueue<QueuedTask> customWaitingQueue(List<Object> queueKey)
+        {
+            return customWaiting.computeIfAbsent(queueKey,
+                    key -> new PriorityBlockingQueue<>(64, ORDER));
+        }
+
+        @Override
+        public List<TaskRequest> lockSharedTasks(int limit, String agentId, int lockSeconds, long maxSleepMillis)
+        {
+            return lockTasks(Optional.absent(), waiting, limit, agentId, lockSeconds, maxSleepMillis);
+        }
+
+        @Override
+        public List<TaskRequest> lockTasks(int siteId, String queueName, int limit, String agentId, int lockSeconds, long maxSleepMillis)
+        {
+            List<Object> queueKey = ImmutableList.of(siteId, queueName);
+            return lockTasks(Optional.of(queueKey), customWaitingQueue(queueKey), limit, agentId, lockSeconds, maxSleepMillis);
+        }
+
+        private List<TaskRequest> lockTasks(Optional<List<Object>> queueKey, PriorityBlockingQueue<QueuedTask> queue,
+                int limit, String agentId, int lockSeconds, long maxSleepMillis)
+        {
+            expireLocksIfNecessary();
+
+            // waiting tasks may not be empty even if nothing is polled because of
+            // resource limits. Polling and sleeping are done while holding the
+            // monitor so that a notification between them is not missed.
+            // The monitor of waiting is used for all queues.
+            synchronized (waiting) {
+                int available = limit;
+                if (queueKey.isPresent()) {
+                    available = Math.min(limit, getQueueMaxConcurrency(queueKey.get()) - queueRunning.getOrDefault(queueKey.get(), 0));
+                }
+                List<TaskRequest> results = pollTasks(queue, available, agentId, lockSeconds);
+                metrics.tasksLocked(results);
+                if (results.isEmpty() && maxSleepMillis >= 0) {
+                    try {
+                        waiting.wait(maxSleepMillis);
+                    }
+                    catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return results;
+            }
+        }
+
+        // called while holding the monitor of waiting
+        private List<TaskRequest> pollTasks(PriorityBlockingQueue<QueuedTask> queue, int limit, String agentId, int lockSeconds)
+        {
+            ImmutableList.Builder<TaskRequest> builder = ImmutableList.builder();
+            List<QueuedTask> deferred = new ArrayList<>();
+            int count = 0;
+            while (count < limit) {
+                QueuedTask task = queue.poll();
+                if (task == null) {
+                    break;
+                }
+                if (task.request.getResourceType().isPresent()) {
+                    String resourceType = task.request.getResourceType().get();
+                    List<Object> resourceKey = resourceKeyOf(task);
+                    int running = resourceRunning.getOrDefault(resourceKey, 0);
+                    if (running >= getResourceMaxConcurrency(resourceType)) {
+                        deferred.add(task);
+                        continue;
+                    }
+                    resourceRunning.put(resourceKey, running + 1);
+                }
+                Optional<List<Object>> queueKey = customQueueKeyOf(task);
+                if (queueKey.isPresent()) {
+                    queueRunning.merge(queueKey.get(), 1, Integer::sum);
+                }
+                task.agentId = agentId;
+                task.holdExpireMillis = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(lockSeconds);
+                locked.put(task.lockId, task);
+                builder.add(TaskRequest.withLockId(task.request, Long.toString(task.lockId)));
+                count++;
+            }
+            queue.addAll(deferred);
+            return builder.build();
+        }
+
+        private static List<Object> resourceKeyOf(QueuedTask task)
+        {
+            return ImmutableList.of(task.request.getSiteId(), task.request.getQueueName(), task.request.getResourceType().get());
+        }
+
+        private int getResourceMaxConcurrency(String resourceType)
+        {
+            return resourceMaxConcurrency.computeIfAbsent(resourceType,
+                    name -> TaskQueueManager.getResourceTypeMaxConcurrency(systemConfig, name));
+        }
+
+        private int getQueueMaxConcurrency(List<Object> queueKey)
+        {
+            // max_concurrency of queues is read from the database as same as DatabaseTaskQueueFactory
+            return queueMaxConcurrency.computeIfAbsent(queueKey,
+                    key -> qm.getQueueMaxConcurrency((int) key.get(0), (String) key.get(1)));
+        }
+
+        // called while holding the monitor of waiting
+        private void releaseResource(QueuedTask task)
+        {
+            if (task.request.getResourceType().isPresent()) {
+                resourceRunning.computeIfPresent(resourceKeyOf(task),
+                        (key, running) -> running > 1 ? running - 1 : null);
+            }
+            Optional<List<Object>> queueKey = customQueueKeyOf(task);
+            if (queueKey.isPresent()) {
+                queueRunning.computeIfPresent(queueKey.get(),
+                        (key, running) -> running > 1 ? running - 1 : null);
+            }
+        }
+
+        @Override
+        public List<String> taskHeartbeat(int siteId, List<String> lockedIds, String agentId, int lockSeconds)
+        {
+            long expireMillis = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(lockSeconds);
+            ImmutableList.Builder<String> lost = ImmutableList.builder();
+            for (String lockId : lockedIds) {
+                QueuedTask task = locked.get(Long.parseLong(lockId));
+                if (task != null && agentId.equals(task.agentId)) {
+                    task.holdExpireMillis = expireMillis;
+                }
+                else {
+                    lost.add(lockId);
+                }
+            }
+            return lost.build();
+        }
+
+        @Override
+        public void delete(int siteId, String lockId, String agentId)
+            throws TaskStateException
+        {
+            QueuedTask task = locked.get(Long.parseLong(lockId));
+            if (task == null || task.request.getSiteId() != siteId) {
+                throw new TaskStateException(new ResourceNotFoundException("Deleting lock does not exist: lock id=" + lockId + " site id=" + siteId));
+            }
+            if (!agentId.equals(task.agentId) || !locked.remove(task.lockId, task)) {
+                throw new TaskStateException(new ResourceConflictException("Deleting lock does not exist or preempted by another agent: lock id=" + lockId + " agent id=" + agentId));
+            }
+            tasks.remove(task.request.getTaskId(), task);
+            if (task.request.getResourceType().isPresent() || customQueueKeyOf(task).isPresent()) {
+                synchronized (waiting) {
+                    releaseResource(task);
+                    // agents may be waiting for the resource or the queue
+                    waiting.notifyAll();
+                }
+            }
+        }
+
+        private void expireLocksIfNecessary()
+        {
+            long now = System.currentTimeMillis();
+            long last = lastExpireCheckMillis.get();
+            if (now - last < expireLockIntervalMillis || !lastExpireCheckMillis.compareAndSet(last, now)) {
+                return;
+            }
+
+            int c = 0;
+            synchronized (waiting) {
+                for (QueuedTask task : locked.values()) {
+                    // a lock may be deleted by its agent concurrently
+                    if (task.holdExpireMillis < now && locked.remove(task.lockId, task)) {
+                        task.agentId = null;
+                        releaseResource(task);
+                        waitingQueueOf(task).add(task);
+                        c++;
+                    }
+                }
+                if (c > 0) {
+                    waiting.notifyAll();
+                }
+            }
+            if (c > 0) {
+                logger.warn("{} task locks are expired. Tasks will be retried.", c);
+            }
+        }
+    }
+}
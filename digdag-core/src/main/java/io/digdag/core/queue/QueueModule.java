@@ -6,7 +6,10 @@ import com.google.inject.Binder;
 import com.google.inject.Scopes;
 import com.google.inject.multibindings.Multibinder;
 import io.digdag.spi.TaskQueueFactory;
+import io.digdag.spi.WakeupBusFactory;
 import io.digdag.core.database.DatabaseTaskQueueFactory;
+import io.digdag.core.database.DatabaseWakeupBusFactory;
+import io.digdag.core.database.PostgresqlWakeupBusFactory;
 
 public class QueueModule
         implements Module
@@ -15,9 +18,19 @@ public class QueueModule
     public void configure(Binder binder)
     {
         binder.bind(TaskQueueManager.class).in(Scopes.SINGLETON);
+        binder.bind(TaskQueueMetrics.class).in(Scopes.SINGLETON);
 
         // built-in queue
         Multibinder<TaskQueueFactory> taskQueueBinder = Multibinder.newSetBinder(binder, TaskQueueFactory.class);
         taskQueueBinder.addBinding().to(DatabaseTaskQueueFactory.class).in(Scopes.SINGLETON);
+        taskQueueBinder.addBinding().to(MemoryTaskQueueFactory.class).in(Scopes.SINGLETON);
+
+        binder.bind(WakeupBusManager.class).in(Scopes.SINGLETON);
+
+        // built-in wakeup bus
+        Multibinder<WakeupBusFactory> wakeupBusBinder = Multibinder.newSetBinder(binder, WakeupBusFactory.class);
+        wakeupBusBinder.addBinding().to(LocalWakeupBusFactory.class).in(Scopes.SINGLETON);
+        wakeupBusBinder.addBinding().to(DatabaseWakeupBusFactory.class).in(Scopes.SINGLETON);
+        wakeupBusBinder.addBinding().to(PostgresqlWakeupBusFactory.class).in(Scopes.SINGLETON);
     }
 }
@@ -10,4 +10,9 @@ public interface QueueSettingStoreManager
 
     int getQueueIdByName(int siteId, String name)
         throws ResourceNotFoundException;
+
+    int getResourceTypeIdByNameOrInsert(int queueId, String name, int maxConcurrency);
+
+    // returns NO_MAX_CONCURRENCY if the queue doesn't exist
+    int getQueueMaxConcurrency(int siteId, String name);
 }
@@ -12,15 +12,17 @@ import io.digdag.spi.TaskQueueFactory;
 import io.digdag.client.config.Config;
 import io.digdag.client.config.ConfigException;
 import io.digdag.client.config.ConfigFactory;
+import io.digdag.core.database.DatabaseConfig;
 import io.digdag.core.repository.ResourceNotFoundException;
 
 public class TaskQueueManager
 {
     private final QueueSettingStoreManager qm;
     private final TaskQueue taskQueue;
+    private final Optional<HttpTaskQueueClient> httpClient;
 
     @Inject
-    public TaskQueueManager(QueueSettingStoreManager qm, Config systemConfig, Set<TaskQueueFactory> factories)
+    public TaskQueueManager(QueueSettingStoreManager qm, Config systemConfig, DatabaseConfig databaseConfig, Set<TaskQueueFactory> factories)
     {
         this.qm = qm;
 
@@ -30,7 +32,28 @@ public class TaskQueueManager
         }
         Map<String, TaskQueueFactory> queueTypes = builder.build();
 
-        this.taskQueue = queueTypes.get("database").getTaskQueue(systemConfig);    // TODO make this configurable?
+        // in-memory database doesn't outlive this process. Tasks don't have to
+        // be stored in the database either.
+        boolean inMemoryDatabase = databaseConfig.getType().equals("h2") && !databaseConfig.getPath().isPresent();
+        String type = systemConfig.get("queue.type", String.class, inMemoryDatabase ? "memory" : "database");
+
+        TaskQueueFactory factory = queueTypes.get(type);
+        if (factory == null) {
+            throw new ConfigException("Unknown queue.type: " + type);
+        }
+        this.taskQueue = factory.getTaskQueue(systemConfig);
+        this.httpClient = HttpTaskQueueClient.fromConfig(systemConfig);
+    }
+
+    // max number of running tasks tagged with _resource: <resourceType>
+    public static int getResourceTypeMaxConcurrency(Config systemConfig, String resourceType)
+    {
+        return systemConfig.get("queue.resource-types." + resourceType + ".max-concurrency", int.class, QueueSettingStore.NO_MAX_CONCURRENCY);
+    }
+
+    public static int getProjectWeight(Config systemConfig, int projectId)
+    {
+        return Math.max(1, systemConfig.get("queue.projects." + projectId + ".weight", int.class, 1));
     }
 
     // used by executors through TaskQueueDispatcher
@@ -39,19 +62,18 @@ public class TaskQueueManager
         return taskQueue.getServer();
     }
 
-    // used by agents excepting LocalAgentManager
-    public TaskQueueClient getTaskQueueClient(int siteId)
+    // used by agents (LocalAgentManager and InProcessTaskCallbackApi)
+    public TaskQueueClient getTaskQueueClient()
     {
+        if (httpClient.isPresent()) {
+            // agent.server.host is set to take tasks from a server
+            return httpClient.get();
+        }
         TaskQueueClient client = taskQueue.getDirectClientIfSupported();
         if (client != null) {
             return client;
         }
-        throw new UnsupportedOperationException("HTTP task queue client is not implemented yet");  // TODO implement TaskQueueClient that calls REST API of this server
-    }
-
-    // used by LocalAgentManager, InProcessTaskCallbackApi digdag-server (TaskResource, which is not implemented yet)
-    public TaskQueueClient getInProcessTaskQueueClient()
-    {
+        // agents running in a server process take tasks from the server directly
         return getTaskQueueServer();
     }
 }
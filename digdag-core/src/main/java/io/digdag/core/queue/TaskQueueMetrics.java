@@ -0,0 +1,66 @@
+package io.digdag.core.queue;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import com.google.inject.Inject;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import io.digdag.spi.TaskRequest;
+
+/**
+ * Records how long tasks wait in a task queue until an agent locks them.
+ *
+ * Wait time is recorded as a whole and for each project so that starvation
+ * of small projects is visible:
+ *
+ *   digdag.queue.wait-time
+ *   digdag.queue.wait-time.site-<site id>.project-<project id>
+ *
+ * Number of projects is not bounded. A timer of a project is removed from
+ * the registry when no tasks of the project are locked for an hour, and
+ * only timers of MAX_PROJECT_TIMERS recently active projects are kept.
+ */
+public class TaskQueueMetrics
+{
+    private static final int MAX_PROJECT_TIMERS = 1000;
+
+    private final MetricRegistry registry;
+    private final Timer waitTime;
+    private final LoadingCache<String, Timer> projectWaitTimes;
+
+    @Inject
+    public TaskQueueMetrics(MetricRegistry registry)
+    {
+        this.registry = registry;
+        this.waitTime = registry.timer("digdag.queue.wait-time");
+        this.projectWaitTimes = CacheBuilder.newBuilder()
+            .maximumSize(MAX_PROJECT_TIMERS)
+            .expireAfterAccess(1, TimeUnit.HOURS)
+            .<String, Timer>removalListener(notification ->
+                    // a timer registered again after this removal is a different instance
+                    registry.removeMatching((name, metric) ->
+                        name.equals(notification.getKey()) && metric == notification.getValue()))
+            .build(CacheLoader.from(name -> {
+                registry.remove(name);
+                return registry.register(name, new Timer());
+            }));
+    }
+
+    public void tasksLocked(List<TaskRequest> requests)
+    {
+        Instant now = Instant.now();
+        for (TaskRequest request : requests) {
+            // created_at is time of the first enqueue. a task retried after
+            // lock expiration includes time of the previous attempt.
+            long millis = Math.max(0, Duration.between(request.getCreatedAt(), now).toMillis());
+            waitTime.update(millis, TimeUnit.MILLISECONDS);
+            projectWaitTimes.getUnchecked("digdag.queue.wait-time.site-" + request.getSiteId() + ".project-" + request.getProjectId())
+                .update(millis, TimeUnit.MILLISECONDS);
+        }
+    }
+}
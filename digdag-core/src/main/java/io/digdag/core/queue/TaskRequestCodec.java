@@ -0,0 +1,146 @@
+package io.digdag.core.queue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+import com.google.common.base.Throwables;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
+import io.digdag.client.config.ConfigException;
+import io.digdag.spi.TaskRequest;
+
+/**
+ * Encodes TaskRequest into bytes stored in a task queue.
+ *
+ * Encoded bytes start with a format byte. JSON written by older versions
+ * doesn't have it but always starts with '{', so it's still decoded.
+ *
+ *   0x01: Smile (binary JSON)
+ *   0x02: deflate-compressed Smile
+ *   '{':  JSON
+ */
+public class TaskRequestCodec
+{
+    private static final byte FORMAT_SMILE = 0x01;
+    private static final byte FORMAT_DEFLATE_SMILE = 0x02;
+    private static final byte FORMAT_JSON = '{';
+
+    // smaller payloads don't gain enough by compression
+    private static final int COMPRESS_THRESHOLD = 1024;
+
+    public enum Encoding
+    {
+        JSON,
+        SMILE;
+
+        public static Encoding of(String name)
+        {
+            switch (name) {
+            case "json":
+                return JSON;
+            case "smile":
+                return SMILE;
+            default:
+                throw new ConfigException("Unknown task encoding: " + name);
+            }
+        }
+    }
+
+    private final ObjectMapper mapper;
+    private final SmileFactory smileFactory;
+    private final Encoding encoding;
+
+    public TaskRequestCodec(ObjectMapper mapper, Encoding encoding)
+    {
+        this.mapper = mapper;
+        // shared string values are useful because config params repeat same values
+        this.smileFactory = new SmileFactory()
+            .configure(SmileGenerator.Feature.CHECK_SHARED_STRING_VALUES, true);
+        this.encoding = encoding;
+    }
+
+    public byte[] encode(TaskRequest request)
+    {
+        try {
+            switch (encoding) {
+            case JSON:
+                return mapper.writeValueAsBytes(request);
+            default:
+                byte[] smile = writeSmile(request);
+                if (smile.length >= COMPRESS_THRESHOLD) {
+                    byte[] compressed = deflate(smile);
+                    if (compressed.length < smile.length) {
+                        return compressed;
+                    }
+                }
+                byte[] data = new byte[smile.length + 1];
+                data[0] = FORMAT_SMILE;
+                System.arraycopy(smile, 0, data, 1, smile.length);
+                return data;
+            }
+        }
+        catch (IOException ex) {
+            throw Throwables.propagate(ex);
+        }
+    }
+
+    public TaskRequest decode(byte[] data)
+    {
+        try {
+            if (data.length == 0) {
+                throw new IOException("Empty task data");
+            }
+            switch (data[0]) {
+            case FORMAT_SMILE:
+                return readSmile(new ByteArrayInputStream(data, 1, data.length - 1));
+            case FORMAT_DEFLATE_SMILE:
+                return readSmile(new InflaterInputStream(new ByteArrayInputStream(data, 1, data.length - 1)));
+            case FORMAT_JSON:
+                return mapper.readValue(data, TaskRequest.class);
+            default:
+                throw new IOException("Unknown task data format: " + data[0]);
+            }
+        }
+        catch (IOException ex) {
+            throw Throwables.propagate(ex);
+        }
+    }
+
+    private byte[] writeSmile(TaskRequest request)
+        throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (JsonGenerator gen = smileFactory.createGenerator(out)) {
+            // writes using mapper so that modules registered to it are used
+            mapper.writeValue(gen, request);
+        }
+        return out.toByteArray();
+    }
+
+    private TaskRequest readSmile(InputStream in)
+        throws IOException
+    {
+        return mapper.readValue(smileFactory.createParser(in), TaskRequest.class);
+    }
+
+    private static byte[] deflate(byte[] data)
+        throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2);
+        out.write(FORMAT_DEFLATE_SMILE);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try (DeflaterOutputStream def = new DeflaterOutputStream(out, deflater)) {
+            def.write(data);
+        }
+        finally {
+            deflater.end();
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,49 @@
+package io.digdag.core.queue;
+
+import java.util.Set;
+import java.util.Map;
+import com.google.inject.Inject;
+import com.google.common.collect.ImmutableMap;
+import io.digdag.spi.WakeupBus;
+import io.digdag.spi.WakeupBusFactory;
+import io.digdag.client.config.Config;
+import io.digdag.client.config.ConfigException;
+import io.digdag.core.database.DatabaseConfig;
+
+public class WakeupBusManager
+{
+    // channel to wake up WorkflowExecutor when status of tasks changed
+    public static final String EXECUTOR_CHANNEL = "digdag_executor";
+
+    // channels to wake up agents when tasks are enqueued
+    public static final String SHARED_TASK_QUEUE_CHANNEL = "digdag_shared_task_queue";
+    public static final String TASK_QUEUE_CHANNEL = "digdag_task_queue";
+
+    private final WakeupBus wakeupBus;
+
+    @Inject
+    public WakeupBusManager(Config systemConfig, DatabaseConfig databaseConfig, Set<WakeupBusFactory> factories)
+    {
+        ImmutableMap.Builder<String, WakeupBusFactory> builder = ImmutableMap.builder();
+        for (WakeupBusFactory factory : factories) {
+            builder.put(factory.getType(), factory);
+        }
+        Map<String, WakeupBusFactory> busTypes = builder.build();
+
+        // h2 database is not shared with other servers. Waking up listeners
+        // in this process is enough.
+        String defaultType = databaseConfig.getType().equals("postgresql") ? "postgresql" : "local";
+        String type = systemConfig.get("wakeup-bus.type", String.class, defaultType);
+
+        WakeupBusFactory factory = busTypes.get(type);
+        if (factory == null) {
+            throw new ConfigException("Unknown wakeup-bus.type: " + type);
+        }
+        this.wakeupBus = factory.getWakeupBus(systemConfig);
+    }
+
+    public WakeupBus getWakeupBus()
+    {
+        return wakeupBus;
+    }
+}
@@ -1,5 +1,8 @@
 package io.digdag.core.repository;
 
+import java.util.List;
+import java.util.Map;
+
 public interface ProjectStoreManager
 {
     ProjectStore getProjectStore(int siteId);
@@ -13,4 +16,11 @@ public interface ProjectStoreManager
 
     StoredRevision getRevisionOfWorkflowDefinition(long wfId)
         throws ResourceNotFoundException;
+
+    // used by WorkflowExecutor.enqueueReadyTasks. Missing ids are ignored.
+    List<StoredProject> getProjectsByIdInternal(List<Integer> projIds);
+
+    // used by WorkflowExecutor.enqueueReadyTasks. Returns a map from workflow
+    // definition id to revision. Missing ids are ignored.
+    Map<Long, StoredRevision> getRevisionsOfWorkflowDefinitions(List<Long> wfIds);
 }
@@ -0,0 +1,23 @@
+package io.digdag.core.session;
+
+import com.google.common.base.Optional;
+import org.immutables.value.Value;
+
+@Value.Immutable
+public abstract class AttemptPartitionLease
+{
+    public abstract int getPartition();
+
+    public abstract Optional<String> getOwner();
+
+    public abstract boolean isExpired();
+
+    public static AttemptPartitionLease of(int partition, Optional<String> owner, boolean expired)
+    {
+        return ImmutableAttemptPartitionLease.builder()
+            .partition(partition)
+            .owner(owner)
+            .isExpired(expired)
+            .build();
+    }
+}
@@ -0,0 +1,30 @@
+package io.digdag.core.session;
+
+import java.util.List;
+import java.util.Set;
+
+public interface AttemptPartitionStore
+{
+    // creates partitions whose id is less than partitionCount if they don't exist
+    void initializePartitions(int partitionCount);
+
+    // registers the executor as alive. Executors that don't renew this
+    // are excluded from distribution of partitions after it expires.
+    void renewExecutor(String owner, int leaseSeconds);
+
+    // number of executors that are alive including the given executor
+    int getLiveExecutorCount(String owner);
+
+    List<AttemptPartitionLease> getLeases(int partitionCount);
+
+    // extends expiration of all leases owned by the executor and returns
+    // partitions that the executor still owns
+    Set<Integer> renewLeases(String owner, int partitionCount, int leaseSeconds);
+
+    // acquires a lease if it's not owned or expired
+    boolean tryAcquireLease(int partition, String owner, int leaseSeconds);
+
+    void releaseLease(int partition, String owner);
+
+    void releaseAll(String owner);
+}
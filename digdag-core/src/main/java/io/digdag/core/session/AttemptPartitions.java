@@ -0,0 +1,33 @@
+package io.digdag.core.session;
+
+import java.util.Set;
+import com.google.common.collect.ImmutableSet;
+import org.immutables.value.Value;
+
+// A subset of attempts, selected by attempt id modulo partition count.
+// WorkflowExecutor scans only attempts of its partitions.
+@Value.Immutable
+public abstract class AttemptPartitions
+{
+    public abstract int getPartitionCount();
+
+    public abstract Set<Integer> getPartitions();
+
+    public boolean isAll()
+    {
+        return getPartitions().size() >= getPartitionCount();
+    }
+
+    public static AttemptPartitions all()
+    {
+        return of(1, ImmutableSet.of(0));
+    }
+
+    public static AttemptPartitions of(int partitionCount, Set<Integer> partitions)
+    {
+        return ImmutableAttemptPartitions.builder()
+            .partitionCount(partitionCount)
+            .partitions(partitions)
+            .build();
+    }
+}
@@ -13,7 +13,7 @@ public interface SessionAttemptControlStore
     // for SessionMonitorExecutor to add monitor tasks
     public <T> T lockRootTask(long attemptId, TaskLockActionWithDetails<T> func) throws ResourceNotFoundException;
 
-    int deleteAllTasksOfAttempt(long attemptId);
+    int deleteAllTasksOfAttempts(List<Long> attemptIds);
 
     boolean setDoneToAttemptState(long attemptId, boolean success);
 }
@@ -13,10 +13,16 @@ public interface SessionStoreManager
 
     Instant getStoreTime();
 
+    // for WorkflowExecutor to distribute attempts to servers
+    AttemptPartitionStore getAttemptPartitionStore();
+
     // for WorkflowExecutor.enqueueTask
     StoredSessionAttemptWithSession getAttemptWithSessionById(long attemptId)
         throws ResourceNotFoundException;
 
+    // for WorkflowExecutor.enqueueReadyTasks. Missing ids are ignored.
+    List<StoredSessionAttemptWithSession> getAttemptsWithSessionByIds(List<Long> attemptIds);
+
     // for WorkflowExecutor.runUntilDone
     AttemptStateFlags getAttemptStateFlags(long attemptId)
         throws ResourceNotFoundException;
@@ -25,28 +31,42 @@ public interface SessionStoreManager
     boolean isAnyNotDoneAttempts();
 
     // for WorkflowExecutor.enqueueReadyTasks
-    List<Long> findAllReadyTaskIds(int maxEntries);
+    List<Long> findAllReadyTaskIds(AttemptPartitions partitions, int maxEntries, long lastId);
 
     interface AttemptLockAction <T>
     {
         T call(SessionAttemptControlStore store, SessionAttemptSummary summary);
     }
 
-    // for WorkflowExecutor.propagateSessionArchive
+    // for SessionMonitorExecutor.runMonitor
     <T> Optional<T> lockAttemptIfExists(long attemptId, AttemptLockAction<T> func);
 
+    interface AttemptListLockAction <T>
+    {
+        T call(SessionAttemptControlStore store, List<SessionAttemptSummary> summaries);
+    }
+
+    // for SessionArchiver. Missing ids are ignored.
+    <T> T lockAttemptsIfExist(List<Long> attemptIds, AttemptListLockAction<T> func);
+
     // for WorkflowExecutorManager.IncrementalStatusPropagator.propagateStatus
-    List<TaskStateSummary> findRecentlyChangedTasks(Instant updatedSince, long lastId);
+    List<TaskStateSummary> findRecentlyChangedTasks(AttemptPartitions partitions, Instant updatedSince, long lastId);
 
     // for WorkflowExecutorManager.propagateAllBlockedToReady
-    List<TaskStateSummary> findTasksByState(TaskStateCode state, long lastId);
+    List<TaskStateSummary> findTasksByState(AttemptPartitions partitions, TaskStateCode state, long lastId);
+
+    // for SessionArchiver
+    List<TaskAttemptSummary> findRootTasksByStates(AttemptPartitions partitions, TaskStateCode[] states, long lastId);
 
-    // for WorkflowExecutorManager.propagateSessionArchive
-    List<TaskAttemptSummary> findRootTasksByStates(TaskStateCode[] states, long lastId);
+    // for SessionArchiver to report number of attempts waiting for archiving
+    long countRootTasksByStates(AttemptPartitions partitions, TaskStateCode[] states);
 
     boolean requestCancelAttempt(long attemptId);
 
-    int trySetRetryWaitingToReady();
+    int trySetRetryWaitingToReady(AttemptPartitions partitions);
+
+    // for InProcessTaskCallbackApi.getStateParams
+    Optional<Config> getTaskStateParams(long taskId);
 
     interface TaskLockAction <T>
     {
@@ -64,6 +84,14 @@ public interface SessionStoreManager
     // overload for taskFinished
     <T> Optional<T> lockTaskIfExists(long taskId, TaskLockActionWithDetails<T> func);
 
+    interface TaskListLockAction <T>
+    {
+        T call(TaskControlStore lockedTask, List<StoredTask> storedTasks);
+    }
+
+    // for WorkflowExecutor.enqueueReadyTasks. Locks all existing tasks of the list in a transaction.
+    <T> T lockTasksIfExist(List<Long> taskIds, TaskListLockAction<T> func);
+
     interface SessionMonitorAction
     {
         // returns next run time
@@ -74,6 +102,9 @@ public interface SessionStoreManager
 
     List<TaskRelation> getTaskRelations(long attemptId);
 
+    // for TaskTreeCache
+    long getTaskCountOfAttempt(long attemptId);
+
     List<Config> getExportParams(List<Long> idList);
 
     List<Config> getStoreParams(List<Long> idList);
@@ -3,19 +3,44 @@ package io.digdag.core.session;
 import java.util.List;
 import java.util.Map;
 import com.google.common.base.Optional;
+import com.google.common.collect.ListMultimap;
+import org.immutables.value.Value;
 import io.digdag.spi.TaskResult;
 import io.digdag.client.config.Config;
 import io.digdag.core.repository.ResourceNotFoundException;
 
 public interface TaskControlStore
 {
+    @Value.Immutable
+    interface NewTask
+    {
+        long getId();
+
+        // state of a resumed task is taken from getResumingTask
+        Task getTask();
+
+        Optional<ResumingTask> getResumingTask();
+
+        static NewTask of(long id, Task task, Optional<ResumingTask> resumingTask)
+        {
+            return ImmutableNewTask.builder()
+                .id(id)
+                .task(task)
+                .resumingTask(resumingTask)
+                .build();
+        }
+    }
+
     long getTaskCount(long attemptId);
 
-    long addSubtask(long attemptId, Task task);
+    // returns ids in ascending order
+    List<Long> allocateTaskIds(int count);
 
-    long addResumedSubtask(long attemptId, long parentId,
-            TaskType taskType, TaskStateCode state, TaskStateFlags flags,
-            ResumingTask resumingTask);
+    // ids of the tasks must be allocated by allocateTaskIds, and
+    // a parent task must come before its children.
+    void addSubtasks(long attemptId, List<NewTask> tasks);
+
+    long addSubtask(long attemptId, Task task);
 
     void addResumingTasks(long attemptId, List<ResumingTask> fullNameToTasks);
 
@@ -26,8 +51,14 @@ public interface TaskControlStore
     StoredTask getTaskById(long taskId)
         throws ResourceNotFoundException;
 
+    // locks another task in this transaction. Tasks should be locked from
+    // children to parents. returns false if the task doesn't exist.
+    boolean lockTaskIfExists(long taskId);
+
     void addDependencies(long downstream, List<Long> upstreams);
 
+    void addDependencies(ListMultimap<Long, Long> downstreamToUpstreams);
+
     // return true if one or more child task is progressible.
     boolean isAnyProgressibleChild(long taskId);
 
@@ -36,6 +67,11 @@ public interface TaskControlStore
 
     int trySetChildrenBlockedToReadyOrShortCircuitPlannedOrCanceled(long taskId);
 
+    List<Long> getChildTaskIdsByState(long taskId, TaskStateCode state);
+
+    // PLANNED grouping-only children of which children are all BLOCKED
+    List<Long> getPlannedGroupingChildTaskIds(long taskId);
+
     // getChildErrors including this task's error
     List<Config> collectChildrenErrors(long taskId);
 
@@ -53,6 +89,9 @@ public interface TaskControlStore
 
     boolean setRetryWaitingState(long taskId, TaskStateCode beforeState, TaskStateCode afterState, int retryInterval, Config stateParams, Optional<Config> updateError);
 
+    // updates state params without changing state
+    boolean setStateParams(long taskId, TaskStateCode state, Config stateParams);
+
     //// trySetChildrenBlockedToReadyOrShortCircuitPlanned for root task
     //boolean trySetBlockedToReadyOrShortCircuitPlanned(long taskId);
 }
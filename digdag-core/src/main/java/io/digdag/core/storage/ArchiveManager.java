@@ -5,9 +5,15 @@ import java.io.ByteArrayInputStream;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ExecutionException;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
 import com.google.inject.Inject;
 import com.google.common.base.Optional;
 import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.digdag.core.repository.ArchiveType;
 import io.digdag.core.repository.ProjectStore;
@@ -64,12 +70,29 @@ public class ArchiveManager
     private final ArchiveType uploadArchiveType;
     private final Config systemConfig;
 
+    // archives stored in database. {revision id => data}
+    // Archive data of a revision never changes once it's stored.
+    private final Cache<Integer, byte[]> dbArchiveCache;
+
     @Inject
-    public ArchiveManager(StorageManager storageManager, Config systemConfig)
+    public ArchiveManager(StorageManager storageManager, Config systemConfig, MetricRegistry metrics)
     {
         this.storageManager = storageManager;
         this.systemConfig = systemConfig;
         this.uploadArchiveType = systemConfig.get("archive.type", ArchiveType.class, ArchiveType.DB);
+        // Guava splits maximumWeight across segments. A single segment lets an
+        // archive as large as the whole budget stay in the cache.
+        this.dbArchiveCache = CacheBuilder.newBuilder()
+            .concurrencyLevel(1)
+            .maximumWeight(systemConfig.get("archive.cache.max-bytes", long.class, 64L * 1024 * 1024))
+            .weigher((Integer revId, byte[] data) -> data.length)
+            .recordStats()
+            .build();
+        metrics.register("digdag.archive-cache.hits", (Gauge<Long>) () -> dbArchiveCache.stats().hitCount());
+        metrics.register("digdag.archive-cache.misses", (Gauge<Long>) () -> dbArchiveCache.stats().missCount());
+        metrics.register("digdag.archive-cache.evictions", (Gauge<Long>) () -> dbArchiveCache.stats().evictionCount());
+        metrics.register("digdag.archive-cache.bytes", (Gauge<Long>) () ->
+                dbArchiveCache.asMap().values().stream().mapToLong(data -> data.length).sum());
     }
 
     public Location newArchiveLocation(
@@ -109,7 +132,7 @@ public class ArchiveManager
             return Optional.absent();
         }
         else if (type.equals(ArchiveType.DB)) {
-            byte[] data = ps.getRevisionArchiveData(rev.getId());
+            byte[] data = getDbArchiveData(ps, rev);
             return Optional.of(
                     new StorageObject(
                         new ByteArrayInputStream(data),
@@ -121,6 +144,16 @@ public class ArchiveManager
         }
     }
 
+    public Optional<byte[]> getArchiveMd5(ProjectStore ps, int projectId, String revisionName)
+        throws ResourceNotFoundException
+    {
+        StoredRevision rev = findRevision(ps, projectId, revisionName);
+        if (rev.getArchiveType().equals(ArchiveType.NONE)) {
+            return Optional.absent();
+        }
+        return rev.getArchiveMd5();
+    }
+
     public Optional<StoredArchive> getArchive(ProjectStore ps, int projectId, String revisionName)
         throws ResourceNotFoundException
     {
@@ -131,11 +164,12 @@ public class ArchiveManager
             return Optional.absent();
         }
         else if (type.equals(ArchiveType.DB)) {
-            byte[] data = ps.getRevisionArchiveData(rev.getId());
+            byte[] data = getDbArchiveData(ps, rev);
             return Optional.of(new StoredArchive() {
                 public Optional<byte[]> getByteArray()
                 {
-                    return Optional.of(data);
+                    // data is shared with the cache
+                    return Optional.of(data.clone());
                 }
 
                 public Optional<DirectDownloadHandle> getDirectDownloadHandle()
@@ -171,6 +205,21 @@ public class ArchiveManager
         }
     }
 
+    private byte[] getDbArchiveData(ProjectStore ps, StoredRevision rev)
+        throws ResourceNotFoundException
+    {
+        try {
+            return dbArchiveCache.get(rev.getId(), () -> ps.getRevisionArchiveData(rev.getId()));
+        }
+        catch (ExecutionException ex) {
+            Throwables.propagateIfInstanceOf(ex.getCause(), ResourceNotFoundException.class);
+            throw Throwables.propagate(ex.getCause());
+        }
+        catch (UncheckedExecutionException ex) {
+            throw Throwables.propagate(ex.getCause());
+        }
+    }
+
     private StoredRevision findRevision(ProjectStore ps, int projectId, String revisionName)
         throws ResourceNotFoundException
     {
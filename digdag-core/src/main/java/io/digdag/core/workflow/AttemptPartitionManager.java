@@ -0,0 +1,149 @@
+package io.digdag.core.workflow;
+
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.lang.management.ManagementFactory;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import io.digdag.client.config.Config;
+import io.digdag.core.session.AttemptPartitionLease;
+import io.digdag.core.session.AttemptPartitionStore;
+import io.digdag.core.session.AttemptPartitions;
+import io.digdag.core.session.SessionStoreManager;
+
+/**
+ * Distributes attempts to executors of servers sharing a database.
+ *
+ * Attempts are divided into executor.partition-count partitions by attempt id.
+ * Each executor holds leases of about (partitions / live executors) partitions
+ * and renews them periodically. When an executor joins, others release extra
+ * partitions. When an executor dies, its leases expire and others take them
+ * over. Partitioning is disabled if executor.partition-count is 0.
+ *
+ * Leases only reduce duplicated scans and lock contention. Correctness still
+ * relies on row locks because an executor may keep scanning a partition for a
+ * while after its lease expires.
+ */
+public class AttemptPartitionManager
+        implements AutoCloseable
+{
+    private static final Logger logger = LoggerFactory.getLogger(AttemptPartitionManager.class);
+
+    private final AttemptPartitionStore store;
+    private final Runnable changeListener;
+    private final String owner;
+    private final int partitionCount;
+    private final int leaseSeconds;
+    private final ScheduledExecutorService executor;
+    private volatile AttemptPartitions partitions;
+
+    public AttemptPartitionManager(SessionStoreManager sm, Config systemConfig, Runnable changeListener)
+    {
+        this.store = sm.getAttemptPartitionStore();
+        this.changeListener = changeListener;
+        this.owner = ManagementFactory.getRuntimeMXBean().getName() + ":" + UUID.randomUUID();
+        this.partitionCount = systemConfig.get("executor.partition-count", int.class, 0);
+        this.leaseSeconds = systemConfig.get("executor.partition-lease-seconds", int.class, 30);
+        this.executor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("attempt-partition-lease-%d")
+                .build()
+                );
+        if (isEnabled()) {
+            this.partitions = AttemptPartitions.of(partitionCount, ImmutableSet.of());
+        }
+        else {
+            this.partitions = AttemptPartitions.all();
+        }
+    }
+
+    public boolean isEnabled()
+    {
+        return partitionCount > 0;
+    }
+
+    public void start()
+    {
+        if (isEnabled()) {
+            store.initializePartitions(partitionCount);
+            refresh();
+            long interval = Math.max(1, leaseSeconds / 3);
+            executor.scheduleWithFixedDelay(() -> refresh(),
+                    interval, interval, TimeUnit.SECONDS);
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        executor.shutdown();
+        if (isEnabled()) {
+            try {
+                executor.awaitTermination(10, TimeUnit.SECONDS);
+                // let other executors take over immediately
+                store.releaseAll(owner);
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            catch (RuntimeException ex) {
+                logger.warn("Failed to release attempt partitions. They will expire in {} seconds", leaseSeconds, ex);
+            }
+        }
+    }
+
+    public AttemptPartitions getPartitions()
+    {
+        return partitions;
+    }
+
+    private void refresh()
+    {
+        try {
+            store.renewExecutor(owner, leaseSeconds);
+            Set<Integer> owned = new TreeSet<>(store.renewLeases(owner, partitionCount, leaseSeconds));
+
+            int liveExecutors = store.getLiveExecutorCount(owner);
+            int fairShare = (partitionCount + liveExecutors - 1) / liveExecutors;
+
+            if (owned.size() > fairShare) {
+                // another executor joined. release extra partitions so that it can take them
+                for (int partition : ImmutableSet.copyOf(owned).asList().subList(fairShare, owned.size())) {
+                    store.releaseLease(partition, owner);
+                    owned.remove(partition);
+                }
+            }
+            else if (owned.size() < fairShare) {
+                // take partitions that are released or owned by dead executors
+                for (AttemptPartitionLease lease : store.getLeases(partitionCount)) {
+                    if (owned.size() >= fairShare) {
+                        break;
+                    }
+                    if (!lease.getOwner().isPresent() || lease.isExpired()) {
+                        if (store.tryAcquireLease(lease.getPartition(), owner, leaseSeconds)) {
+                            owned.add(lease.getPartition());
+                        }
+                    }
+                }
+            }
+
+            AttemptPartitions next = AttemptPartitions.of(partitionCount, ImmutableSet.copyOf(owned));
+            if (!next.equals(partitions)) {
+                logger.info("Executor {} owns {} of {} attempt partitions: {}",
+                        owner, owned.size(), partitionCount, owned);
+                partitions = next;
+                changeListener.run();
+            }
+        }
+        catch (Throwable t) {
+            logger.error("Uncaught exception during renewing attempt partition leases. Retrying later.", t);
+        }
+    }
+}
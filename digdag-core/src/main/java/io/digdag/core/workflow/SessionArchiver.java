@@ -0,0 +1,224 @@
+package io.digdag.core.workflow;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import io.digdag.client.config.Config;
+import io.digdag.core.session.AttemptPartitions;
+import io.digdag.core.session.SessionStoreManager;
+import io.digdag.core.session.TaskAttemptSummary;
+import io.digdag.core.session.TaskStateCode;
+
+/**
+ * Archives tasks of attempts whose root task is done, in a background thread.
+ *
+ * Archiving serializes all tasks of an attempt and deletes rows from several
+ * tables. Running it in a separate thread with its own pacing keeps a burst of
+ * completed attempts from delaying dispatch of READY tasks.
+ *
+ * Progress is reported as gauges while the archiver runs:
+ *
+ *   digdag.executor.archive.backlog
+ *   digdag.executor.archive.archived-attempts
+ */
+public class SessionArchiver
+        implements AutoCloseable
+{
+    private static final Logger logger = LoggerFactory.getLogger(SessionArchiver.class);
+
+    private final SessionStoreManager sm;
+    private final ObjectMapper archiveMapper;
+    private final MetricRegistry metrics;
+    private final Supplier<AttemptPartitions> partitions;
+    private final Runnable archivedListener;
+    private final int batchSize;
+    private final long batchIntervalMillis;
+    private final long idleIntervalMillis;
+    private final Thread thread;
+
+    private final Object noticeLock = new Object();
+    private boolean notice = false;
+    private volatile boolean stop = false;
+
+    private volatile long backlog = 0;
+    private final AtomicLong archivedAttemptCount = new AtomicLong();
+    private final Map<String, Gauge<Long>> gauges = ImmutableMap.of(
+            "digdag.executor.archive.backlog", () -> getBacklog(),
+            "digdag.executor.archive.archived-attempts", () -> getArchivedAttemptCount());
+
+    public SessionArchiver(SessionStoreManager sm, ObjectMapper archiveMapper, MetricRegistry metrics,
+            Config systemConfig, Supplier<AttemptPartitions> partitions, Runnable archivedListener)
+    {
+        this.sm = sm;
+        this.archiveMapper = archiveMapper;
+        this.metrics = metrics;
+        this.partitions = partitions;
+        this.archivedListener = archivedListener;
+        this.batchSize = systemConfig.get("executor.archive-batch-size", int.class, 10);
+        this.batchIntervalMillis = systemConfig.get("executor.archive-batch-interval-millis", long.class, 100L);
+        this.idleIntervalMillis = systemConfig.get("executor.archive-interval-millis", long.class, 1000L);
+        this.thread = new Thread(() -> run(), "session-archiver");
+        this.thread.setDaemon(true);
+    }
+
+    public void start()
+    {
+        for (Map.Entry<String, Gauge<Long>> gauge : gauges.entrySet()) {
+            // replaces gauges of an archiver of the previous executor loop
+            metrics.remove(gauge.getKey());
+            metrics.register(gauge.getKey(), gauge.getValue());
+        }
+        thread.start();
+    }
+
+    @Override
+    public void close()
+    {
+        stop = true;
+        thread.interrupt();
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(10));
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        metrics.removeMatching((name, metric) -> gauges.get(name) == metric);
+    }
+
+    // wakes up the archiver when a root task became done
+    public void notice()
+    {
+        synchronized (noticeLock) {
+            notice = true;
+            noticeLock.notifyAll();
+        }
+    }
+
+    // number of attempts of which root task is done but not archived yet
+    public long getBacklog()
+    {
+        return backlog;
+    }
+
+    public long getArchivedAttemptCount()
+    {
+        return archivedAttemptCount.get();
+    }
+
+    private void run()
+    {
+        long lastTaskId = 0;
+        while (!stop) {
+            long sleepMillis;
+            try {
+                List<TaskAttemptSummary> tasks = sm.findRootTasksByStates(partitions.get(), TaskStateCode.doneStates(), lastTaskId);
+                if (tasks.isEmpty()) {
+                    // all done attempts are archived or failed. start over from the beginning
+                    // after waiting for a notice
+                    lastTaskId = 0;
+                    backlog = 0;
+                    sleepMillis = idleIntervalMillis;
+                }
+                else {
+                    List<TaskAttemptSummary> batch = tasks.subList(0, Math.min(batchSize, tasks.size()));
+                    lastTaskId = batch.get(batch.size() - 1).getId();
+
+                    long startTime = System.nanoTime();
+                    int archived = archiveBatch(batch);
+                    archivedAttemptCount.addAndGet(archived);
+                    backlog = sm.countRootTasksByStates(partitions.get(), TaskStateCode.doneStates());
+                    logger.debug("Archived {} session attempts in {} ms. {} attempts are waiting for archiving",
+                            archived, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime), backlog);
+
+                    if (archived > 0) {
+                        archivedListener.run();
+                    }
+                    sleepMillis = batchIntervalMillis;
+                }
+            }
+            catch (Throwable t) {
+                // attempts of the failed batch are retried when the scan starts over
+                logger.error("Uncaught exception during archiving session attempts. Archiving will be retried.", t);
+                sleepMillis = idleIntervalMillis;
+            }
+
+            if (sleepMillis > 0) {
+                waitForNotice(sleepMillis);
+            }
+        }
+    }
+
+    private int archiveBatch(List<TaskAttemptSummary> rootTasks)
+    {
+        try {
+            return archiveAttempts(rootTasks);
+        }
+        catch (RuntimeException ex) {
+            if (rootTasks.size() == 1) {
+                throw ex;
+            }
+            logger.warn("Failed to archive {} session attempts at once. Archiving them one by one", rootTasks.size(), ex);
+        }
+
+        // an attempt that can't be archived doesn't block others in the batch.
+        // it's retried when the scan starts over.
+        int archived = 0;
+        for (TaskAttemptSummary rootTask : rootTasks) {
+            try {
+                archived += archiveAttempts(ImmutableList.of(rootTask));
+            }
+            catch (RuntimeException ex) {
+                logger.error("Failed to archive session attempt {}. Skipping it", rootTask.getAttemptId(), ex);
+            }
+        }
+        return archived;
+    }
+
+    private int archiveAttempts(List<TaskAttemptSummary> rootTasks)
+    {
+        List<Long> attemptIds = rootTasks.stream()
+            .map(task -> task.getAttemptId())
+            .collect(Collectors.toList());
+        Set<Long> successAttemptIds = rootTasks.stream()
+            .filter(task -> task.getState() == TaskStateCode.SUCCESS)
+            .map(task -> task.getAttemptId())
+            .collect(Collectors.toSet());
+
+        return sm.lockAttemptsIfExist(attemptIds, (store, summaries) -> {
+            // another server may have archived some of them
+            List<Long> lockedAttemptIds = summaries.stream()
+                .filter(summary -> !summary.getStateFlags().isDone())
+                .map(summary -> summary.getId())
+                .collect(Collectors.toList());
+            SessionAttemptControl control = new SessionAttemptControl(store, lockedAttemptIds);
+            control.archiveTasks(archiveMapper, successAttemptIds);
+            return lockedAttemptIds.size();
+        });
+    }
+
+    private void waitForNotice(long maxMillis)
+    {
+        synchronized (noticeLock) {
+            try {
+                if (!notice) {
+                    noticeLock.wait(maxMillis);
+                }
+            }
+            catch (InterruptedException ex) {
+                // close() interrupts this thread
+            }
+            notice = false;
+        }
+    }
+}
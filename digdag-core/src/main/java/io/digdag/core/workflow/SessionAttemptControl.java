@@ -1,6 +1,7 @@
 package io.digdag.core.workflow;
 
 import java.util.List;
+import java.util.Set;
 import com.google.common.base.Optional;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import io.digdag.core.session.SessionAttemptControlStore;
@@ -9,21 +10,26 @@ import io.digdag.core.repository.ResourceConflictException;
 public class SessionAttemptControl
 {
     private final SessionAttemptControlStore store;
-    private final long attemptId;
+    private final List<Long> attemptIds;
 
-    public SessionAttemptControl(SessionAttemptControlStore store, long attemptId)
+    public SessionAttemptControl(SessionAttemptControlStore store, List<Long> attemptIds)
     {
         this.store = store;
-        this.attemptId = attemptId;
+        this.attemptIds = attemptIds;
     }
 
-    public void archiveTasks(ObjectMapper mapper, boolean success)
+    public void archiveTasks(ObjectMapper mapper, Set<Long> successAttemptIds)
     {
-        int n = store.aggregateAndInsertTaskArchive(attemptId);
-        int deleted = store.deleteAllTasksOfAttempt(attemptId);
+        int n = 0;
+        for (long attemptId : attemptIds) {
+            n += store.aggregateAndInsertTaskArchive(attemptId);
+        }
+        int deleted = store.deleteAllTasksOfAttempts(attemptIds);
         if (n != deleted) {
             throw new IllegalStateException("Invalid database state");
         }
-        store.setDoneToAttemptState(attemptId, success);
+        for (long attemptId : attemptIds) {
+            store.setDoneToAttemptState(attemptId, successAttemptIds.contains(attemptId));
+        }
     }
 }
@@ -17,6 +17,7 @@ import io.digdag.core.session.ArchivedTask;
 import io.digdag.core.session.ResumingTask;
 import io.digdag.core.session.Task;
 import io.digdag.core.session.TaskControlStore;
+import io.digdag.core.session.TaskControlStore.NewTask;
 import io.digdag.core.session.TaskStateCode;
 import io.digdag.core.session.TaskStateFlags;
 import io.digdag.spi.TaskResult;
@@ -98,6 +99,14 @@ public class TaskControl
             throw new TaskLimitExceededException("Too many tasks. Limit: " + Limits.maxWorkflowTasks() + ", Current: " + taskCount + ", Adding: " + tasks.size());
         }
 
+        // allocate ids of all tasks first so that tasks and dependencies
+        // can be inserted in bulk.
+        int storingTaskCount = firstTaskIsRootStoredParentTask ? tasks.size() - 1 : tasks.size();
+        List<Long> allocatedIds = store.allocateTaskIds(storingTaskCount);
+
+        ImmutableList.Builder<NewTask> newTasks = ImmutableList.builder();
+        ImmutableListMultimap.Builder<Long, Long> dependencies = ImmutableListMultimap.builder();
+
         boolean firstTask = true;
         for (WorkflowTask wt : tasks) {
 
@@ -114,13 +123,18 @@ public class TaskControl
             long parentId = wt.getParentIndex()
                 .transform(index -> indexToId.get(index))
                 .or(parentTaskId);
-            long id;
+            long id = allocatedIds.get(indexToId.size() - (firstTaskIsRootStoredParentTask ? 1 : 0));
             if (resumingTaskMap.containsKey(wt.getFullName())) {
-                id = store.addResumedSubtask(attemptId, parentId,
-                        wt.getTaskType(),
-                        TaskStateCode.SUCCESS,
-                        (isInitialTask ? TaskStateFlags.empty().withInitialTask() : TaskStateFlags.empty()),
-                        resumingTaskMap.get(wt.getFullName()));
+                ResumingTask resumingTask = resumingTaskMap.get(wt.getFullName());
+                Task task = Task.taskBuilder()
+                    .parentId(Optional.of(parentId))
+                    .fullName(resumingTask.getFullName())
+                    .config(resumingTask.getConfig())
+                    .taskType(wt.getTaskType())
+                    .state(TaskStateCode.SUCCESS)
+                    .stateFlags(isInitialTask ? TaskStateFlags.empty().withInitialTask() : TaskStateFlags.empty())
+                    .build();
+                newTasks.add(NewTask.of(id, task, Optional.of(resumingTask)));
             }
             else {
                 Task task = Task.taskBuilder()
@@ -131,29 +145,25 @@ public class TaskControl
                     .state(TaskStateCode.BLOCKED)
                     .stateFlags(isInitialTask ? TaskStateFlags.empty().withInitialTask() : TaskStateFlags.empty())
                     .build();
-
-                id = store.addSubtask(attemptId, task);
+                newTasks.add(NewTask.of(id, task, Optional.absent()));
             }
 
             indexToId.add(id);
-            if (!wt.getUpstreamIndexes().isEmpty()) {
-                store.addDependencies(
-                        id,
-                        wt.getUpstreamIndexes()
-                            .stream()
-                            .map(index -> indexToId.get(index))
-                            .collect(Collectors.toList())
-                        );
+            for (int index : wt.getUpstreamIndexes()) {
+                dependencies.put(id, indexToId.get(index));
             }
 
             if (firstTask) {
-                // the root task was stored right now.
-                store.addDependencies(id, rootUpstreamIds);
+                // the root task is stored with this id.
+                dependencies.putAll(id, rootUpstreamIds);
                 rootTaskId = id;
             }
             firstTask = false;
         }
 
+        store.addSubtasks(attemptId, newTasks.build());
+        store.addDependencies(dependencies.build());
+
         return rootTaskId;
     }
 
@@ -356,4 +366,10 @@ public class TaskControl
         }
         return false;
     }
+
+    // keeps running with new state params
+    public boolean updateRunningStateParams(Config stateParams)
+    {
+        return store.setStateParams(getId(), TaskStateCode.RUNNING, stateParams);
+    }
 }
@@ -44,6 +44,23 @@ public class TaskQueueDispatcher
         }
     }
 
+    public void dispatch(List<TaskRequest> requests)
+        throws ResourceConflictException
+    {
+        logger.trace("Dispatching {} requests", requests.size());
+
+        TaskQueueServer queue = manager.getTaskQueueServer();
+        try {
+            queue.enqueue(requests);
+        }
+        catch (TaskStateException ex) {
+            if (ex.getCause() instanceof ResourceConflictException) {
+                throw (ResourceConflictException) ex.getCause();
+            }
+            throw new ResourceConflictException(ex);
+        }
+    }
+
     public void taskFinished(int siteId, String lockId, AgentId agentId)
     {
         TaskQueueServer queue = manager.getTaskQueueServer();
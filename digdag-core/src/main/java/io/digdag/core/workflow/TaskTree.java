@@ -6,12 +6,12 @@ import java.util.Map;
 import java.util.HashMap;
 import java.util.Set;
 import java.util.HashSet;
+import java.util.stream.Collectors;
 import com.google.common.base.Optional;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Lists;
+import com.google.common.collect.ImmutableListMultimap;
 import io.digdag.core.session.TaskRelation;
 
 public class TaskTree
@@ -23,13 +23,32 @@ public class TaskTree
 
     private final Map<Long, TaskRelation> map;
 
+    // parent id -> children in order of the given relation list
+    private final ImmutableListMultimap<Long, TaskRelation> children;
+
+    // id -> position in the given relation list
+    private final Map<Long, Integer> order;
+
     public TaskTree(List<TaskRelation> rels)
     {
         ImmutableMap.Builder<Long, TaskRelation> builder = ImmutableMap.builder();
+        ImmutableListMultimap.Builder<Long, TaskRelation> childrenBuilder = ImmutableListMultimap.builder();
+        Map<Long, Integer> order = new HashMap<>();
         for (TaskRelation rel : rels) {
             builder.put(rel.getId(), rel);
+            if (rel.getParentId().isPresent()) {
+                childrenBuilder.put(rel.getParentId().get(), rel);
+            }
+            order.put(rel.getId(), order.size());
         }
         this.map = builder.build();
+        this.children = childrenBuilder.build();
+        this.order = order;
+    }
+
+    public int size()
+    {
+        return map.size();
     }
 
     public long getRootTaskId()
@@ -96,12 +115,9 @@ public class TaskTree
 
     public <T> T walkChildrenRecursively(long id, T value, Walker<T> walker)
     {
-        for (TaskRelation rel : map.values()) {
-            if (rel.getParentId().isPresent() && rel.getParentId().get() == id) {
-                TaskRelation child = rel;
-                value = walker.walk(value, child);
-                value = walkChildrenRecursively(child.getId(), value, walker);
-            }
+        for (TaskRelation child : children.get(id)) {
+            value = walker.walk(value, child);
+            value = walkChildrenRecursively(child.getId(), value, walker);
         }
         return value;
     }
@@ -113,17 +129,20 @@ public class TaskTree
 
     private <T> T walkUpstreamSiblings(long id, T value, Walker<T> walker, Set<Long> walkedSet)
     {
-        Set<Long> upstreams = ImmutableSet.copyOf(get(id).getUpstreams());
-        for (TaskRelation rel : map.values()) {
-            // here uses order of map.values instead of order of get(id).getUpstreams
-            // so that farther (younger) siblings always comes first
-            if (upstreams.contains(rel.getId())) {
-                // here has deduplication because upstream ids could include
-                // same id with with upstream's upstreams.
-                if (walkedSet.add(rel.getId())) {
-                    value = walkUpstreamSiblings(rel.getId(), value, walker, walkedSet);
-                    value = walker.walk(value, rel);
-                }
+        // here uses order of the relation list instead of order of get(id).getUpstreams
+        // so that farther (younger) siblings always comes first
+        List<TaskRelation> upstreams = get(id).getUpstreams().stream()
+            .filter(upstreamId -> map.containsKey(upstreamId))
+            .distinct()
+            .sorted((a, b) -> Integer.compare(order.get(a), order.get(b)))
+            .map(upstreamId -> get(upstreamId))
+            .collect(Collectors.toList());
+        for (TaskRelation rel : upstreams) {
+            // here has deduplication because upstream ids could include
+            // same id with with upstream's upstreams.
+            if (walkedSet.add(rel.getId())) {
+                value = walkUpstreamSiblings(rel.getId(), value, walker, walkedSet);
+                value = walker.walk(value, rel);
             }
         }
         return value;
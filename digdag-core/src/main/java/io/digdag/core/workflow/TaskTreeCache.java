@@ -0,0 +1,46 @@
+package io.digdag.core.workflow;
+
+import java.util.concurrent.TimeUnit;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.digdag.core.session.SessionStoreManager;
+
+/**
+ * Caches TaskTree of attempts so that enqueuing every task of an attempt
+ * doesn't load all task relations of the attempt again.
+ *
+ * Tasks are only added to an attempt until it's archived. A cached tree is
+ * reused only if the number of tasks of the attempt didn't change, which
+ * also covers tasks added by other servers.
+ */
+public class TaskTreeCache
+{
+    private static final int MAX_CACHED_ATTEMPTS = 1000;
+
+    private final SessionStoreManager sm;
+    private final Cache<Long, TaskTree> cache = CacheBuilder.newBuilder()
+        .maximumSize(MAX_CACHED_ATTEMPTS)
+        .expireAfterAccess(10, TimeUnit.MINUTES)
+        .build();
+
+    public TaskTreeCache(SessionStoreManager sm)
+    {
+        this.sm = sm;
+    }
+
+    public TaskTree get(long attemptId)
+    {
+        long taskCount = sm.getTaskCountOfAttempt(attemptId);
+        TaskTree tree = cache.getIfPresent(attemptId);
+        if (tree == null || tree.size() != taskCount) {
+            tree = new TaskTree(sm.getTaskRelations(attemptId));
+            cache.put(attemptId, tree);
+        }
+        return tree;
+    }
+
+    public void invalidate(long attemptId)
+    {
+        cache.invalidate(attemptId);
+    }
+}
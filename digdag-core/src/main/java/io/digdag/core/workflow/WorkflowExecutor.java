@@ -1,9 +1,11 @@
 package io.digdag.core.workflow;
 
+import com.codahale.metrics.MetricRegistry;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Optional;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
 import io.digdag.client.config.Config;
@@ -16,6 +18,7 @@ import io.digdag.core.repository.ResourceNotFoundException;
 import io.digdag.core.repository.StoredProject;
 import io.digdag.core.repository.StoredRevision;
 import io.digdag.core.repository.WorkflowDefinition;
+import io.digdag.core.session.AttemptPartitions;
 import io.digdag.core.session.ResumingTask;
 import io.digdag.core.session.Session;
 import io.digdag.core.session.SessionAttempt;
@@ -25,13 +28,15 @@ import io.digdag.core.session.StoredSessionAttempt;
 import io.digdag.core.session.StoredSessionAttemptWithSession;
 import io.digdag.core.session.StoredTask;
 import io.digdag.core.session.Task;
-import io.digdag.core.session.TaskAttemptSummary;
+import io.digdag.core.session.TaskControlStore;
 import io.digdag.core.session.TaskStateCode;
 import io.digdag.core.session.TaskStateFlags;
 import io.digdag.core.session.TaskStateSummary;
 import io.digdag.spi.Notifier;
 import io.digdag.spi.TaskRequest;
 import io.digdag.spi.TaskResult;
+import io.digdag.spi.WakeupBus;
+import io.digdag.core.queue.WakeupBusManager;
 import io.digdag.util.RetryControl;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -39,15 +44,17 @@ import org.slf4j.LoggerFactory;
 import java.time.Instant;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -55,6 +62,7 @@ import java.util.function.BooleanSupplier;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 import static io.digdag.core.queue.QueueSettingStore.DEFAULT_QUEUE_NAME;
+import static io.digdag.core.queue.WakeupBusManager.EXECUTOR_CHANNEL;
 import static io.digdag.spi.TaskExecutionException.buildExceptionErrorConfig;
 import static java.util.Locale.ENGLISH;
 
@@ -149,7 +157,15 @@ public class WorkflowExecutor
     private final ConfigFactory cf;
     private final ObjectMapper archiveMapper;
     private final Config systemConfig;
+    private final TaskTreeCache taskTrees;
+    private final WakeupBus wakeupBus;
     private Notifier notifier;
+    private final MetricRegistry metrics;
+    private final boolean incrementalPropagation;
+    private final long fullPropagationIntervalNanos;
+    private final boolean synchronousPropagation;
+    private final boolean collapseGroupingTasks;
+    private final int enqueueParallelism;
 
     private final Lock propagatorLock = new ReentrantLock();
     private final Condition propagatorCondition = propagatorLock.newCondition();
@@ -164,7 +180,9 @@ public class WorkflowExecutor
             ConfigFactory cf,
             ObjectMapper archiveMapper,
             Config systemConfig,
-            Notifier notifier)
+            Notifier notifier,
+            WakeupBusManager wakeupBusManager,
+            MetricRegistry metrics)
     {
         this.rm = rm;
         this.sm = sm;
@@ -173,7 +191,17 @@ public class WorkflowExecutor
         this.cf = cf;
         this.archiveMapper = archiveMapper;
         this.systemConfig = systemConfig;
+        this.taskTrees = new TaskTreeCache(sm);
+        this.wakeupBus = wakeupBusManager.getWakeupBus();
         this.notifier = notifier;
+        this.metrics = metrics;
+        this.incrementalPropagation = systemConfig.get("executor.incremental-propagation", boolean.class, true);
+        this.fullPropagationIntervalNanos = TimeUnit.SECONDS.toNanos(
+                systemConfig.get("executor.full-propagation-interval", int.class, 60));
+        this.synchronousPropagation = systemConfig.get("executor.synchronous-propagation", boolean.class, false);
+        this.collapseGroupingTasks = systemConfig.get("executor.collapse-grouping-tasks", boolean.class, false);
+        this.enqueueParallelism = systemConfig.get("executor.enqueue-parallelism", int.class, 4);
+        wakeupBus.subscribe(EXECUTOR_CHANNEL, () -> wakeUpPropagator());
     }
 
     public StoredSessionAttemptWithSession submitWorkflow(int siteId,
@@ -239,6 +267,7 @@ public class WorkflowExecutor
                 ? TaskStateCode.PLANNED
                 : TaskStateCode.READY;
 
+        List<Long> readyTaskIds = new ArrayList<>();
         StoredSessionAttemptWithSession stored;
         try {
             stored = sm
@@ -265,9 +294,15 @@ public class WorkflowExecutor
                         .state(rootTaskState)
                         .stateFlags(TaskStateFlags.empty().withInitialTask())
                         .build();
+                    readyTaskIds.clear();  // transaction could be retried
                     store.insertRootTask(storedAttempt.getId(), rootTask, (taskStore, storedTaskId) -> {
                         TaskControl.addInitialTasksExceptingRootTask(taskStore, storedAttempt.getId(),
                                 storedTaskId, tasks, resumingTasks);
+                        if (rootTaskState == TaskStateCode.PLANNED && collapseGroupingTasks) {
+                            for (long id : unblockChildren(taskStore, storedTaskId)) {
+                                readyTaskIds.addAll(taskStore.getChildTaskIdsByState(id, TaskStateCode.READY));
+                            }
+                        }
                         return null;
                     });
                     if (!ar.getSessionMonitors().isEmpty()) {
@@ -306,6 +341,7 @@ public class WorkflowExecutor
         }
         else {
             noticeStatusPropagate();
+            enqueueReadyTasksQuickly(readyTaskIds);
         }
 
         return stored;
@@ -327,6 +363,12 @@ public class WorkflowExecutor
     }
 
     private void noticeStatusPropagate()
+    {
+        // wakes up executors on this and other servers
+        wakeupBus.publish(EXECUTOR_CHANNEL);
+    }
+
+    private void wakeUpPropagator()
     {
         propagatorLock.lock();
         try {
@@ -372,33 +414,56 @@ public class WorkflowExecutor
 
     private static final int INITIAL_INTERVAL = 100;
     private static final int MAX_INTERVAL = 5000;
+    private static final int INCREMENTAL_PROPAGATION_OVERLAP_SECONDS = 5;
+    private static final int ENQUEUE_BATCH_SIZE = 100;
+    private static final int ENQUEUE_CHUNK_SIZE = 10;
 
     private void runWhile(BooleanSupplier cond)
             throws InterruptedException
     {
-        try (TaskQueuer queuer = new TaskQueuer()) {
+        AtomicBoolean partitionsChanged = new AtomicBoolean(false);
+        try (AttemptPartitionManager partitionManager = new AttemptPartitionManager(sm, systemConfig, () -> {
+                    partitionsChanged.set(true);
+                    wakeUpPropagator();
+                });
+                TaskQueuer queuer = new TaskQueuer();
+                SessionArchiver archiver = new SessionArchiver(sm, archiveMapper, metrics, systemConfig,
+                    () -> partitionManager.getPartitions(), () -> wakeUpPropagator())) {
+            partitionManager.start();
+            archiver.start();
+
             Instant date = sm.getStoreTime();
-            propagateAllBlockedToReady();
-            retryRetryWaitingTasks();
-            propagateSessionArchive();
-            enqueueReadyTasks(queuer);  // TODO enqueue all (not only first 100)
-            propagateAllPlannedToDone();
+            AttemptPartitions partitions = partitionManager.getPartitions();
+            propagateAllBlockedToReady(partitions);
+            retryRetryWaitingTasks(partitions);
+            enqueueReadyTasks(queuer, partitions);
+            propagateAllPlannedToDone(partitions);
+
+            IncrementalStatusPropagator prop = incrementalPropagation ? new IncrementalStatusPropagator(date, archiver) : null;
+            long lastFullPropagation = System.nanoTime();
 
-            //IncrementalStatusPropagator prop = new IncrementalStatusPropagator(date);  // TODO doesn't work yet
             int waitMsec = INITIAL_INTERVAL;
             while (cond.getAsBoolean()) {
-                //boolean inced = prop.run();
-                //boolean retried = retryRetryWaitingTasks();
-                //if (inced || retried) {
-                //    enqueueReadyTasks(queuer);
-                //    propagatorNotice = true;
-                //}
-
-                propagateAllBlockedToReady();
-                retryRetryWaitingTasks();
-                propagateSessionArchive();
-                enqueueReadyTasks(queuer);
-                boolean someDone = propagateAllPlannedToDone();
+                partitions = partitionManager.getPartitions();
+                boolean someDone;
+                if (prop != null && System.nanoTime() - lastFullPropagation < fullPropagationIntervalNanos
+                        && !partitionsChanged.get()) {
+                    someDone = prop.run(partitions);
+                    retryRetryWaitingTasks(partitions);
+                    enqueueReadyTasks(queuer, partitions);
+                }
+                else {
+                    // full scan of BLOCKED and PLANNED tasks. This is the only way
+                    // if incremental propagation is disabled. Otherwise, this runs
+                    // periodically to pick up changes missed by the incremental scan,
+                    // and when this executor took over partitions from another one.
+                    partitionsChanged.set(false);
+                    lastFullPropagation = System.nanoTime();
+                    propagateAllBlockedToReady(partitions);
+                    retryRetryWaitingTasks(partitions);
+                    enqueueReadyTasks(queuer, partitions);
+                    someDone = propagateAllPlannedToDone(partitions);
+                }
 
                 if (!someDone) {
                     propagatorLock.lock();
@@ -426,13 +491,13 @@ public class WorkflowExecutor
         }
     }
 
-    private boolean propagateAllBlockedToReady()
+    private boolean propagateAllBlockedToReady(AttemptPartitions partitions)
     {
         boolean anyChanged = false;
         long lastTaskId = 0;
         Set<Long> checkedParentIds = new HashSet<>();
         while (true) {
-            List<TaskStateSummary> tasks = sm.findTasksByState(TaskStateCode.BLOCKED, lastTaskId);
+            List<TaskStateSummary> tasks = sm.findTasksByState(partitions, TaskStateCode.BLOCKED, lastTaskId);
             if (tasks.isEmpty()) {
                 break;
             }
@@ -444,7 +509,7 @@ public class WorkflowExecutor
                         long parentId = summary.getParentId().get();
                         if (checkedParentIds.add(parentId)) {
                             return sm.lockTaskIfExists(parentId, (store) ->
-                                store.trySetChildrenBlockedToReadyOrShortCircuitPlannedOrCanceled(parentId) > 0
+                                !unblockChildren(store, parentId).isEmpty()
                             ).or(false);
                         }
                         return false;
@@ -463,12 +528,12 @@ public class WorkflowExecutor
         return anyChanged;
     }
 
-    private boolean propagateAllPlannedToDone()
+    private boolean propagateAllPlannedToDone(AttemptPartitions partitions)
     {
         boolean anyChanged = false;
         long lastTaskId = 0;
         while (true) {
-            List<TaskStateSummary> tasks = sm.findTasksByState(TaskStateCode.PLANNED, lastTaskId);
+            List<TaskStateSummary> tasks = sm.findTasksByState(partitions, TaskStateCode.PLANNED, lastTaskId);
             if (tasks.isEmpty()) {
                 break;
             }
@@ -575,7 +640,7 @@ public class WorkflowExecutor
     {
         List<Long> childrenFromThis;
         {
-            TaskTree tree = new TaskTree(sm.getTaskRelations(task.getAttemptId()));
+            TaskTree tree = taskTrees.get(task.getAttemptId());
             childrenFromThis = tree.getRecursiveChildrenIdList(task.getId());
         }
 
@@ -600,177 +665,305 @@ public class WorkflowExecutor
             .set("error", error);
     }
 
-    private boolean propagateSessionArchive()
-    {
-        boolean anyChanged = false;
-        long lastTaskId = 0;
-        while (true) {
-            List<TaskAttemptSummary> tasks = sm.findRootTasksByStates(TaskStateCode.doneStates(), lastTaskId);
-            if (tasks.isEmpty()) {
-                break;
-            }
-            anyChanged =
-                tasks
-                .stream()
-                .map(task -> {
-                    return sm.lockAttemptIfExists(task.getAttemptId(), (store, summary) -> {
-                        SessionAttemptControl control = new SessionAttemptControl(store, task.getAttemptId());
-                        control.archiveTasks(archiveMapper, task.getState() == TaskStateCode.SUCCESS);
-                        return true;
-                    }).or(false);
-                })
-                .reduce(anyChanged, (a, b) -> a || b);
-            lastTaskId = tasks.get(tasks.size() - 1).getId();
-        }
-        return anyChanged;
-    }
-
     private class IncrementalStatusPropagator
     {
+        private final SessionArchiver archiver;
         private Instant updatedSince;
 
-        private Instant lastUpdatedAt;
-        private long lastUpdatedId;
+        // (id, updated_at) of tasks already propagated within the overlap window
+        private final Map<Long, Instant> propagatedTasks = new HashMap<>();
 
-        public IncrementalStatusPropagator(Instant updatedSince)
+        public IncrementalStatusPropagator(Instant updatedSince, SessionArchiver archiver)
         {
             this.updatedSince = updatedSince;
+            this.archiver = archiver;
         }
 
-        public boolean run()
+        public boolean run(AttemptPartitions partitions)
         {
-            return propagateStatus();
+            return propagateStatus(partitions);
         }
 
-        private synchronized boolean propagateStatus()
+        private synchronized boolean propagateStatus(AttemptPartitions partitions)
         {
             boolean anyChanged = false;
-            Set<Long> checkedParentIds = new HashSet<>();
 
-            Instant nextUpdatedSince = sm.getStoreTime();
-            lastUpdatedAt = updatedSince;
-            lastUpdatedId = 0;
+            // updated_at is set by the database at the beginning of a transaction.
+            // A transaction that started before this pass may commit after it, so
+            // the next pass rescans a short overlap window instead of starting
+            // exactly from the current time. Rows found again in the window are
+            // skipped using propagatedTasks.
+            Instant nextUpdatedSince = sm.getStoreTime().minusSeconds(INCREMENTAL_PROPAGATION_OVERLAP_SECONDS);
 
+            Instant lastUpdatedAt = updatedSince;
+            long lastUpdatedId = 0;
             while (true) {
-                List<TaskStateSummary> tasks = sm.findRecentlyChangedTasks(lastUpdatedAt, lastUpdatedId);
+                List<TaskStateSummary> tasks = sm.findRecentlyChangedTasks(partitions, lastUpdatedAt, lastUpdatedId);
                 if (tasks.isEmpty()) {
                     break;
                 }
-                anyChanged =
-                    tasks
-                    .stream()
-                    .map(task -> {
-                        boolean propagatedToChildren = false;
-                        boolean propagatedFromChildren = false;
-                        boolean propagatedToSelf = false;
-
-                        if (Tasks.isDone(task.getState()) || task.getState() == TaskStateCode.PLANNED) {
-                            // this parent became planned or done. may be transite from planned to done immediately
-                            propagatedToSelf = sm.lockTaskIfExists(task.getId(), (store, storedTask) -> {
-                                return setDoneFromDoneChildren(new TaskControl(store, storedTask));
-                            }).or(false);
-
-                            if (!propagatedToSelf) {
-                                // if this task is not done yet, transite children from blocked to ready
-                                propagatedToChildren = sm.lockTaskIfExists(task.getId(), (store) ->
-                                    // collect parameters and set them to ready tasks at the same time? no, because children's export_params/store_params are not propagated to parents
-                                    store.trySetChildrenBlockedToReadyOrShortCircuitPlannedOrCanceled(task.getId()) > 0
-                                ).or(false);
-                            }
-                        }
 
-                        if (Tasks.isDone(task.getState())) {
-                            if (task.getParentId().isPresent()) {
-                                // this child became done. try to transite parent from planned to done.
-                                // and dependint siblings tasks may be able to start
-                                if (checkedParentIds.add(task.getParentId().get())) {
-                                    propagatedFromChildren = sm.lockTaskIfExists(task.getParentId().get(), (store, storedTask) -> {
-                                        boolean doneFromChildren = setDoneFromDoneChildren(new TaskControl(store, storedTask));
-                                        boolean siblingsToReady = store.trySetChildrenBlockedToReadyOrShortCircuitPlannedOrCanceled(task.getId()) > 0;
-                                        return doneFromChildren || siblingsToReady;
-                                    }).or(false);
-                                }
-                            }
-                            else {
-                                // root task became done.
-                                // TODO return archiveSession(task.getid());
-                                //logger.info("Root task is done with state {}",
-                                //        task.getState());
+                // a task is locked at most once per page. It's safe because the page
+                // is read before the lock and includes all changes committed so far.
+                Set<Long> checkedTaskIds = new HashSet<>();
+                for (TaskStateSummary task : tasks) {
+                    if (task.getUpdatedAt().equals(propagatedTasks.put(task.getId(), task.getUpdatedAt()))) {
+                        continue;
+                    }
+
+                    TaskStateCode state = task.getState();
+                    if (state == TaskStateCode.PLANNED) {
+                        // this task became planned. start children or transite
+                        // to done immediately if it has no children.
+                        if (checkedTaskIds.add(task.getId())) {
+                            anyChanged = propagateFromChildren(task.getId()) || anyChanged;
+                        }
+                    }
+                    else if (state == TaskStateCode.BLOCKED || Tasks.isDone(state)) {
+                        // a child is added or became done. dependent siblings may be
+                        // able to start, and the parent may be able to transite to done.
+                        if (task.getParentId().isPresent()) {
+                            long parentId = task.getParentId().get();
+                            if (checkedTaskIds.add(parentId)) {
+                                anyChanged = propagateFromChildren(parentId) || anyChanged;
                             }
                         }
+                        else if (Tasks.isDone(state)) {
+                            // attempt is done. archive it without waiting for the interval
+                            archiver.notice();
+                        }
+                    }
+                }
 
-                        lastUpdatedAt = task.getUpdatedAt();
-                        lastUpdatedId = task.getId();
+                TaskStateSummary last = tasks.get(tasks.size() - 1);
+                lastUpdatedAt = last.getUpdatedAt();
+                lastUpdatedId = last.getId();
+            }
 
-                        return propagatedToChildren || propagatedFromChildren || propagatedToSelf;
-                    })
-                    .reduce(anyChanged, (a, b) -> a || b);
+            if (nextUpdatedSince.isAfter(updatedSince)) {
+                updatedSince = nextUpdatedSince;
             }
-            updatedSince = nextUpdatedSince;
+            propagatedTasks.values().removeIf(updatedAt -> updatedAt.isBefore(updatedSince));
 
             return anyChanged;
         }
+
+        private boolean propagateFromChildren(long taskId)
+        {
+            return sm.lockTaskIfExists(taskId, (store, storedTask) -> {
+                boolean childrenToReady = !unblockChildren(store, taskId).isEmpty();
+                boolean doneFromChildren = setDoneFromDoneChildren(new TaskControl(store, storedTask));
+                return childrenToReady || doneFromChildren;
+            }).or(false);
+        }
     }
 
-    private boolean retryRetryWaitingTasks()
+    private boolean retryRetryWaitingTasks(AttemptPartitions partitions)
     {
-        return sm.trySetRetryWaitingToReady() > 0;
+        return sm.trySetRetryWaitingToReady(partitions) > 0;
     }
 
     private class TaskQueuer
             implements AutoCloseable
     {
-        private final Map<Long, Future<Void>> waiting = new ConcurrentHashMap<>();
+        // ids of tasks submitted to the executor and not finished yet
+        private final Set<Long> waiting = ConcurrentHashMap.newKeySet();
         private final ExecutorService executor;
 
         public TaskQueuer()
         {
-            this.executor = Executors.newCachedThreadPool(
+            // when all threads are busy and the queue is full, the executor
+            // loop thread enqueues tasks by itself. This bounds memory usage
+            // and slows down the loop instead of accumulating tasks.
+            this.executor = new ThreadPoolExecutor(
+                    enqueueParallelism, enqueueParallelism,
+                    0L, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<>(enqueueParallelism * 2),
                     new ThreadFactoryBuilder()
                     .setDaemon(true)
                     .setNameFormat("task-queuer-%d")
-                    .build()
-                    );
+                    .build(),
+                    new ThreadPoolExecutor.CallerRunsPolicy());
         }
 
         public void close()
         {
-            // TODO
             executor.shutdown();
-            //executor.awaitShutdown(10, TimeUnit.SECONDS);
-            //executor.shutdownNow();
-        }
-
-        //public synchronized Future<Void> asyncEnqueueTask(final long taskId)
-        //{
-        //    if (waiting.containsKey(taskId)) {
-        //        return waiting.get(taskId);
-        //    }
-        //    Future<Void> future = executor.submit(() -> {
-        //        try {
-        //            enqueueTask(dispatcher, taskId);
-        //        }
-        //        catch (Throwable t) {
-        //            logger.error("Uncaught exception during enqueuing a task request. This enqueue attempt will be retried", t);
-        //        }
-        //        finally {
-        //            waiting.remove(taskId);
-        //        }
-        //        return null;
-        //    });
-        //    waiting.put(taskId, future);
-        //    return future;
-        //}
+            try {
+                if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                    // remaining tasks are still READY and enqueued by the next executor
+                    executor.shutdownNow();
+                }
+            }
+            catch (InterruptedException ex) {
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        public void asyncEnqueueTasks(List<Long> taskIds)
+        {
+            // skip tasks that are being enqueued by another thread.
+            // they are still READY until the enqueuing thread commits.
+            List<Long> newTaskIds = taskIds.stream()
+                .filter(taskId -> waiting.add(taskId))
+                .collect(Collectors.toList());
+            for (List<Long> chunk : Lists.partition(newTaskIds, ENQUEUE_CHUNK_SIZE)) {
+                // copy because Lists.partition returns a view of the list
+                List<Long> ids = ImmutableList.copyOf(chunk);
+                executor.execute(() -> {
+                    try {
+                        enqueueTasksOrEach(ids);
+                    }
+                    catch (Throwable t) {
+                        logger.error("Uncaught exception during enqueuing task requests. This enqueue attempt will be retried", t);
+                    }
+                    finally {
+                        waiting.removeAll(ids);
+                    }
+                });
+            }
+        }
     }
 
-    private void enqueueReadyTasks(TaskQueuer queuer)
+    private void enqueueReadyTasks(TaskQueuer queuer, AttemptPartitions partitions)
     {
-        for (long taskId : sm.findAllReadyTaskIds(100)) {  // TODO randomize this resut to achieve concurrency
-            enqueueTask(dispatcher, taskId);
-            //queuer.asyncEnqueueTask(taskId);  // TODO async queuing is probably unnecessary but not sure
+        long lastTaskId = 0;
+        while (true) {
+            List<Long> taskIds = sm.findAllReadyTaskIds(partitions, ENQUEUE_BATCH_SIZE, lastTaskId);
+            if (taskIds.isEmpty()) {
+                break;
+            }
+            queuer.asyncEnqueueTasks(taskIds);
+            lastTaskId = taskIds.get(taskIds.size() - 1);
         }
     }
 
+    private void enqueueTasksOrEach(List<Long> taskIds)
+    {
+        boolean dispatched = enqueueTasks(dispatcher, taskIds);
+        if (!dispatched) {
+            // fallback to enqueue one by one so that a failure affects only the failed task
+            for (long taskId : taskIds) {
+                enqueueTask(dispatcher, taskId);
+            }
+        }
+    }
+
+    private boolean enqueueTasks(final TaskQueueDispatcher dispatcher, final List<Long> taskIds)
+    {
+        return sm.lockTasksIfExist(taskIds, (store, tasks) -> {
+            List<TaskControl> readyTasks = new ArrayList<>();
+            for (StoredTask task : tasks) {
+                TaskControl lockedTask = new TaskControl(store, task);
+                if (lockedTask.getState() != TaskStateCode.READY) {
+                    continue;
+                }
+                if (task.getTaskType().isGroupingOnly()) {
+                    retryGroupingTask(store, lockedTask);
+                }
+                else if (task.getStateFlags().isCancelRequested()) {
+                    lockedTask.setToCanceled();
+                }
+                else {
+                    readyTasks.add(lockedTask);
+                }
+            }
+            if (readyTasks.isEmpty()) {
+                return true;
+            }
+
+            // load context of all tasks at once
+            Map<Long, StoredSessionAttemptWithSession> attempts = sm.getAttemptsWithSessionByIds(
+                    readyTasks.stream()
+                    .map(lockedTask -> lockedTask.get().getAttemptId())
+                    .distinct()
+                    .collect(Collectors.toList()))
+                .stream()
+                .collect(Collectors.toMap(attempt -> attempt.getId(), attempt -> attempt));
+            Map<Long, StoredRevision> revisions = rm.getRevisionsOfWorkflowDefinitions(
+                    attempts.values().stream()
+                    .filter(attempt -> attempt.getWorkflowDefinitionId().isPresent())
+                    .map(attempt -> attempt.getWorkflowDefinitionId().get())
+                    .distinct()
+                    .collect(Collectors.toList()));
+            Map<Integer, StoredProject> projects = rm.getProjectsByIdInternal(
+                    attempts.values().stream()
+                    .map(attempt -> attempt.getSession().getProjectId())
+                    .distinct()
+                    .collect(Collectors.toList()))
+                .stream()
+                .collect(Collectors.toMap(project -> project.getId(), project -> project));
+
+            List<TaskRequest> requests = new ArrayList<>();
+            List<TaskControl> dispatchingTasks = new ArrayList<>();
+            for (TaskControl lockedTask : readyTasks) {
+                StoredTask task = lockedTask.get();
+
+                StoredSessionAttemptWithSession attempt = attempts.get(task.getAttemptId());
+                if (attempt == null) {
+                    Exception error = new IllegalStateException("Task id="+task.getId()+" is ready to run but associated session attempt does not exist.");
+                    logger.error("Database state error enqueuing task.", error);
+                    continue;
+                }
+
+                Optional<StoredRevision> rev = Optional.absent();
+                if (attempt.getWorkflowDefinitionId().isPresent()) {
+                    rev = Optional.fromNullable(revisions.get(attempt.getWorkflowDefinitionId().get()));
+                    if (!rev.isPresent()) {
+                        Exception error = new IllegalStateException("Task id="+task.getId()+" is ready to run but associated workflow definition does not exist.");
+                        logger.error("Database state error enqueuing task.", error);
+                        continue;
+                    }
+                }
+
+                StoredProject project = projects.get(attempt.getSession().getProjectId());
+                if (project == null) {
+                    Exception error = new IllegalStateException("Task id=" + task.getId() + " is ready to run but associated project does not exist.");
+                    logger.error("Database state error enqueuing task.", error);
+                    continue;
+                }
+
+                try {
+                    requests.add(buildTaskRequest(task, attempt, rev, project));
+                    dispatchingTasks.add(lockedTask);
+                }
+                catch (Exception ex) {
+                    logger.error("Enqueue error, making this task failed: {}", task, ex);
+                    taskFailed(lockedTask, buildExceptionErrorConfig(ex).toConfig(cf));
+                }
+            }
+            if (requests.isEmpty()) {
+                return true;
+            }
+
+            logger.debug("Queuing {} tasks", requests.size());
+            try {
+                dispatcher.dispatch(requests);
+            }
+            catch (Exception ex) {
+                // nothing is enqueued because a batch is enqueued in a transaction
+                logger.warn("Failed to enqueue {} tasks at once. Retrying one by one.", requests.size(), ex);
+                return false;
+            }
+
+            ////
+            // don't throw exceptions after here. tasks are already dispatched to a queue
+            //
+
+            for (TaskControl lockedTask : dispatchingTasks) {
+                boolean updated = lockedTask.setReadyToRunning();
+                if (!updated) {
+                    // return value of setReadyToRunning must be true because this task is locked
+                    // (won't be updated by other machines concurrently) and confirmed that
+                    // current state is READY.
+                    logger.warn("Unexpected state change failure from READY to RUNNING: {}", lockedTask.get());
+                }
+            }
+            return true;
+        });
+    }
+
     private void enqueueTask(final TaskQueueDispatcher dispatcher, final long taskId)
     {
         sm.lockTaskIfExists(taskId, (store, task) -> {
@@ -780,7 +973,7 @@ public class WorkflowExecutor
             }
 
             if (task.getTaskType().isGroupingOnly()) {
-                return retryGroupingTask(lockedTask);
+                return retryGroupingTask(store, lockedTask);
             }
 
             StoredSessionAttemptWithSession attempt;
@@ -816,52 +1009,7 @@ public class WorkflowExecutor
             }
 
             try {
-                // merge order is:
-                //   revision default < attempt < task < runtime
-                Config params = cf.fromJsonString(systemConfig.get("digdag.defaultParams", String.class, "{}"));
-                if (rev.isPresent()) {
-                    params.merge(rev.get().getDefaultParams());
-                }
-                params.merge(attempt.getParams());
-                collectParams(params, task, attempt);
-
-                // remove conditional subtasks that may cause JavaScript evaluation error if they include reference to a nested field such as
-                // this_will_be_set_at_this_task.this_is_null.this_access_causes_error.
-                // _do is another conditional subtsaks but they are kept remained and removed later at ConfigEvalEngine because
-                // operator factory needs _do while _check and _error are used only by WorkflowExecutor.
-                Config localConfig = task.getConfig().getLocal().deepCopy();
-                params.remove("_check");
-                params.remove("_error");
-                localConfig.remove("_check");
-                localConfig.remove("_error");
-
-                // create TaskRequest for OperatorManager.
-                // OperatorManager will ignore localConfig because it reloads config from dagfile_path with using the lates params.
-                // TaskRequest.config usually stores params merged with local config. but here passes only params (local config is not merged)
-                // so that OperatorManager can build it using the reloaded local config.
-                TaskRequest request = TaskRequest.builder()
-                    .siteId(attempt.getSiteId())
-                    .projectId(attempt.getSession().getProjectId())
-                    .projectName(project.getName())
-                    .workflowName(attempt.getSession().getWorkflowName())
-                    .revision(rev.transform(it -> it.getName()))
-                    .taskId(task.getId())
-                    .attemptId(attempt.getId())
-                    .sessionId(attempt.getSessionId())
-                    .retryAttemptName(attempt.getRetryAttemptName())
-                    .taskName(task.getFullName())
-                    .queueName(DEFAULT_QUEUE_NAME)  // TODO make this configurable
-                    // TODO support queue resourceType
-                    .lockId("")   // this will be overwritten by TaskQueueServer
-                    .priority(0)  // TODO make this configurable
-                    .timeZone(attempt.getTimeZone())
-                    .sessionUuid(attempt.getSessionUuid())
-                    .sessionTime(attempt.getSession().getSessionTime())
-                    .createdAt(Instant.now())
-                    .localConfig(localConfig)
-                    .config(params)
-                    .lastStateParams(task.getStateParams())
-                    .build();
+                TaskRequest request = buildTaskRequest(task, attempt, rev, project);
 
                 if (task.getStateFlags().isCancelRequested()) {
                     return lockedTask.setToCanceled();
@@ -893,28 +1041,125 @@ public class WorkflowExecutor
         }).or(false);
     }
 
-    private boolean retryGroupingTask(TaskControl lockedTask)
+    private TaskRequest buildTaskRequest(StoredTask task, StoredSessionAttemptWithSession attempt,
+            Optional<StoredRevision> rev, StoredProject project)
+    {
+        // merge order is:
+        //   revision default < attempt < task < runtime
+        Config params = cf.fromJsonString(systemConfig.get("digdag.defaultParams", String.class, "{}"));
+        if (rev.isPresent()) {
+            params.merge(rev.get().getDefaultParams());
+        }
+        params.merge(attempt.getParams());
+        collectParams(params, task, attempt);
+
+        // remove conditional subtasks that may cause JavaScript evaluation error if they include reference to a nested field such as
+        // this_will_be_set_at_this_task.this_is_null.this_access_causes_error.
+        // _do is another conditional subtsaks but they are kept remained and removed later at ConfigEvalEngine because
+        // operator factory needs _do while _check and _error are used only by WorkflowExecutor.
+        Config localConfig = task.getConfig().getLocal().deepCopy();
+        params.remove("_check");
+        params.remove("_error");
+        localConfig.remove("_check");
+        localConfig.remove("_error");
+
+        // create TaskRequest for OperatorManager.
+        // OperatorManager will ignore localConfig because it reloads config from dagfile_path with using the lates params.
+        // TaskRequest.config usually stores params merged with local config. but here passes only params (local config is not merged)
+        // so that OperatorManager can build it using the reloaded local config.
+        return TaskRequest.builder()
+            .siteId(attempt.getSiteId())
+            .projectId(attempt.getSession().getProjectId())
+            .projectName(project.getName())
+            .workflowName(attempt.getSession().getWorkflowName())
+            .revision(rev.transform(it -> it.getName()))
+            .taskId(task.getId())
+            .attemptId(attempt.getId())
+            .sessionId(attempt.getSessionId())
+            .retryAttemptName(attempt.getRetryAttemptName())
+            .taskName(task.getFullName())
+            .queueName(getQueueParam(localConfig, params, "_queue", String.class).or(DEFAULT_QUEUE_NAME))
+            .resourceType(getQueueParam(localConfig, params, "_resource", String.class))
+            .lockId("")   // this will be overwritten by TaskQueueServer
+            .priority(getQueueParam(localConfig, params, "_priority", int.class).or(0))
+            .timeZone(attempt.getTimeZone())
+            .sessionUuid(attempt.getSessionUuid())
+            .sessionTime(attempt.getSession().getSessionTime())
+            .createdAt(Instant.now())
+            .localConfig(localConfig)
+            .config(params)
+            .lastStateParams(task.getStateParams())
+            .build();
+    }
+
+    // task config overrides params so that _export of parent tasks can set defaults
+    private static <T> Optional<T> getQueueParam(Config localConfig, Config params, String key, Class<T> type)
+    {
+        Optional<T> value = localConfig.getOptional(key, type);
+        if (value.isPresent()) {
+            return value;
+        }
+        return params.getOptional(key, type);
+    }
+
+    private boolean retryGroupingTask(TaskControlStore store, TaskControl lockedTask)
     {
         // rest task state of subtasks
         StoredTask task = lockedTask.get();
 
-        TaskTree tree = new TaskTree(sm.getTaskRelations(task.getAttemptId()));
+        TaskTree tree = taskTrees.get(task.getAttemptId());
         List<Long> childrenIdList = tree.getRecursiveChildrenIdList(task.getId());
         lockedTask.copyInitialTasksForRetry(childrenIdList);
+        taskTrees.invalidate(task.getAttemptId());
 
         lockedTask.setGroupRetryReadyToPlanned();
 
+        if (collapseGroupingTasks) {
+            unblockChildren(store, task.getId());
+        }
+
         return true;
     }
 
+    // Unblocks children of a locked PLANNED task. If executor.collapse-grouping-tasks
+    // is enabled, this also unblocks children of grouping-only children that became
+    // PLANNED, recursively down to the first runnable tasks, so that nested groups
+    // don't wait for a pass of the propagator at every level. Only groups of
+    // which children are all BLOCKED are followed. No other transaction locks
+    // them from a descendant, so locking them after the parent doesn't deadlock.
+    // Returns ids of tasks of which children changed.
+    private List<Long> unblockChildren(TaskControlStore store, long taskId)
+    {
+        if (store.trySetChildrenBlockedToReadyOrShortCircuitPlannedOrCanceled(taskId) == 0) {
+            return ImmutableList.of();
+        }
+        List<Long> unblockedIds = new ArrayList<>();
+        unblockedIds.add(taskId);
+        if (collapseGroupingTasks) {
+            for (long childId : store.getPlannedGroupingChildTaskIds(taskId)) {
+                unblockedIds.addAll(unblockChildren(store, childId));
+            }
+        }
+        return unblockedIds;
+    }
+
     public boolean taskFailed(int siteId, long taskId, String lockId, AgentId agentId,
             Config error)
     {
-        boolean changed = sm.lockTaskIfExists(taskId, (store, task) ->
-            taskFailed(new TaskControl(store, task), error)
-        ).or(false);
+        List<Long> readyTaskIds = new ArrayList<>();
+        boolean changed = sm.lockTaskIfExists(taskId, (store, task) -> {
+            readyTaskIds.clear();  // transaction could be retried
+            boolean updated = taskFailed(new TaskControl(store, task), error);
+            if (updated && synchronousPropagation) {
+                readyTaskIds.addAll(propagateFromFinishedTask(store, taskId));
+            }
+            return updated;
+        }).or(false);
         if (changed) {
+            // other servers are notified after commit so that they can see the change
+            noticeStatusPropagate();
             dispatcher.taskFinished(siteId, lockId, agentId);
+            enqueueReadyTasksQuickly(readyTaskIds);
         }
         return changed;
     }
@@ -922,16 +1167,34 @@ public class WorkflowExecutor
     public boolean taskSucceeded(int siteId, long taskId, String lockId, AgentId agentId,
             TaskResult result)
     {
-        boolean changed = sm.lockTaskIfExists(taskId, (store, task) ->
-            taskSucceeded(new TaskControl(store, task),
-                    result)
-        ).or(false);
+        List<Long> readyTaskIds = new ArrayList<>();
+        boolean changed = sm.lockTaskIfExists(taskId, (store, task) -> {
+            readyTaskIds.clear();  // transaction could be retried
+            boolean updated = taskSucceeded(new TaskControl(store, task),
+                    result);
+            if (updated && synchronousPropagation) {
+                readyTaskIds.addAll(propagateFromFinishedTask(store, taskId));
+            }
+            return updated;
+        }).or(false);
         if (changed) {
+            // other servers are notified after commit so that they can see the change
+            noticeStatusPropagate();
             dispatcher.taskFinished(siteId, lockId, agentId);
+            enqueueReadyTasksQuickly(readyTaskIds);
         }
         return changed;
     }
 
+    // stores state params of a task that keeps running and polls again in the agent
+    public boolean updateStateParams(int siteId, long taskId, String lockId, AgentId agentId,
+            Config stateParams)
+    {
+        return sm.lockTaskIfExists(taskId, (store, task) ->
+            new TaskControl(store, task).updateRunningStateParams(stateParams)
+        ).or(false);
+    }
+
     public boolean retryTask(int siteId, long taskId, String lockId, AgentId agentId,
             int retryInterval, Config retryStateParams,
             Optional<Config> error)
@@ -942,11 +1205,70 @@ public class WorkflowExecutor
                 error)
         ).or(false);
         if (changed) {
+            // other servers are notified after commit so that they can see the change
+            noticeStatusPropagate();
             dispatcher.taskFinished(siteId, lockId, agentId);
         }
         return changed;
     }
 
+    // Propagates state of a task that just finished running to its children
+    // and parents in the same transaction. This is an optimization to start
+    // following tasks without waiting for the next pass of the propagator.
+    // Returns ids of tasks that became READY.
+    private List<Long> propagateFromFinishedTask(TaskControlStore store, long taskId)
+    {
+        List<Long> readyTaskIds = new ArrayList<>();
+        long id = taskId;
+        while (true) {
+            // here locks tasks from the finished task to its parents so that
+            // this doesn't deadlock with other callbacks that lock siblings.
+            TaskControl lockedTask;
+            try {
+                lockedTask = new TaskControl(store, store.getTaskById(id));
+            }
+            catch (ResourceNotFoundException ex) {
+                throw new IllegalStateException("Database state error", ex);
+            }
+
+            if (lockedTask.getState() == TaskStateCode.PLANNED) {
+                for (long unblockedId : unblockChildren(store, id)) {
+                    readyTaskIds.addAll(store.getChildTaskIdsByState(unblockedId, TaskStateCode.READY));
+                }
+                setDoneFromDoneChildren(lockedTask);
+            }
+
+            if (!Tasks.isDone(lockedTask.getState()) || !lockedTask.get().getParentId().isPresent()) {
+                // root task is archived by SessionArchiver
+                break;
+            }
+            id = lockedTask.get().getParentId().get();
+            if (!store.lockTaskIfExists(id)) {
+                break;
+            }
+        }
+        return readyTaskIds;
+    }
+
+    private void enqueueReadyTasksQuickly(List<Long> readyTaskIds)
+    {
+        if (readyTaskIds.isEmpty()) {
+            return;
+        }
+        // this is an optimization to dispatch tasks to a queue quickly
+        // like submitTasks does for the root task.
+        try {
+            for (List<Long> taskIds : Lists.partition(readyTaskIds, ENQUEUE_BATCH_SIZE)) {
+                enqueueTasks(dispatcher, taskIds);
+            }
+        }
+        catch (Exception ex) {
+            // fallback to the normal operation. enqueueReadyTasks will
+            // enqueue the tasks later.
+            logger.warn("Failed to enqueue tasks quickly. Leaving them to the executor: {}", readyTaskIds, ex);
+        }
+    }
+
     private boolean taskFailed(TaskControl lockedTask, Config error)
     {
         logger.trace("Task failed with error {} with no retry: {}",
@@ -970,7 +1292,7 @@ public class WorkflowExecutor
             updated = lockedTask.setRunningToShortCircuitError(error);
         }
 
-        noticeStatusPropagate();
+        wakeUpPropagator();
 
         if (!updated) {
             // return value of setRunningToRetryWaiting, setRunningToPlannedSuccessful, or setRunningToShortCircuitError
@@ -999,7 +1321,7 @@ public class WorkflowExecutor
         addCheckTasksIfAny(lockedTask, rootSubtaskId);
         boolean updated = lockedTask.setRunningToPlannedSuccessful(result);
 
-        noticeStatusPropagate();
+        wakeUpPropagator();
 
         if (!updated) {
             // return value of setRunningToPlannedSuccessful must be true because this task is locked
@@ -1027,7 +1349,7 @@ public class WorkflowExecutor
 
         boolean updated = lockedTask.setRunningToRetryWaiting(retryStateParams, retryInterval);
 
-        noticeStatusPropagate();
+        wakeUpPropagator();
 
         if (!updated) {
             // return value of setRunningToRetryWaiting must be true because this task is locked
@@ -1043,7 +1365,7 @@ public class WorkflowExecutor
         List<Long> parentsFromRoot;
         List<Long> parentsUpstreamChildrenFromFar;
         {
-            TaskTree tree = new TaskTree(sm.getTaskRelations(attempt.getId()));
+            TaskTree tree = taskTrees.get(attempt.getId());
             parentsFromRoot = tree.getRecursiveParentIdListFromRoot(task.getId());
             parentsUpstreamChildrenFromFar = tree.getRecursiveParentsUpstreamChildrenIdListFromFar(task.getId());
         }
@@ -1066,6 +1388,14 @@ public class WorkflowExecutor
         params.merge(task.getConfig().getExport());
     }
 
+    private long addGeneratedSubtasks(TaskControl lockedTask, WorkflowTaskList tasks,
+            List<Long> rootUpstreamIds, boolean cancelSiblings)
+    {
+        long rootTaskId = lockedTask.addGeneratedSubtasks(tasks, rootUpstreamIds, cancelSiblings);
+        taskTrees.invalidate(lockedTask.get().getAttemptId());
+        return rootTaskId;
+    }
+
     private Optional<Long> addSubtasksIfNotEmpty(TaskControl lockedTask, Config subtaskConfig)
     {
         if (subtaskConfig.isEmpty()) {
@@ -1078,7 +1408,7 @@ public class WorkflowExecutor
         }
 
         logger.trace("Adding sub tasks: {}", tasks);
-        long rootTaskId = lockedTask.addGeneratedSubtasks(tasks, ImmutableList.of(), true);
+        long rootTaskId = addGeneratedSubtasks(lockedTask, tasks, ImmutableList.of(), true);
         return Optional.of(rootTaskId);
     }
 
@@ -1107,7 +1437,7 @@ public class WorkflowExecutor
         }
 
         logger.trace("Adding error tasks: {}", tasks);
-        long rootTaskId = lockedTask.addGeneratedSubtasks(tasks, ImmutableList.of(), false);
+        long rootTaskId = addGeneratedSubtasks(lockedTask, tasks, ImmutableList.of(), false);
         taskIds.add(rootTaskId);
         return taskIds;
     }
@@ -1118,7 +1448,7 @@ public class WorkflowExecutor
         config.set("_type", "notify");
         config.set("_command", "Workflow session attempt failed");
         WorkflowTaskList tasks = compiler.compileTasks(rootTask.get().getFullName(), "^failure-alert", config);
-        return rootTask.addGeneratedSubtasks(tasks, ImmutableList.of(), false);
+        return addGeneratedSubtasks(rootTask, tasks, ImmutableList.of(), false);
     }
 
     private Optional<Long> addCheckTasksIfAny(TaskControl lockedTask, Optional<Long> upstreamTaskId)
@@ -1135,7 +1465,7 @@ public class WorkflowExecutor
 
         logger.trace("Adding check tasks: {}"+tasks);
         List<Long> upstreamTaskIdList = upstreamTaskId.transform(id -> ImmutableList.of(id)).or(ImmutableList.of());
-        long rootTaskId = lockedTask.addGeneratedSubtasks(tasks, upstreamTaskIdList, false);
+        long rootTaskId = addGeneratedSubtasks(lockedTask, tasks, upstreamTaskIdList, false);
         return Optional.of(rootTaskId);
     }
 
@@ -1157,7 +1487,7 @@ public class WorkflowExecutor
         }
 
         logger.trace("Adding {} tasks: {}", type, tasks);
-        long rootTaskId = lockedTask.addGeneratedSubtasks(tasks, ImmutableList.of(), false);
+        long rootTaskId = addGeneratedSubtasks(lockedTask, tasks, ImmutableList.of(), false);
         return Optional.of(rootTaskId);
     }
 
@@ -1181,7 +1511,7 @@ public class WorkflowExecutor
             WorkflowTaskList tasks = compiler.compileTasks(lockedTask.get().getFullName(), "^" + type + "^alert", config);
             logger.trace("Adding {} tasks: {}", type, tasks);
             // TODO: attempt should not fail if the alert notification task fails
-            lockedTask.addGeneratedSubtasks(tasks, ImmutableList.of(), false);
+            addGeneratedSubtasks(lockedTask, tasks, ImmutableList.of(), false);
         }
 
         // Fail the attempt?
@@ -1199,7 +1529,7 @@ public class WorkflowExecutor
             config.set("_command", "SLA violation");
             WorkflowTaskList tasks = compiler.compileTasks(lockedTask.get().getFullName(), "^" + type + "^fail", config);
             logger.trace("Adding {} tasks: {}", type, tasks);
-            lockedTask.addGeneratedSubtasks(tasks, ImmutableList.of(), false);
+            addGeneratedSubtasks(lockedTask, tasks, ImmutableList.of(), false);
         }
     }
 }
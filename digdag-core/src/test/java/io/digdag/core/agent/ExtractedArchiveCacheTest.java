@@ -0,0 +1,98 @@
+package io.digdag.core.agent;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class ExtractedArchiveCacheTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final AtomicInteger extracted = new AtomicInteger();
+
+    private boolean extract(Path dir, String content)
+        throws IOException
+    {
+        extracted.incrementAndGet();
+        Files.createDirectories(dir.resolve("sub"));
+        Files.write(dir.resolve("sub/file.txt"), content.getBytes(UTF_8));
+        return true;
+    }
+
+    @Test
+    public void reuseAndEvict()
+        throws Exception
+    {
+        MetricRegistry metrics = new MetricRegistry();
+        Path cacheDir = folder.newFolder("cache").toPath();
+        ExtractedArchiveCache cache = new ExtractedArchiveCache(cacheDir, 10, ExtractedArchiveCache.Mode.COPY, metrics);
+
+        Path ws1 = folder.newFolder().toPath();
+        cache.populate("a", ws1, (dir) -> extract(dir, "aaaaaa"));
+        Path ws2 = folder.newFolder().toPath();
+        cache.populate("a", ws2, (dir) -> extract(dir, "aaaaaa"));
+        assertEquals(1, extracted.get());
+        assertEquals("aaaaaa", new String(Files.readAllBytes(ws2.resolve("sub/file.txt")), UTF_8));
+
+        // copies are not shared
+        Files.write(ws2.resolve("sub/file.txt"), "modified".getBytes(UTF_8));
+        assertEquals("aaaaaa", new String(Files.readAllBytes(ws1.resolve("sub/file.txt")), UTF_8));
+
+        // "a" is evicted because total size exceeds the limit
+        cache.populate("b", folder.newFolder().toPath(), (dir) -> extract(dir, "bbbbbb"));
+        assertEquals(6, cache.getTotalBytes());
+        // files of "a" are deleted
+        try (Stream<Path> files = Files.list(cacheDir)) {
+            assertEquals(1, files.count());
+        }
+        cache.populate("a", folder.newFolder().toPath(), (dir) -> extract(dir, "aaaaaa"));
+        assertEquals(3, extracted.get());
+        assertEquals(1, metrics.counter("digdag.workspace-cache.hits").getCount());
+        assertEquals(3, metrics.counter("digdag.workspace-cache.misses").getCount());
+    }
+
+    @Test
+    public void hardlinkedFilesAreReadOnly()
+        throws Exception
+    {
+        ExtractedArchiveCache cache = new ExtractedArchiveCache(folder.newFolder("cache").toPath(), 1024, ExtractedArchiveCache.Mode.HARDLINK, new MetricRegistry());
+
+        Path ws = folder.newFolder().toPath();
+        cache.populate("a", ws, (dir) -> extract(dir, "aaaaaa"));
+        assertFalse(Files.getPosixFilePermissions(ws.resolve("sub/file.txt")).contains(PosixFilePermission.OWNER_WRITE));
+
+        // replacing a file doesn't change the cache
+        Files.delete(ws.resolve("sub/file.txt"));
+        Files.write(ws.resolve("sub/file.txt"), "modified".getBytes(UTF_8));
+        Path ws2 = folder.newFolder().toPath();
+        cache.populate("a", ws2, (dir) -> extract(dir, "aaaaaa"));
+        assertEquals("aaaaaa", new String(Files.readAllBytes(ws2.resolve("sub/file.txt")), UTF_8));
+    }
+
+    @Test
+    public void reflinkedFilesAreNotShared()
+        throws Exception
+    {
+        ExtractedArchiveCache cache = new ExtractedArchiveCache(folder.newFolder("cache").toPath(), 1024, ExtractedArchiveCache.Mode.REFLINK, new MetricRegistry());
+
+        Path ws = folder.newFolder().toPath();
+        cache.populate("a", ws, (dir) -> extract(dir, "aaaaaa"));
+        Files.write(ws.resolve("sub/file.txt"), "modified".getBytes(UTF_8));
+
+        Path ws2 = folder.newFolder().toPath();
+        cache.populate("a", ws2, (dir) -> extract(dir, "aaaaaa"));
+        assertEquals(1, extracted.get());
+        assertEquals("aaaaaa", new String(Files.readAllBytes(ws2.resolve("sub/file.txt")), UTF_8));
+    }
+}
@@ -0,0 +1,303 @@
+package io.digdag.core.agent;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Optional;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import io.digdag.client.config.Config;
+import io.digdag.client.config.ConfigElement;
+import io.digdag.client.config.ConfigFactory;
+import io.digdag.core.TempFileManager;
+import io.digdag.core.log.TaskLogger;
+import io.digdag.core.workflow.WorkflowCompiler;
+import io.digdag.spi.Operator;
+import io.digdag.spi.OperatorFactory;
+import io.digdag.spi.StorageObject;
+import io.digdag.spi.TaskExecutionException;
+import io.digdag.spi.TaskRequest;
+import io.digdag.spi.TaskResult;
+import io.digdag.spi.WorkspaceRequirement;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static io.digdag.core.database.DatabaseTestingUtils.createConfigFactory;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class OperatorManagerTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ConfigFactory cf;
+    private TaskCallbackApi callback;
+    private OperatorRegistry registry;
+    private OperatorManager manager;
+
+    // file names in the workspace seen by the last operator
+    private List<String> workspaceFiles;
+
+    // lastStateParams seen by the poll operator
+    private final List<Config> pollStates = new ArrayList<>();
+
+    @Before
+    public void setUp()
+        throws Exception
+    {
+        cf = createConfigFactory();
+        callback = mock(TaskCallbackApi.class);
+        when(callback.newTaskLogger(any(TaskRequest.class))).thenReturn(mock(TaskLogger.class));
+        when(callback.openArchive(any(TaskRequest.class))).thenAnswer(invocation -> Optional.of(archive()));
+        when(callback.getArchiveMd5(any(TaskRequest.class))).thenReturn(Optional.absent());
+        when(callback.getStateParams(anyInt(), anyLong())).thenReturn(Optional.absent());
+
+        registry = mock(OperatorRegistry.class);
+        addOperator("echo", WorkspaceRequirement.NONE);
+        addOperator("td", WorkspaceRequirement.LAZY);
+        addOperator("sh", WorkspaceRequirement.FULL);
+        addPollOperator();
+
+        Config systemConfig = cf.create().set("agent.workspace-cache.max-bytes", 0);
+        WorkspaceManager workspaceManager = new LocalWorkspaceManager(
+                new TempFileManager(folder.newFolder().toPath()), systemConfig, new MetricRegistry());
+        manager = new OperatorManager(AgentConfig.defaultBuilder().build(), AgentId.of("a1"),
+                callback, workspaceManager, new WorkflowCompiler(), cf,
+                new ConfigEvalEngine(), registry);
+    }
+
+    @After
+    public void shutdown()
+    {
+        manager.shutdown();
+    }
+
+    private void addOperator(String type, WorkspaceRequirement requirement)
+    {
+        OperatorFactory factory = new OperatorFactory()
+        {
+            @Override
+            public String getType()
+            {
+                return type;
+            }
+
+            @Override
+            public WorkspaceRequirement getWorkspaceRequirement()
+            {
+                return requirement;
+            }
+
+            @Override
+            public Operator newTaskExecutor(Path workspacePath, TaskRequest request)
+            {
+                return () -> {
+                    try {
+                        workspaceFiles = Files.list(workspacePath)
+                            .map(path -> path.getFileName().toString())
+                            .collect(Collectors.toList());
+                    }
+                    catch (IOException ex) {
+                        throw new RuntimeException(ex);
+                    }
+                    return TaskResult.empty(cf);
+                };
+            }
+        };
+        when(registry.get(any(TaskRequest.class), eq(type))).thenReturn(factory);
+    }
+
+    // polls twice and succeeds at the 3rd run
+    private void addPollOperator()
+    {
+        OperatorFactory factory = new OperatorFactory()
+        {
+            @Override
+            public String getType()
+            {
+                return "poll";
+            }
+
+            @Override
+            public WorkspaceRequirement getWorkspaceRequirement()
+            {
+                return WorkspaceRequirement.NONE;
+            }
+
+            @Override
+            public Operator newTaskExecutor(Path workspacePath, TaskRequest request)
+            {
+                return () -> {
+                    Config state = request.getLastStateParams();
+                    pollStates.add(state);
+                    int count = state.get("count", int.class, 0);
+                    if (count < 2) {
+                        throw TaskExecutionException.ofNextPolling(0, ConfigElement.copyOf(state.deepCopy().set("count", count + 1)));
+                    }
+                    return TaskResult.empty(cf);
+                };
+            }
+        };
+        when(registry.get(any(TaskRequest.class), eq("poll"))).thenReturn(factory);
+    }
+
+    private StorageObject archive()
+        throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (TarArchiveOutputStream tar = new TarArchiveOutputStream(new GzipCompressorOutputStream(out))) {
+            byte[] data = "select 1".getBytes(UTF_8);
+            TarArchiveEntry entry = new TarArchiveEntry("query.sql");
+            entry.setSize(data.length);
+            tar.putArchiveEntry(entry);
+            tar.write(data);
+            tar.closeArchiveEntry();
+        }
+        byte[] bytes = out.toByteArray();
+        return new StorageObject(new ByteArrayInputStream(bytes), bytes.length);
+    }
+
+    private TaskRequest request(Config localConfig)
+    {
+        return TaskRequest.builder()
+            .siteId(0)
+            .projectId(1)
+            .projectName(Optional.of("proj"))
+            .workflowName("wf")
+            .revision(Optional.of("rev"))
+            .taskId(1)
+            .attemptId(1)
+            .sessionId(1)
+            .retryAttemptName(Optional.absent())
+            .taskName("+wf+task")
+            .queueName("default")
+            .lockId("1")
+            .priority(0)
+            .timeZone(ZoneId.of("UTC"))
+            .sessionUuid(UUID.randomUUID())
+            .sessionTime(Instant.ofEpochSecond(1468000000L))
+            .createdAt(Instant.ofEpochSecond(1468000001L))
+            .localConfig(localConfig)
+            .config(cf.create())
+            .lastStateParams(cf.create())
+            .build();
+    }
+
+    @Test
+    public void needsArchiveByOperatorKey()
+    {
+        assertFalse(manager.needsArchive(request(cf.create().set("echo>", "hello"))));
+        assertTrue(manager.needsArchive(request(cf.create().set("sh>", "run.sh"))));
+        // no operator
+        assertFalse(manager.needsArchive(request(cf.create().set("k", "v"))));
+    }
+
+    @Test
+    public void needsArchiveByType()
+    {
+        assertFalse(manager.needsArchive(request(cf.create().set("_type", "echo").set("_command", "hello"))));
+        assertTrue(manager.needsArchive(request(cf.create().set("_type", "sh").set("_command", "run.sh"))));
+        // operator type can't be known before evaluating templates
+        assertTrue(manager.needsArchive(request(cf.create().set("_type", "${type}"))));
+        verify(registry, never()).get(any(TaskRequest.class), eq("${type}"));
+        // unknown operators fail after extraction as before
+        assertTrue(manager.needsArchive(request(cf.create().set("unknown>", "x"))));
+    }
+
+    @Test
+    public void needsArchiveOfLazyOperator()
+    {
+        assertTrue(manager.needsArchive(request(cf.create().set("td>", "query.sql"))));
+        assertFalse(manager.needsArchive(request(cf.create().setNested("td>", cf.create()).set("query", "select 1"))));
+        assertFalse(manager.needsArchive(request(cf.create().set("td>", null).set("query", "select 1"))));
+        assertFalse(manager.needsArchive(request(cf.create().set("_type", "td").set("query", "select 1"))));
+        assertTrue(manager.needsArchive(request(cf.create().set("_type", "td").set("_command", "query.sql"))));
+    }
+
+    @Test
+    public void emptyWorkspaceForNoneOperator()
+        throws Exception
+    {
+        manager.run(request(cf.create().set("echo>", "hello")));
+        assertThat(workspaceFiles, empty());
+        verify(callback, never()).openArchive(any(TaskRequest.class));
+        verify(callback).taskSucceeded(eq(0), eq(1L), eq("1"), any(AgentId.class), any(TaskResult.class));
+
+        manager.run(request(cf.create().set("td>", "query.sql")));
+        assertThat(workspaceFiles, contains("query.sql"));
+    }
+
+    @Test
+    public void pollLocally()
+        throws Exception
+    {
+        manager.run(request(cf.create().set("poll>", "x")));
+        for (int i = 0; i < 2; i++) {
+            List<TaskRequest> polls = takeDuePolls();
+            assertThat(polls.size(), is(1));
+            manager.run(polls.get(0));
+        }
+
+        assertThat(pollStates.size(), is(3));
+        assertEquals(cf.create().set("count", 2), pollStates.get(2));
+        verify(callback).updateStateParams(eq(0), eq(1L), eq("1"), any(AgentId.class), eq(cf.create().set("count", 1)));
+        verify(callback).updateStateParams(eq(0), eq(1L), eq("1"), any(AgentId.class), eq(cf.create().set("count", 2)));
+        verify(callback, never()).retryTask(anyInt(), anyLong(), any(String.class), any(AgentId.class), anyInt(), any(Config.class), any(Optional.class));
+        verify(callback).taskSucceeded(eq(0), eq(1L), eq("1"), any(AgentId.class), any(TaskResult.class));
+        // state params are taken from the request while polling in this agent
+        verify(callback).getStateParams(0, 1L);
+    }
+
+    @Test
+    public void continueFromStoredStateParams()
+        throws Exception
+    {
+        // an agent that polled the task died after storing state params
+        when(callback.getStateParams(0, 1L)).thenReturn(Optional.of(cf.create().set("count", 2)));
+
+        manager.run(request(cf.create().set("poll>", "x")));
+        assertThat(pollStates.size(), is(1));
+        assertEquals(cf.create().set("count", 2), pollStates.get(0));
+        verify(callback).taskSucceeded(eq(0), eq(1L), eq("1"), any(AgentId.class), any(TaskResult.class));
+    }
+
+    private List<TaskRequest> takeDuePolls()
+        throws InterruptedException
+    {
+        for (int i = 0; i < 100; i++) {
+            List<TaskRequest> polls = manager.takeDuePolls(10);
+            if (!polls.isEmpty()) {
+                return polls;
+            }
+            Thread.sleep(50);
+        }
+        return manager.takeDuePolls(10);
+    }
+}
@@ -1,9 +1,14 @@
 package io.digdag.core.database;
 
 import com.google.common.base.Throwables;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableSet;
 import com.google.inject.Provider;
+import io.digdag.client.config.Config;
 import io.digdag.client.config.ConfigFactory;
 import io.digdag.core.agent.AgentId;
+import io.digdag.core.queue.LocalWakeupBusFactory;
+import io.digdag.core.queue.WakeupBusManager;
 import io.digdag.core.repository.ResourceConflictException;
 import io.digdag.core.workflow.TaskQueueDispatcher;
 import io.digdag.core.workflow.WorkflowCompiler;
@@ -51,6 +56,16 @@ public class DatabaseFactory
         return new DatabaseSessionStoreManager(dbi, createConfigFactory(), createConfigMapper(), objectMapper(), config);
     }
 
+    public DatabaseTaskQueueStore getTaskQueueStore()
+    {
+        return getTaskQueueStore(createConfigFactory().create());
+    }
+
+    public DatabaseTaskQueueStore getTaskQueueStore(Config systemConfig)
+    {
+        return new DatabaseTaskQueueStore(dbi, config, new DatabaseQueueSettingStoreManager(dbi, createConfigMapper(), config), systemConfig);
+    }
+
     public WorkflowExecutor getWorkflowExecutor()
     {
         ConfigFactory configFactory = createConfigFactory();
@@ -62,7 +77,9 @@ public class DatabaseFactory
                 configFactory,
                 objectMapper(),
                 configFactory.create(),
-                mock(Notifier.class));
+                mock(Notifier.class),
+                new WakeupBusManager(configFactory.create(), config, ImmutableSet.of(new LocalWakeupBusFactory())),
+                new MetricRegistry());
     }
 
     public static class NullTaskQueueDispatcher
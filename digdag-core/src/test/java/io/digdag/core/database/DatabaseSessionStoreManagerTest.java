@@ -12,6 +12,7 @@ import io.digdag.core.schedule.*;
 import io.digdag.core.session.*;
 import io.digdag.core.workflow.*;
 import io.digdag.spi.ScheduleTime;
+import io.digdag.client.config.Config;
 import io.digdag.client.config.ConfigFactory;
 import static io.digdag.core.database.DatabaseTestingUtils.*;
 import static org.hamcrest.Matchers.is;
@@ -422,6 +423,73 @@ public class DatabaseSessionStoreManagerTest
         assertEquals(activeArchive, store.getTasksOfAttempt(attempt1.getId()));
     }
 
+    @Test
+    public void insertTaskTreeInBulk()
+        throws Exception
+    {
+        // 3 groups of 60 tasks are more than a batch of the multi-row insert
+        Config groups = cf.create();
+        for (int g = 0; g < 3; g++) {
+            Config group = cf.create();
+            for (int t = 0; t < 60; t++) {
+                group.setNested("+t" + t, cf.create().set("echo>", "t" + t));
+            }
+            groups.setNested("+g" + g, group);
+        }
+        WorkflowDefinition def = WorkflowDefinition.of(wf1.getName(), groups, ZoneId.of("UTC"));
+        Instant sessionTime = Instant.ofEpochSecond(Instant.now().getEpochSecond() / 3600 * 3600);
+
+        StoredSessionAttemptWithSession attempt1 = exec.submitWorkflow(0,
+                attemptBuilder.buildFromStoredWorkflow(rev, wf1, cf.create(), ScheduleTime.runNow(sessionTime)),
+                def);
+        Map<String, ArchivedTask> tasks1 = tasksByName(store.getTasksOfAttempt(attempt1.getId()));
+        assertEquals(1 + 3 + 3 * 60, tasks1.size());
+        Set<Long> ids1 = tasksIds(tasks1.values());
+        assertEquals(tasks1.size(), ids1.size());
+
+        long rootId = tasks1.get("+wf1").getId();
+        for (int g = 0; g < 3; g++) {
+            ArchivedTask group = tasks1.get("+wf1+g" + g);
+            assertEquals(Optional.of(rootId), group.getParentId());
+            for (int t = 0; t < 60; t++) {
+                ArchivedTask task = tasks1.get("+wf1+g" + g + "+t" + t);
+                assertEquals(Optional.of(group.getId()), task.getParentId());
+                if (t > 0) {
+                    assertEquals(ImmutableList.of(tasks1.get("+wf1+g" + g + "+t" + (t - 1)).getId()), task.getUpstreams());
+                }
+            }
+            if (g > 0) {
+                assertEquals(ImmutableList.of(tasks1.get("+wf1+g" + (g - 1)).getId()), group.getUpstreams());
+            }
+        }
+
+        // ids allocated for another tree don't overlap
+        StoredSessionAttemptWithSession attempt2 = exec.submitWorkflow(0,
+                attemptBuilder.buildFromStoredWorkflow(rev, wf1, cf.create(), ScheduleTime.runNow(sessionTime.plusSeconds(3600))),
+                def);
+        Set<Long> ids2 = tasksIds(store.getTasksOfAttempt(attempt2.getId()));
+        assertEquals(tasks1.size(), ids2.size());
+        assertEquals(ImmutableSet.of(), Sets.intersection(ids1, ids2));
+    }
+
+    private static Map<String, ArchivedTask> tasksByName(List<ArchivedTask> tasks)
+    {
+        Map<String, ArchivedTask> map = new HashMap<>();
+        for (ArchivedTask task : tasks) {
+            map.put(task.getFullName(), task);
+        }
+        return map;
+    }
+
+    private static Set<Long> tasksIds(Collection<ArchivedTask> tasks)
+    {
+        Set<Long> ids = new HashSet<>();
+        for (ArchivedTask task : tasks) {
+            ids.add(task.getId());
+        }
+        return ids;
+    }
+
     private void assertSessionAndLastAttemptEquals(StoredSessionWithLastAttempt session, StoredSessionAttemptWithSession attempt)
     {
         assertThat(session.getId(), is(attempt.getSessionId()));
@@ -0,0 +1,218 @@
+package io.digdag.core.database;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import org.junit.*;
+import org.skife.jdbi.v2.Handle;
+import io.digdag.core.database.DatabaseTaskQueueStore.LockResult;
+import io.digdag.core.repository.ResourceConflictException;
+import static io.digdag.core.database.DatabaseTestingUtils.*;
+import static io.digdag.core.queue.QueueSettingStore.DEFAULT_QUEUE_NAME;
+import static org.junit.Assert.*;
+
+public class DatabaseTaskQueueStoreTest
+{
+    private DatabaseFactory factory;
+    private DatabaseTaskQueueStore store;
+
+    @Before
+    public void setUp()
+    {
+        factory = setupDatabase();
+        store = factory.getTaskQueueStore();
+    }
+
+    @After
+    public void destroy()
+    {
+        factory.close();
+    }
+
+    @Test
+    public void testRunningCounts()
+        throws Exception
+    {
+        long queuedId = store.enqueue(0, 1, DEFAULT_QUEUE_NAME, Optional.absent(), 0, 1L, new byte[] { 1 });
+        store.enqueue(0, 1, DEFAULT_QUEUE_NAME, Optional.absent(), 0, 2L, new byte[] { 2 });
+        store.enqueue(0, 1, DEFAULT_QUEUE_NAME, Optional.absent(), 0, 3L, new byte[] { 3 });
+        try (Handle handle = factory.get().open()) {
+            handle.update("update queues set max_concurrency = 2");
+        }
+
+        List<LockResult> locks = store.lockSharedTasks(10, "a1", 60);
+        assertEquals(2, locks.size());
+        assertEquals(queuedId, locks.get(0).getLockId());
+        assertEquals(2, getRunningCount());
+
+        // queue is full
+        assertEquals(0, store.lockSharedTasks(10, "a1", 60).size());
+
+        store.delete(0, locks.get(0), "a1");
+        assertEquals(1, getRunningCount());
+
+        assertEquals(1, store.lockSharedTasks(10, "a2", 60).size());
+        assertEquals(2, getRunningCount());
+
+        // deleting a lock held by another agent doesn't change counts
+        try {
+            store.delete(0, locks.get(1), "a2");
+            fail();
+        }
+        catch (ResourceConflictException ex) {
+        }
+        assertEquals(2, getRunningCount());
+    }
+
+    @Test
+    public void testMaxConcurrencyWithConcurrentAgents()
+        throws Exception
+    {
+        for (long taskId = 1; taskId <= 30; taskId++) {
+            store.enqueue(0, (int) (taskId % 3), DEFAULT_QUEUE_NAME, Optional.absent(), 0, taskId, new byte[] { 1 });
+        }
+        try (Handle handle = factory.get().open()) {
+            handle.update("update queues set max_concurrency = 3");
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<Integer>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                String agentId = "a" + i;
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    return store.lockSharedTasksWithData(5, agentId, 60).size();
+                }));
+            }
+            start.countDown();
+            int locked = 0;
+            for (Future<Integer> future : futures) {
+                locked += future.get();
+            }
+            assertTrue(locked <= 3);
+            assertEquals(locked, getRunningCount());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+
+        // the rest are taken up to the limit
+        store.lockSharedTasksWithData(10, "a1", 60);
+        assertEquals(3, getRunningCount());
+    }
+
+    @Test
+    public void testResourceTypeLimit()
+        throws Exception
+    {
+        store = factory.getTaskQueueStore(createConfigFactory().create()
+                .set("queue.resource-types.r1.max-concurrency", 1));
+        store.enqueue(0, 1, DEFAULT_QUEUE_NAME, Optional.of("r1"), 0, 1L, new byte[] { 1 });
+        store.enqueue(0, 1, DEFAULT_QUEUE_NAME, Optional.of("r1"), 0, 2L, new byte[] { 2 });
+        store.enqueue(0, 1, DEFAULT_QUEUE_NAME, Optional.absent(), 0, 3L, new byte[] { 3 });
+
+        List<LockResult> locks = store.lockSharedTasks(10, "a1", 60);
+        assertEquals(2, locks.size());
+        assertEquals(0, store.lockSharedTasks(10, "a1", 60).size());
+
+        store.delete(0, locks.get(0), "a1");
+        assertEquals(1, store.lockSharedTasks(10, "a1", 60).size());
+    }
+
+    @Test
+    public void testFairAcquisition()
+        throws Exception
+    {
+        for (long taskId = 1; taskId <= 10; taskId++) {
+            store.enqueue(0, 1, DEFAULT_QUEUE_NAME, Optional.absent(), 0, taskId, new byte[] { 1 });
+        }
+        long small = store.enqueue(0, 2, DEFAULT_QUEUE_NAME, Optional.absent(), 0, 11L, new byte[] { 2 });
+
+        // a task of the small project is taken even though the large project queued tasks first
+        List<LockResult> locks = store.lockSharedTasks(2, "a1", 60);
+        assertEquals(2, locks.size());
+        assertTrue(locks.stream().anyMatch(lock -> lock.getLockId() == small));
+
+        // higher priority comes first
+        long high = store.enqueue(0, 1, DEFAULT_QUEUE_NAME, Optional.absent(), 1, 12L, new byte[] { 3 });
+        store.enqueue(0, 3, DEFAULT_QUEUE_NAME, Optional.absent(), 0, 13L, new byte[] { 4 });
+        locks = store.lockSharedTasks(1, "a1", 60);
+        assertEquals(1, locks.size());
+        assertEquals(high, locks.get(0).getLockId());
+    }
+
+    @Test
+    public void testWeightedAcquisition()
+        throws Exception
+    {
+        store = factory.getTaskQueueStore(createConfigFactory().create()
+                .set("queue.projects.1.weight", 3));
+        List<Long> heavy = new ArrayList<>();
+        for (long taskId = 1; taskId <= 10; taskId++) {
+            heavy.add(store.enqueue(0, 1, DEFAULT_QUEUE_NAME, Optional.absent(), 0, taskId, new byte[] { 1 }));
+            store.enqueue(0, 2, DEFAULT_QUEUE_NAME, Optional.absent(), 0, taskId + 10, new byte[] { 2 });
+        }
+
+        // project 1 takes 3 slots in each round
+        List<LockResult> locks = store.lockSharedTasks(8, "a1", 60);
+        assertEquals(8, locks.size());
+        assertEquals(6, locks.stream().filter(lock -> heavy.contains(lock.getLockId())).count());
+    }
+
+    @Test
+    public void testReleaseDeadAgentLocks()
+        throws Exception
+    {
+        store.enqueue(0, 1, DEFAULT_QUEUE_NAME, Optional.absent(), 0, 1L, new byte[] { 1 });
+        store.enqueue(0, 1, DEFAULT_QUEUE_NAME, Optional.absent(), 0, 2L, new byte[] { 2 });
+        store.agentHeartbeat("a1", 60);
+        store.agentHeartbeat("a2", 60);
+        assertEquals(1, store.lockSharedTasks(1, "a1", 600).size());
+        assertEquals(1, store.lockSharedTasks(1, "a2", 600).size());
+
+        // a1 is not alive any more
+        store.agentHeartbeat("a1", -10);
+        store.expireLocks();
+        assertEquals(1, getRunningCount());
+
+        List<LockResult> locks = store.lockSharedTasks(10, "a3", 600);
+        assertEquals(1, locks.size());
+        assertEquals(1L, locks.get(0).getLockId());
+    }
+
+    @Test
+    public void testHeartbeatReturnsLostLocks()
+        throws Exception
+    {
+        store.enqueue(0, 1, DEFAULT_QUEUE_NAME, Optional.absent(), 0, 1L, new byte[] { 1 });
+        store.enqueue(0, 1, DEFAULT_QUEUE_NAME, Optional.absent(), 0, 2L, new byte[] { 2 });
+        List<LockResult> locks = store.lockSharedTasks(2, "a1", 60);
+        assertEquals(2, locks.size());
+        assertEquals(0, store.heartbeat(locks, "a1", 60).size());
+
+        // the first lock is deleted and the second is taken by another agent
+        store.delete(0, locks.get(0), "a1");
+        try (Handle handle = factory.get().open()) {
+            handle.update("update queued_shared_task_locks set hold_agent_id = 'a2' where id = ?", locks.get(1).getLockId());
+        }
+        List<LockResult> lost = store.heartbeat(locks, "a1", 60);
+        assertEquals(2, lost.size());
+        assertEquals(0, store.heartbeat(ImmutableList.of(locks.get(1)), "a2", 60).size());
+    }
+
+    private int getRunningCount()
+    {
+        try (Handle handle = factory.get().open()) {
+            return handle.createQuery("select running from queue_running_counts where resource_type_id = 0")
+                .mapTo(int.class)
+                .first();
+        }
+    }
+}
@@ -107,9 +107,11 @@ public class DatabaseTestingUtils
         "queue_settings",
         "queues",
         "resource_types",
+        "queue_running_counts",
         "queued_tasks",
         "queued_shared_task_locks",
         "queued_task_locks",
+        "agents",
     };
 
     public static void cleanDatabase(DigdagEmbed embed)
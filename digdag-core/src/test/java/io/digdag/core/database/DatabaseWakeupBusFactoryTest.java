@@ -0,0 +1,70 @@
+package io.digdag.core.database;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.*;
+import org.skife.jdbi.v2.Handle;
+import io.digdag.client.config.Config;
+import io.digdag.spi.WakeupBus;
+import static io.digdag.core.database.DatabaseTestingUtils.*;
+import static org.junit.Assert.*;
+
+public class DatabaseWakeupBusFactoryTest
+{
+    private DatabaseFactory factory;
+    private DatabaseWakeupBusFactory publisherFactory;
+    private DatabaseWakeupBusFactory listenerFactory;
+
+    @Before
+    public void setUp()
+    {
+        factory = setupDatabase();
+        // two servers sharing the database
+        publisherFactory = new DatabaseWakeupBusFactory(factory.get());
+        listenerFactory = new DatabaseWakeupBusFactory(factory.get());
+    }
+
+    @After
+    public void destroy()
+    {
+        publisherFactory.shutdown();
+        listenerFactory.shutdown();
+        factory.close();
+    }
+
+    @Test
+    public void coalescePublishes()
+        throws Exception
+    {
+        Config systemConfig = createConfigFactory().create()
+            .set("wakeup-bus.poll-interval-millis", 10)
+            .set("wakeup-bus.publish-interval-millis", 1000);
+        WakeupBus publisher = publisherFactory.getWakeupBus(systemConfig);
+        WakeupBus listener = listenerFactory.getWakeupBus(systemConfig);
+
+        CountDownLatch localNotice = new CountDownLatch(1);
+        CountDownLatch remoteNotice = new CountDownLatch(1);
+        publisher.subscribe("test", () -> localNotice.countDown());
+        listener.subscribe("test", () -> remoteNotice.countDown());
+        // let the listener read initial versions
+        Thread.sleep(100);
+
+        for (int i = 0; i < 100; i++) {
+            publisher.publish("test");
+        }
+        assertEquals(0, localNotice.getCount());
+
+        assertTrue(remoteNotice.await(10, TimeUnit.SECONDS));
+        assertEquals(1, getVersion("test"));
+    }
+
+    private long getVersion(String channel)
+    {
+        try (Handle handle = factory.get().open()) {
+            return handle.createQuery("select version from wakeup_channels where name = :name")
+                .bind("name", channel)
+                .mapTo(long.class)
+                .first();
+        }
+    }
+}
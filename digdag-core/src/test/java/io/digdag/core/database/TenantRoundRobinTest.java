@@ -0,0 +1,70 @@
+package io.digdag.core.database;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.Collectors;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+import io.digdag.core.database.TenantRoundRobin.WaitingTenant;
+import static org.junit.Assert.assertEquals;
+
+public class TenantRoundRobinTest
+{
+    // {projectId => slots}
+    private static Map<Integer, Integer> byProject(LinkedHashMap<WaitingTenant, Integer> slots)
+    {
+        return slots.entrySet().stream()
+            .collect(Collectors.toMap(entry -> entry.getKey().getProjectId(), entry -> entry.getValue()));
+    }
+
+    @Test
+    public void redistributeSlotsTenantsCantUse()
+    {
+        TenantRoundRobin rr = new TenantRoundRobin(projectId -> 1);
+
+        // project 1 has only 1 waiting task. its unused slots go to project 2
+        LinkedHashMap<WaitingTenant, Integer> slots = rr.schedule("shared",
+                ImmutableList.of(
+                    new WaitingTenant(1, 1, 0, 1),
+                    new WaitingTenant(1, 2, 0, 10)),
+                5);
+        assertEquals(ImmutableMap.of(1, 1, 2, 4), byProject(slots));
+
+        // all waiting tasks are fewer than the limit
+        slots = rr.schedule("shared",
+                ImmutableList.of(
+                    new WaitingTenant(1, 1, 0, 1),
+                    new WaitingTenant(1, 2, 0, 2)),
+                10);
+        assertEquals(ImmutableMap.of(1, 1, 2, 2), byProject(slots));
+    }
+
+    @Test
+    public void fillHigherPrioritiesFirst()
+    {
+        TenantRoundRobin rr = new TenantRoundRobin(projectId -> 1);
+
+        // project 1 is a backfill with low priority tasks only. project 2 has
+        // 1 high priority task and low priority tasks. project 3 has 2 high
+        // priority tasks.
+        LinkedHashMap<WaitingTenant, Integer> slots = rr.schedule("shared",
+                ImmutableList.of(
+                    new WaitingTenant(1, 1, -1, 10),
+                    new WaitingTenant(1, 2, 1, 1),
+                    new WaitingTenant(1, 2, -1, 10),
+                    new WaitingTenant(1, 3, 1, 2)),
+                3);
+        assertEquals(ImmutableMap.of(2, 1, 3, 2), byProject(slots));
+
+        // lower priorities get remaining slots
+        slots = rr.schedule("shared",
+                ImmutableList.of(
+                    new WaitingTenant(1, 1, -1, 10),
+                    new WaitingTenant(1, 2, 1, 1),
+                    new WaitingTenant(1, 2, -1, 10),
+                    new WaitingTenant(1, 3, 1, 2)),
+                7);
+        assertEquals(ImmutableMap.of(1, 2, 2, 3, 3, 2), byProject(slots));
+    }
+}
@@ -0,0 +1,221 @@
+package io.digdag.core.queue;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import org.junit.Before;
+import org.junit.Test;
+import io.digdag.client.config.Config;
+import io.digdag.client.config.ConfigFactory;
+import io.digdag.core.queue.MemoryTaskQueueFactory.MemoryTaskQueue;
+import io.digdag.core.repository.ResourceConflictException;
+import io.digdag.spi.TaskRequest;
+import io.digdag.spi.TaskStateException;
+import static io.digdag.core.database.DatabaseTestingUtils.createConfigFactory;
+import static io.digdag.core.queue.QueueSettingStore.NO_MAX_CONCURRENCY;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class MemoryTaskQueueFactoryTest
+{
+    private ConfigFactory cf;
+    private QueueSettingStoreManager qm;
+
+    @Before
+    public void setUp()
+    {
+        cf = createConfigFactory();
+        qm = mock(QueueSettingStoreManager.class);
+        when(qm.getQueueMaxConcurrency(anyInt(), anyString())).thenReturn(NO_MAX_CONCURRENCY);
+    }
+
+    private MemoryTaskQueue newQueue(Config systemConfig, int expireLockIntervalSeconds)
+    {
+        return new MemoryTaskQueue(systemConfig, qm, new TaskQueueMetrics(new MetricRegistry()), expireLockIntervalSeconds);
+    }
+
+    private TaskRequest request(long taskId, String queueName, int priority, Optional<String> resourceType)
+    {
+        return TaskRequest.builder()
+            .siteId(0)
+            .projectId(1)
+            .projectName(Optional.of("proj"))
+            .workflowName("wf")
+            .revision(Optional.of("rev"))
+            .taskId(taskId)
+            .attemptId(1)
+            .sessionId(1)
+            .retryAttemptName(Optional.absent())
+            .taskName("+wf+t" + taskId)
+            .queueName(queueName)
+            .resourceType(resourceType)
+            .lockId("")
+            .priority(priority)
+            .timeZone(ZoneId.of("UTC"))
+            .sessionUuid(UUID.randomUUID())
+            .sessionTime(Instant.ofEpochSecond(1468000000L))
+            .createdAt(Instant.now())
+            .localConfig(cf.create())
+            .config(cf.create())
+            .lastStateParams(cf.create())
+            .build();
+    }
+
+    private static List<Long> taskIds(List<TaskRequest> requests)
+    {
+        return requests.stream().map(TaskRequest::getTaskId).collect(Collectors.toList());
+    }
+
+    @Test
+    public void namedQueueMaxConcurrency()
+        throws Exception
+    {
+        when(qm.getQueueMaxConcurrency(0, "q1")).thenReturn(2);
+        MemoryTaskQueue queue = newQueue(cf.create(), 10);
+
+        queue.enqueue(request(1, "q1", 0, Optional.absent()));
+        queue.enqueue(request(2, "q1", 1, Optional.absent()));
+        queue.enqueue(request(3, "q1", 0, Optional.absent()));
+
+        // tasks of q1 are not in the shared queue
+        assertThat(queue.lockSharedTasks(10, "a1", 60, -1), empty());
+
+        List<TaskRequest> locked = queue.lockTasks(0, "q1", 10, "a1", 60, -1);
+        assertThat(taskIds(locked), contains(2L, 1L));
+        assertThat(queue.lockTasks(0, "q1", 10, "a1", 60, -1), empty());
+
+        queue.delete(0, locked.get(0).getLockId(), "a1");
+        assertThat(taskIds(queue.lockTasks(0, "q1", 10, "a1", 60, -1)), contains(3L));
+    }
+
+    @Test
+    public void lockInPriorityOrder()
+        throws Exception
+    {
+        MemoryTaskQueue queue = newQueue(cf.create(), 10);
+        queue.enqueue(request(1, "default", 0, Optional.absent()));
+        queue.enqueue(request(2, "default", 2, Optional.absent()));
+        queue.enqueue(request(3, "default", 1, Optional.absent()));
+
+        assertThat(taskIds(queue.lockSharedTasks(2, "a1", 60, -1)), contains(2L, 3L));
+        assertThat(taskIds(queue.lockSharedTasks(2, "a1", 60, -1)), contains(1L));
+    }
+
+    @Test
+    public void duplicatedEnqueueConflicts()
+        throws Exception
+    {
+        MemoryTaskQueue queue = newQueue(cf.create(), 10);
+        queue.enqueue(request(1, "default", 0, Optional.absent()));
+        try {
+            queue.enqueue(ImmutableList.of(
+                        request(2, "default", 0, Optional.absent()),
+                        request(1, "default", 0, Optional.absent())));
+            fail();
+        }
+        catch (TaskStateException ex) {
+            assertThat(ex.getCause(), instanceOf(ResourceConflictException.class));
+        }
+
+        // nothing in the batch is queued
+        assertThat(taskIds(queue.lockSharedTasks(10, "a1", 60, -1)), contains(1L));
+
+        // task 2 was not left in the queue by the failed batch
+        queue.enqueue(request(2, "default", 0, Optional.absent()));
+        assertThat(taskIds(queue.lockSharedTasks(10, "a1", 60, -1)), contains(2L));
+    }
+
+    @Test
+    public void expireLocks()
+        throws Exception
+    {
+        MemoryTaskQueue queue = newQueue(cf.create(), 0);
+        queue.enqueue(request(1, "default", 0, Optional.absent()));
+        queue.enqueue(request(2, "default", 0, Optional.absent()));
+
+        // lock the held task first so that the expiring lock doesn't expire before it
+        List<TaskRequest> held = queue.lockSharedTasks(1, "a1", 60, -1);
+        List<TaskRequest> expiring = queue.lockSharedTasks(1, "a1", 0, -1);
+        assertThat(taskIds(held), contains(1L));
+        assertThat(taskIds(expiring), contains(2L));
+        Thread.sleep(10);
+
+        // the expired task is locked by another agent
+        List<TaskRequest> retried = queue.lockSharedTasks(10, "a2", 60, -1);
+        assertThat(taskIds(retried), contains(2L));
+
+        // heartbeat of the previous agent doesn't extend the lock
+        assertThat(queue.taskHeartbeat(0, ImmutableList.of(expiring.get(0).getLockId(), held.get(0).getLockId()), "a1", 60),
+                contains(expiring.get(0).getLockId()));
+        try {
+            queue.delete(0, expiring.get(0).getLockId(), "a1");
+            fail();
+        }
+        catch (TaskStateException ex) {
+            assertThat(ex.getCause(), instanceOf(ResourceConflictException.class));
+        }
+        queue.delete(0, retried.get(0).getLockId(), "a2");
+    }
+
+    @Test
+    public void heartbeatReturnsLostLocks()
+        throws Exception
+    {
+        MemoryTaskQueue queue = newQueue(cf.create(), 10);
+        queue.enqueue(request(1, "default", 0, Optional.absent()));
+        queue.enqueue(request(2, "default", 0, Optional.absent()));
+        List<TaskRequest> locked = queue.lockSharedTasks(10, "a1", 60, -1);
+        String deleted = locked.get(0).getLockId();
+        String held = locked.get(1).getLockId();
+        queue.delete(0, deleted, "a1");
+
+        assertThat(queue.taskHeartbeat(0, ImmutableList.of(deleted, held), "a1", 60), contains(deleted));
+        assertThat(queue.taskHeartbeat(0, ImmutableList.of(held), "a2", 60), contains(held));
+        assertThat(queue.taskHeartbeat(0, ImmutableList.of(held), "a1", 60), empty());
+    }
+
+    @Test
+    public void resourceTypeMaxConcurrency()
+        throws Exception
+    {
+        MemoryTaskQueue queue = newQueue(cf.create().set("queue.resource-types.r1.max-concurrency", 1), 10);
+        queue.enqueue(request(1, "default", 0, Optional.of("r1")));
+        queue.enqueue(request(2, "default", 0, Optional.of("r1")));
+        queue.enqueue(request(3, "default", 0, Optional.absent()));
+
+        // task 2 is skipped without blocking task 3
+        List<TaskRequest> locked = queue.lockSharedTasks(10, "a1", 60, -1);
+        assertThat(taskIds(locked), contains(1L, 3L));
+        assertThat(queue.lockSharedTasks(10, "a1", 60, -1), empty());
+
+        queue.delete(0, locked.get(0).getLockId(), "a1");
+        assertThat(taskIds(queue.lockSharedTasks(10, "a1", 60, -1)), contains(2L));
+    }
+
+    @Test
+    public void resourceTypeMaxConcurrencyPerQueue()
+        throws Exception
+    {
+        MemoryTaskQueue queue = newQueue(cf.create().set("queue.resource-types.r1.max-concurrency", 1), 10);
+        queue.enqueue(request(1, "default", 0, Optional.of("r1")));
+        queue.enqueue(request(2, "q1", 0, Optional.of("r1")));
+        queue.enqueue(request(3, "default", 0, Optional.of("r1")));
+
+        // the limit is counted for each queue as same as the database queue
+        assertThat(taskIds(queue.lockSharedTasks(10, "a1", 60, -1)), contains(1L));
+        assertThat(taskIds(queue.lockTasks(0, "q1", 10, "a1", 60, -1)), contains(2L));
+        assertThat(queue.lockSharedTasks(10, "a1", 60, -1), empty());
+    }
+}
@@ -0,0 +1,91 @@
+package io.digdag.core.queue;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.UUID;
+import com.google.common.base.Optional;
+import com.google.common.base.Strings;
+import com.fasterxml.jackson.databind.InjectableValues;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Before;
+import org.junit.Test;
+import io.digdag.client.config.Config;
+import io.digdag.client.config.ConfigFactory;
+import io.digdag.spi.TaskRequest;
+import static io.digdag.client.DigdagClient.objectMapper;
+import static org.junit.Assert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+
+public class TaskRequestCodecTest
+{
+    private ObjectMapper mapper;
+    private ConfigFactory cf;
+    private TaskRequestCodec json;
+    private TaskRequestCodec smile;
+
+    @Before
+    public void setUp()
+    {
+        mapper = objectMapper();
+        // Config is deserialized with the injected ObjectMapper
+        mapper.setInjectableValues(new InjectableValues.Std().addValue(ObjectMapper.class, mapper));
+        cf = new ConfigFactory(mapper);
+        json = new TaskRequestCodec(mapper, TaskRequestCodec.Encoding.JSON);
+        smile = new TaskRequestCodec(mapper, TaskRequestCodec.Encoding.SMILE);
+    }
+
+    @Test
+    public void roundTrip()
+    {
+        TaskRequest small = request(cf.create().set("k", "v"));
+        assertThat(smile.decode(smile.encode(small)), is(small));
+        assertThat(json.decode(json.encode(small)), is(small));
+
+        // large payloads are compressed
+        Config params = cf.create();
+        for (int i = 0; i < 100; i++) {
+            params.set("key" + i, Strings.repeat("value", 10));
+        }
+        TaskRequest large = request(params);
+        byte[] encoded = smile.encode(large);
+        assertThat(encoded[0], is((byte) 0x02));
+        assertThat(encoded.length, lessThan(json.encode(large).length));
+        assertThat(smile.decode(encoded), is(large));
+    }
+
+    @Test
+    public void decodeLegacyJson()
+        throws Exception
+    {
+        TaskRequest req = request(cf.create().set("k", "v"));
+        byte[] legacy = mapper.writeValueAsBytes(req);
+        assertThat(smile.decode(legacy), is(req));
+    }
+
+    private TaskRequest request(Config params)
+    {
+        return TaskRequest.builder()
+            .siteId(1)
+            .projectId(2)
+            .projectName(Optional.of("proj"))
+            .workflowName("wf")
+            .revision(Optional.of("rev"))
+            .taskId(3)
+            .attemptId(4)
+            .sessionId(5)
+            .retryAttemptName(Optional.absent())
+            .taskName("+wf+task")
+            .queueName("default")
+            .lockId("")
+            .priority(0)
+            .timeZone(ZoneId.of("UTC"))
+            .sessionUuid(UUID.randomUUID())
+            .sessionTime(Instant.ofEpochSecond(1468000000L))
+            .createdAt(Instant.ofEpochSecond(1468000001L))
+            .localConfig(cf.create().set("sh>", "echo"))
+            .config(params)
+            .lastStateParams(cf.create())
+            .build();
+    }
+}
@@ -0,0 +1,105 @@
+package io.digdag.core.storage;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteStreams;
+import org.junit.Before;
+import org.junit.Test;
+import io.digdag.client.config.Config;
+import io.digdag.core.repository.ArchiveType;
+import io.digdag.core.repository.ProjectStore;
+import io.digdag.core.repository.StoredRevision;
+import static io.digdag.core.database.DatabaseTestingUtils.createConfig;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ArchiveManagerTest
+{
+    private ProjectStore ps;
+    private MetricRegistry metrics;
+
+    @Before
+    public void setUp()
+        throws Exception
+    {
+        ps = mock(ProjectStore.class);
+        metrics = new MetricRegistry();
+        addRevision(1, "r1", new byte[] { 1, 2, 3, 4 });
+        addRevision(2, "r2", new byte[] { 5, 6, 7, 8 });
+    }
+
+    private void addRevision(int revId, String name, byte[] data)
+        throws Exception
+    {
+        StoredRevision rev = mock(StoredRevision.class);
+        when(rev.getId()).thenReturn(revId);
+        when(rev.getArchiveType()).thenReturn(ArchiveType.DB);
+        when(ps.getRevisionByName(1, name)).thenReturn(rev);
+        when(ps.getRevisionArchiveData(revId)).thenReturn(data);
+    }
+
+    private ArchiveManager newArchiveManager(long maxBytes)
+    {
+        Config systemConfig = createConfig().set("archive.cache.max-bytes", maxBytes);
+        return new ArchiveManager(new StorageManager(ImmutableSet.of()), systemConfig, metrics);
+    }
+
+    private byte[] read(ArchiveManager manager, String revision)
+        throws Exception
+    {
+        return ByteStreams.toByteArray(manager.openArchive(ps, 1, revision).get().getContentInputStream());
+    }
+
+    private long gauge(String name)
+    {
+        return (Long) ((Gauge<?>) metrics.getGauges().get(name)).getValue();
+    }
+
+    @Test
+    public void cacheHitAndMiss()
+        throws Exception
+    {
+        ArchiveManager manager = newArchiveManager(1024);
+        assertArrayEquals(new byte[] { 1, 2, 3, 4 }, read(manager, "r1"));
+        assertArrayEquals(new byte[] { 1, 2, 3, 4 }, read(manager, "r1"));
+        verify(ps, times(1)).getRevisionArchiveData(1);
+        assertEquals(1, gauge("digdag.archive-cache.hits"));
+        assertEquals(1, gauge("digdag.archive-cache.misses"));
+        assertEquals(4, gauge("digdag.archive-cache.bytes"));
+
+        // getArchive shares the cache but returns a copy
+        byte[] bytes = manager.getArchive(ps, 1, "r1").get().getByteArray().get();
+        bytes[0] = 9;
+        assertArrayEquals(new byte[] { 1, 2, 3, 4 }, read(manager, "r1"));
+        verify(ps, times(1)).getRevisionArchiveData(1);
+    }
+
+    @Test
+    public void evictByBytes()
+        throws Exception
+    {
+        ArchiveManager manager = newArchiveManager(6);
+        read(manager, "r1");
+        read(manager, "r2");
+        assertEquals(1, gauge("digdag.archive-cache.evictions"));
+        assertEquals(4, gauge("digdag.archive-cache.bytes"));
+        read(manager, "r1");
+        verify(ps, times(2)).getRevisionArchiveData(1);
+    }
+
+    @Test
+    public void disabledCache()
+        throws Exception
+    {
+        ArchiveManager manager = newArchiveManager(0);
+        assertArrayEquals(new byte[] { 1, 2, 3, 4 }, read(manager, "r1"));
+        assertArrayEquals(new byte[] { 1, 2, 3, 4 }, read(manager, "r1"));
+        verify(ps, times(2)).getRevisionArchiveData(1);
+        assertEquals(0, gauge("digdag.archive-cache.bytes"));
+    }
+}
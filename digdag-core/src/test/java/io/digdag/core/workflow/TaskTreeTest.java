@@ -142,6 +142,59 @@ public class TaskTreeTest
                 is(list(1, 3, 9, 16, 17, 20, 10, 18, 19)));
     }
 
+    @Test
+    public void testSize()
+            throws Exception
+    {
+        assertThat(tree.size(), is(20));
+    }
+
+    @Test
+    public void testWideTree()
+            throws Exception
+    {
+        //            1
+        //      /  /  |  \
+        //     2->3->...->1001
+        //     |  |        |
+        //   1002 1003   2001
+        int width = 1000;
+        ImmutableList.Builder<TaskRelation> rels = ImmutableList.builder();
+        rels.add(root(1));
+        for (int i = 0; i < width; i++) {
+            long id = 2 + i;
+            if (i == 0) {
+                rels.add(relation(1, id));
+            }
+            else {
+                rels.add(relation(1, id, id - 1));
+            }
+        }
+        for (int i = 0; i < width; i++) {
+            rels.add(relation(2 + i, 2 + width + i));
+        }
+        TaskTree wide = new TaskTree(rels.build());
+
+        ImmutableList.Builder<Long> children = ImmutableList.builder();
+        for (int i = 0; i < width; i++) {
+            children.add(2L + i);
+            children.add(2L + width + i);
+        }
+        assertThat(
+                wide.getRecursiveChildrenIdList(1),
+                is(children.build()));
+
+        ImmutableList.Builder<Long> upstreams = ImmutableList.builder();
+        upstreams.add(1L);
+        for (int i = 0; i < width - 1; i++) {
+            upstreams.add(2L + i);
+            upstreams.add(2L + width + i);
+        }
+        assertThat(
+                wide.getRecursiveParentsUpstreamChildrenIdListFromFar(1 + width),
+                is(upstreams.build()));
+    }
+
     private static TaskRelation root(long id)
     {
         return TaskRelation.ofRoot(id);
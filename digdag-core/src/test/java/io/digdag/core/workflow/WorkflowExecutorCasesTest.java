@@ -5,7 +5,12 @@ import java.nio.file.Files;
 import java.io.IOException;
 import java.time.Instant;
 import java.time.ZoneId;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
 import org.skife.jdbi.v2.IDBI;
 import com.google.common.base.Optional;
 import com.google.common.base.Throwables;
@@ -17,9 +22,15 @@ import io.digdag.core.repository.*;
 import io.digdag.core.schedule.*;
 import io.digdag.core.session.*;
 import io.digdag.core.workflow.*;
+import io.digdag.core.agent.AgentId;
 import io.digdag.core.config.YamlConfigLoader;
+import io.digdag.core.queue.TaskQueueManager;
 import io.digdag.spi.ScheduleTime;
+import io.digdag.spi.TaskQueueServer;
+import io.digdag.spi.TaskRequest;
+import io.digdag.spi.TaskResult;
 import io.digdag.client.config.Config;
+import io.digdag.client.config.ConfigElement;
 import io.digdag.client.config.ConfigException;
 import io.digdag.client.config.ConfigFactory;
 import io.digdag.core.DigdagEmbed;
@@ -32,6 +43,7 @@ import org.junit.rules.TemporaryFolder;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static io.digdag.core.workflow.WorkflowTestingUtils.setupEmbed;
 import static org.junit.Assert.*;
+import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.is;
 
 public class WorkflowExecutorCasesTest
@@ -86,6 +98,236 @@ public class WorkflowExecutorCasesTest
         assertThat(new String(Files.readAllBytes(folder.getRoot().toPath().resolve("out")), UTF_8), is("trytrytrytry"));
     }
 
+    @Test
+    public void propagateSynchronously()
+        throws Exception
+    {
+        Config workflow = cf.create()
+            .set("+a", cf.create().set("_type", "noop"))
+            .set("+b", cf.create().set("_type", "noop"));
+
+        for (boolean synchronous : new boolean[] { true, false }) {
+            embed.destroy();
+            // tasks move forward only by callbacks of this test after the executor stops
+            embed = setupEmbed(ConfigElement.ofMap(ImmutableMap.of(
+                            "executor.synchronous-propagation", Boolean.toString(synchronous),
+                            "agent.enabled", "false")));
+            cf = embed.getInjector().getInstance(ConfigFactory.class);
+
+            StoredSessionAttemptWithSession attempt = submitWorkflow("sync", workflow, ImmutableMap.of());
+            runExecutorUntil(attempt.getId(), ImmutableMap.of("+sync+a", TaskStateCode.RUNNING));
+
+            succeedQueuedTasks("+sync+a");
+            if (synchronous) {
+                assertThat(taskStates(attempt.getId()), is(ImmutableMap.of(
+                                "+sync", TaskStateCode.PLANNED,
+                                "+sync+a", TaskStateCode.SUCCESS,
+                                "+sync+b", TaskStateCode.RUNNING)));
+
+                succeedQueuedTasks("+sync+b");
+                assertThat(taskStates(attempt.getId()), is(ImmutableMap.of(
+                                "+sync", TaskStateCode.SUCCESS,
+                                "+sync+a", TaskStateCode.SUCCESS,
+                                "+sync+b", TaskStateCode.SUCCESS)));
+            }
+            else {
+                // +a stays planned until the propagator runs
+                assertThat(taskStates(attempt.getId()), is(ImmutableMap.of(
+                                "+sync", TaskStateCode.PLANNED,
+                                "+sync+a", TaskStateCode.PLANNED,
+                                "+sync+b", TaskStateCode.BLOCKED)));
+            }
+        }
+    }
+
+    @Test
+    public void processOnlyAttemptsOfOwnedPartitions()
+        throws Exception
+    {
+        embed.destroy();
+        embed = setupEmbed(ConfigElement.ofMap(ImmutableMap.of(
+                        "executor.partition-count", "2",
+                        "executor.partition-lease-seconds", "3")));
+        cf = embed.getInjector().getInstance(ConfigFactory.class);
+
+        Config workflow = cf.create()
+            .set("+a", cf.create().set("_type", "noop"))
+            .set("+b", cf.create().set("_type", "noop"));
+        StoredSessionAttemptWithSession attempt1 = submitWorkflow("p1", workflow, ImmutableMap.of());
+        StoredSessionAttemptWithSession attempt2 = submitWorkflow("p2", workflow, ImmutableMap.of());
+        Map<String, TaskStateCode> submitted = taskStates(attempt2.getId());
+
+        // another executor owns the partition of attempt2
+        AttemptPartitionStore partitionStore = embed.getInjector().getInstance(SessionStoreManager.class).getAttemptPartitionStore();
+        partitionStore.initializePartitions(2);
+        partitionStore.renewExecutor("other", 3600);
+        assertTrue(partitionStore.tryAcquireLease((int) (attempt2.getId() % 2), "other", 3600));
+
+        assertThat(embed.getLocalSite().runUntilDone(attempt1.getId()).getStateFlags().isSuccess(), is(true));
+        assertThat(taskStates(attempt2.getId()), is(submitted));
+
+        // this executor takes over the partition after the other releases it
+        partitionStore.releaseAll("other");
+        assertThat(embed.getLocalSite().runUntilDone(attempt2.getId()).getStateFlags().isSuccess(), is(true));
+    }
+
+    @Test
+    public void collapseGroupingTasks()
+        throws Exception
+    {
+        Config workflow = cf.create()
+            .set("+g1", cf.create()
+                    .set("+g2", cf.create()
+                        .set("+a", cf.create().set("_type", "noop")))
+                    .set("+b", cf.create().set("_type", "noop")))
+            .set("+c", cf.create().set("_type", "noop"));
+
+        for (boolean collapse : new boolean[] { true, false }) {
+            embed.destroy();
+            embed = setupEmbed(ConfigElement.ofMap(ImmutableMap.of(
+                            "executor.collapse-grouping-tasks", Boolean.toString(collapse),
+                            "agent.enabled", "false")));
+            cf = embed.getInjector().getInstance(ConfigFactory.class);
+
+            // no pass of the executor loop runs before checking states
+            StoredSessionAttemptWithSession attempt = submitWorkflow("collapse", workflow, ImmutableMap.of());
+            if (collapse) {
+                assertThat(taskStates(attempt.getId()), is(ImmutableMap.builder()
+                                .put("+collapse", TaskStateCode.PLANNED)
+                                .put("+collapse+g1", TaskStateCode.PLANNED)
+                                .put("+collapse+g1+g2", TaskStateCode.PLANNED)
+                                .put("+collapse+g1+g2+a", TaskStateCode.RUNNING)
+                                .put("+collapse+g1+b", TaskStateCode.BLOCKED)
+                                .put("+collapse+c", TaskStateCode.BLOCKED)
+                                .build()));
+                succeedQueuedTasks("+collapse+g1+g2+a");
+            }
+            else {
+                assertThat(taskStates(attempt.getId()), is(ImmutableMap.builder()
+                                .put("+collapse", TaskStateCode.PLANNED)
+                                .put("+collapse+g1", TaskStateCode.BLOCKED)
+                                .put("+collapse+g1+g2", TaskStateCode.BLOCKED)
+                                .put("+collapse+g1+g2+a", TaskStateCode.BLOCKED)
+                                .put("+collapse+g1+b", TaskStateCode.BLOCKED)
+                                .put("+collapse+c", TaskStateCode.BLOCKED)
+                                .build()));
+                runExecutorUntil(attempt.getId(), ImmutableMap.of("+collapse+g1+g2+a", TaskStateCode.RUNNING));
+                succeedQueuedTasks("+collapse+g1+g2+a");
+            }
+
+            // following tasks run in order after the collapsed groups
+            runExecutorUntil(attempt.getId(), ImmutableMap.of("+collapse+g1+b", TaskStateCode.RUNNING));
+            assertThat(taskStates(attempt.getId()).get("+collapse+c"), is(TaskStateCode.BLOCKED));
+            succeedQueuedTasks("+collapse+g1+b");
+            runExecutorUntil(attempt.getId(), ImmutableMap.of("+collapse+c", TaskStateCode.RUNNING));
+            succeedQueuedTasks("+collapse+c");
+            runExecutorUntil(attempt.getId(), ImmutableMap.of("+collapse", TaskStateCode.SUCCESS));
+        }
+    }
+
+    @Test
+    public void runWithNamedQueue()
+        throws Exception
+    {
+        for (String queueType : new String[] { "memory", "database" }) {
+            embed.destroy();
+            // the agent takes tasks only from the shared queue
+            embed = setupEmbed(ConfigElement.ofMap(ImmutableMap.of("queue.type", queueType)));
+            cf = embed.getInjector().getInstance(ConfigFactory.class);
+            TaskQueueServer queue = embed.getInjector().getInstance(TaskQueueManager.class).getTaskQueueServer();
+            WorkflowExecutor exec = embed.getInjector().getInstance(WorkflowExecutor.class);
+
+            StoredSessionAttemptWithSession attempt = submitWorkflow("named_queue", loadYamlResource("/digdag/workflow/cases/named_queue.dig"), ImmutableMap.of());
+            ExecutorService executor = Executors.newSingleThreadExecutor();
+            try {
+                Future<StoredSessionAttemptWithSession> done = executor.submit(() -> embed.getLocalSite().runUntilDone(attempt.getId()));
+
+                // +shared runs on the agent while tasks of q1 wait in q1
+                waitForTaskStates(attempt.getId(), ImmutableMap.of(
+                            "+named_queue+tasks+shared", TaskStateCode.SUCCESS,
+                            "+named_queue+tasks+low", TaskStateCode.RUNNING,
+                            "+named_queue+tasks+high", TaskStateCode.RUNNING,
+                            "+named_queue+tasks+resource", TaskStateCode.RUNNING));
+                assertThat(queue.lockSharedTasks(10, "test", 60, -1), is(ImmutableList.of()));
+
+                List<TaskRequest> locked = queue.lockTasks(0, "q1", 10, "test", 60, -1);
+                assertThat(locked.stream().map(TaskRequest::getTaskName).collect(Collectors.toList()), contains(
+                            "+named_queue+tasks+high",
+                            "+named_queue+tasks+resource",
+                            "+named_queue+tasks+low"));
+
+                for (TaskRequest request : locked) {
+                    exec.taskSucceeded(request.getSiteId(), request.getTaskId(), request.getLockId(), AgentId.of("test"), TaskResult.empty(cf));
+                }
+                assertThat(done.get(30, TimeUnit.SECONDS).getStateFlags().isSuccess(), is(true));
+            }
+            finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    private Map<String, TaskStateCode> taskStates(long attemptId)
+    {
+        SessionStore store = embed.getInjector().getInstance(SessionStoreManager.class).getSessionStore(0);
+        return store.getTasksOfAttempt(attemptId).stream()
+            .collect(Collectors.toMap(task -> task.getFullName(), task -> task.getState()));
+    }
+
+    private void waitForTaskStates(long attemptId, Map<String, TaskStateCode> expected)
+        throws InterruptedException
+    {
+        Map<String, TaskStateCode> states = ImmutableMap.of();
+        for (int i = 0; i < 300; i++) {
+            states = Maps.filterKeys(taskStates(attemptId), name -> expected.containsKey(name));
+            if (states.equals(expected)) {
+                return;
+            }
+            Thread.sleep(100);
+        }
+        assertThat(states, is(expected));
+    }
+
+    // runs the executor until the tasks reach the states, then stops it
+    private void runExecutorUntil(long attemptId, Map<String, TaskStateCode> expected)
+        throws Exception
+    {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            executor.submit(() -> embed.getLocalSite().runUntilDone(attemptId));
+            waitForTaskStates(attemptId, expected);
+        }
+        finally {
+            executor.shutdownNow();
+            assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+        }
+    }
+
+    // locks all tasks of the shared queue and reports success of them
+    private void succeedQueuedTasks(String... expectedTaskNames)
+    {
+        TaskQueueServer queue = embed.getInjector().getInstance(TaskQueueManager.class).getTaskQueueServer();
+        WorkflowExecutor exec = embed.getInjector().getInstance(WorkflowExecutor.class);
+        List<TaskRequest> locked = queue.lockSharedTasks(100, "test", 60, -1);
+        assertThat(locked.stream().map(TaskRequest::getTaskName).collect(Collectors.toList()), contains(expectedTaskNames));
+        for (TaskRequest request : locked) {
+            exec.taskSucceeded(request.getSiteId(), request.getTaskId(), request.getLockId(), AgentId.of("test"), TaskResult.empty(cf));
+        }
+    }
+
+    @Test
+    public void runRequireWithLocalPolling()
+        throws Exception
+    {
+        // require> polls the child attempt in the agent until it finishes
+        Config child = cf.create()
+            .set("+step1", cf.create().set("echo>", "child").set("append_file", "out"));
+        Config parent = cf.create()
+            .set("+require", cf.create().set("require>", "child"));
+        runWorkflow("parent", parent, ImmutableMap.of("child", child));
+        assertThat(new String(Files.readAllBytes(folder.getRoot().toPath().resolve("out")), UTF_8), is("child"));
+    }
+
     private Config loadYamlResource(String name)
     {
         try {
@@ -101,13 +343,33 @@ public class WorkflowExecutorCasesTest
 
     private void runWorkflow(String workflowName, Config config)
         throws InterruptedException
+    {
+        runWorkflow(workflowName, config, ImmutableMap.of());
+    }
+
+    private void runWorkflow(String workflowName, Config config, Map<String, Config> otherWorkflows)
+        throws InterruptedException
+    {
+        StoredSessionAttemptWithSession attempt = submitWorkflow(workflowName, config, otherWorkflows);
+        try {
+            embed.getLocalSite().runUntilDone(attempt.getId());
+        }
+        catch (ResourceNotFoundException ex) {
+            throw Throwables.propagate(ex);
+        }
+    }
+
+    private StoredSessionAttemptWithSession submitWorkflow(String workflowName, Config config, Map<String, Config> otherWorkflows)
     {
         try {
             LocalSite localSite = embed.getLocalSite();
+            ImmutableList.Builder<WorkflowDefinition> defs = ImmutableList.builder();
+            defs.add(WorkflowFile.fromConfig(workflowName, config).toWorkflowDefinition());
+            for (Map.Entry<String, Config> pair : otherWorkflows.entrySet()) {
+                defs.add(WorkflowFile.fromConfig(pair.getKey(), pair.getValue()).toWorkflowDefinition());
+            }
             ArchiveMetadata meta = ArchiveMetadata.of(
-                    WorkflowDefinitionList.of(ImmutableList.of(
-                            WorkflowFile.fromConfig(workflowName, config).toWorkflowDefinition()
-                            )),
+                    WorkflowDefinitionList.of(defs.build()),
                     config.getFactory().create().set("_workdir", folder.getRoot().toString()));
             LocalSite.StoreWorkflowResult stored = localSite.storeLocalWorkflowsWithoutSchedule(
                     "defualt",
@@ -120,8 +382,7 @@ public class WorkflowExecutorCasesTest
                         def,
                         config.getFactory().create(),
                         ScheduleTime.runNow(Instant.ofEpochSecond(Instant.now().getEpochSecond())));
-            StoredSessionAttemptWithSession attempt = localSite.submitWorkflow(ar, def);
-            localSite.runUntilDone(attempt.getId());
+            return localSite.submitWorkflow(ar, def);
         }
         catch (ResourceNotFoundException | ResourceConflictException ex) {
             throw Throwables.propagate(ex);
@@ -6,6 +6,7 @@ import com.google.inject.multibindings.Multibinder;
 import io.digdag.spi.CommandExecutor;
 import io.digdag.spi.SchedulerFactory;
 import io.digdag.spi.OperatorFactory;
+import io.digdag.client.config.ConfigElement;
 import io.digdag.core.DigdagEmbed;
 import io.digdag.core.database.DatabaseConfig;
 import static io.digdag.core.database.DatabaseTestingUtils.cleanDatabase;
@@ -16,8 +17,14 @@ public class WorkflowTestingUtils
     private WorkflowTestingUtils() { }
 
     public static DigdagEmbed setupEmbed()
+    {
+        return setupEmbed(ConfigElement.empty());
+    }
+
+    public static DigdagEmbed setupEmbed(ConfigElement systemConfig)
     {
         DigdagEmbed embed = new DigdagEmbed.Bootstrap()
+            .setSystemConfig(systemConfig)
             .withExtensionLoader(false)
             .addModules((binder) -> {
                 binder.bind(CommandExecutor.class).to(SimpleCommandExecutor.class).in(Scopes.SINGLETON);
@@ -4,17 +4,21 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.jaxrs.json.JacksonJsonProvider;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.google.inject.Inject;
+import com.google.inject.Scopes;
 import io.digdag.client.config.ConfigException;
 import io.digdag.core.repository.ModelValidationException;
 import io.digdag.core.repository.ResourceConflictException;
 import io.digdag.core.repository.ResourceNotFoundException;
 import io.digdag.spi.StorageFileNotFoundException;
+import io.digdag.spi.TaskStateException;
 import io.digdag.guice.rs.GuiceRsModule;
 import io.digdag.server.rs.AttemptResource;
 import io.digdag.server.rs.LogResource;
 import io.digdag.server.rs.ProjectResource;
 import io.digdag.server.rs.ScheduleResource;
 import io.digdag.server.rs.SessionResource;
+import io.digdag.server.rs.TaskLockWaiter;
+import io.digdag.server.rs.TaskResource;
 import io.digdag.server.rs.VersionResource;
 import io.digdag.server.rs.WorkflowResource;
 
@@ -41,6 +45,7 @@ public class ServerModule
             .addProvider(CustomHeaderFilter.class)
             ;
         bindResources(builder);
+        binder().bind(TaskLockWaiter.class).in(Scopes.SINGLETON);
         bindAuthenticator();
         bindExceptionhandlers(builder);
     }
@@ -54,6 +59,7 @@ public class ServerModule
                 SessionResource.class,
                 AttemptResource.class,
                 LogResource.class,
+                TaskResource.class,
                 VersionResource.class
             );
     }
@@ -69,6 +75,7 @@ public class ServerModule
             .addProviderInstance(new GenericJsonExceptionHandler<ResourceNotFoundException>(Response.Status.NOT_FOUND) { })
             .addProviderInstance(new GenericJsonExceptionHandler<StorageFileNotFoundException>(Response.Status.NOT_FOUND) { })
             .addProviderInstance(new GenericJsonExceptionHandler<ResourceConflictException>(Response.Status.CONFLICT) { })
+            .addProviderInstance(new GenericJsonExceptionHandler<TaskStateException>(Response.Status.CONFLICT) { })
             .addProviderInstance(new GenericJsonExceptionHandler<NotSupportedException>(Response.Status.BAD_REQUEST) { })
             .addProviderInstance(new GenericJsonExceptionHandler<IOException>(Response.Status.BAD_REQUEST) { })  // happens if input is not gzip
             .addProviderInstance(new GenericJsonExceptionHandler<ModelValidationException>(Response.Status.BAD_REQUEST) { })
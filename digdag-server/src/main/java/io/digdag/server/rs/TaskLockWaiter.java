@@ -0,0 +1,186 @@
+package io.digdag.server.rs;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import javax.annotation.PreDestroy;
+import javax.ws.rs.container.AsyncResponse;
+import com.google.inject.Inject;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.digdag.core.queue.WakeupBusManager;
+import io.digdag.spi.TaskRequest;
+import io.digdag.spi.WakeupBus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import static io.digdag.core.queue.WakeupBusManager.SHARED_TASK_QUEUE_CHANNEL;
+import static io.digdag.core.queue.WakeupBusManager.TASK_QUEUE_CHANNEL;
+
+/**
+ * Long-polling of /api/queue/lock.
+ *
+ * Requests waiting for tasks don't hold request threads. They are retried
+ * when tasks are enqueued, and periodically because some task queues don't
+ * publish to the wakeup bus. Notifications arriving while a retry is pending
+ * are coalesced into it. Waiters are accessed only by the single timer
+ * thread so that a response is resumed only once.
+ *
+ * Locks are owned by the agent that requested them, so a lock attempt can't
+ * be shared by waiters. Instead, waiters of a queue are retried in order only
+ * until an attempt takes fewer tasks than its limit, which means the queue
+ * is drained. Thus a notification costs one lock attempt per queue when no
+ * tasks are available however many agents are waiting.
+ */
+public class TaskLockWaiter
+{
+    private static final Logger logger = LoggerFactory.getLogger(TaskLockWaiter.class);
+
+    private static final long RETRY_INTERVAL_MILLIS = 1000;
+
+    private final ScheduledExecutorService timer;
+    private final List<Waiter> waiters = new ArrayList<>();
+    private final AtomicBoolean retryPending = new AtomicBoolean(false);
+
+    @Inject
+    public TaskLockWaiter(WakeupBusManager wakeupBusManager)
+    {
+        this.timer = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("task-lock-waiter-%d")
+                .build()
+                );
+        WakeupBus bus = wakeupBusManager.getWakeupBus();
+        bus.subscribe(SHARED_TASK_QUEUE_CHANNEL, this::wakeup);
+        bus.subscribe(TASK_QUEUE_CHANNEL, this::wakeup);
+        timer.scheduleWithFixedDelay(this::retryAll,
+                RETRY_INTERVAL_MILLIS, RETRY_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    // lockAttempt must not sleep and locks at most limit tasks of the queue
+    // identified by queueKey. The response is resumed with tasks locked by
+    // lockAttempt, or with no tasks after maxSleepMillis.
+    public void waitForTasks(AsyncResponse response, long maxSleepMillis,
+            Object queueKey, int limit,
+            Supplier<List<TaskRequest>> lockAttempt,
+            Function<List<TaskRequest>, ?> resultBuilder)
+    {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxSleepMillis);
+        Waiter waiter = new Waiter(response, queueKey, limit, deadline, lockAttempt, resultBuilder);
+        try {
+            timer.execute(() -> waiters.add(waiter));
+            timer.schedule(() -> finish(waiter, ImmutableList.of()), maxSleepMillis, TimeUnit.MILLISECONDS);
+        }
+        catch (RejectedExecutionException ex) {
+            // shutting down
+            response.resume(resultBuilder.apply(ImmutableList.of()));
+        }
+    }
+
+    private void wakeup()
+    {
+        if (!retryPending.compareAndSet(false, true)) {
+            // a retry is queued already
+            return;
+        }
+        try {
+            timer.execute(this::retryAll);
+        }
+        catch (RejectedExecutionException ex) {
+            // shutting down
+        }
+    }
+
+    private void retryAll()
+    {
+        // notifications after this point need another retry
+        retryPending.set(false);
+
+        Set<Object> drainedQueues = new HashSet<>();
+        for (Waiter waiter : ImmutableList.copyOf(waiters)) {
+            if (waiter.response.isDone()) {
+                // client disconnected
+                waiters.remove(waiter);
+                continue;
+            }
+            if (System.nanoTime() - waiter.deadline >= 0) {
+                // don't delay the timeout scheduled behind this retry
+                finish(waiter, ImmutableList.of());
+                continue;
+            }
+            if (drainedQueues.contains(waiter.queueKey)) {
+                continue;
+            }
+            try {
+                List<TaskRequest> tasks = waiter.lockAttempt.get();
+                if (tasks.size() < waiter.limit) {
+                    drainedQueues.add(waiter.queueKey);
+                }
+                if (!tasks.isEmpty()) {
+                    finish(waiter, tasks);
+                }
+            }
+            catch (RuntimeException ex) {
+                if (waiters.remove(waiter)) {
+                    waiter.response.resume(ex);
+                }
+            }
+        }
+    }
+
+    private void finish(Waiter waiter, List<TaskRequest> tasks)
+    {
+        if (!waiters.remove(waiter)) {
+            return;
+        }
+        if (!waiter.response.resume(waiter.resultBuilder.apply(tasks)) && !tasks.isEmpty()) {
+            logger.warn("Client disconnected before receiving {} locked tasks. Locks will expire", tasks.size());
+        }
+    }
+
+    @PreDestroy
+    public void shutdown()
+    {
+        timer.shutdownNow();
+        try {
+            timer.awaitTermination(10, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        for (Waiter waiter : ImmutableList.copyOf(waiters)) {
+            finish(waiter, ImmutableList.of());
+        }
+    }
+
+    private static class Waiter
+    {
+        private final AsyncResponse response;
+        private final Object queueKey;
+        private final int limit;
+        private final long deadline;
+        private final Supplier<List<TaskRequest>> lockAttempt;
+        private final Function<List<TaskRequest>, ?> resultBuilder;
+
+        Waiter(AsyncResponse response,
+                Object queueKey, int limit, long deadline,
+                Supplier<List<TaskRequest>> lockAttempt,
+                Function<List<TaskRequest>, ?> resultBuilder)
+        {
+            this.response = response;
+            this.queueKey = queueKey;
+            this.limit = limit;
+            this.deadline = deadline;
+            this.lockAttempt = lockAttempt;
+            this.resultBuilder = resultBuilder;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package io.digdag.server.rs;
+
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.Produces;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.POST;
+import javax.ws.rs.DELETE;
+import javax.ws.rs.ForbiddenException;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.inject.Inject;
+import io.digdag.client.api.RestAgentHeartbeatRequest;
+import io.digdag.client.api.RestTaskHeartbeatRequest;
+import io.digdag.client.api.RestTaskHeartbeatResult;
+import io.digdag.client.api.RestTaskLockRequest;
+import io.digdag.client.api.RestTaskLockResult;
+import io.digdag.client.config.Config;
+import io.digdag.client.config.ConfigFactory;
+import io.digdag.core.queue.TaskQueueManager;
+import static io.digdag.core.queue.HttpTaskQueueClient.AGENT_TOKEN_HEADER;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import io.digdag.spi.TaskQueueServer;
+import io.digdag.spi.TaskRequest;
+import io.digdag.spi.TaskStateException;
+
+@Path("/")
+@Produces("application/json")
+public class TaskResource
+    extends AuthenticatedResource
+{
+    // POST   /api/queue/lock                         # lock tasks with long-polling
+    // POST   /api/queue/heartbeat                    # extend locks of running tasks
+    // POST   /api/queue/agent_heartbeat              # tell that an agent is alive
+    // DELETE /api/queue/locks/{lock_id}?agent_id=<id>  # delete a lock of a finished task
+    //
+    // These are for agents running on other nodes, which take tasks through
+    // this server instead of connecting to the database. An agent locking
+    // tasks of the shared queue can run tasks of any sites. Thus this API is
+    // disabled unless server.queue-api.enabled is true, and accepts only
+    // requests with X-Digdag-Agent-Token header matching
+    // server.queue-api.agent-token in addition to the regular authentication.
+
+    private static final long DEFAULT_MAX_SLEEP_MILLIS = 30000;
+
+    private final TaskQueueServer queue;
+    private final TaskLockWaiter lockWaiter;
+    private final ConfigFactory cf;
+    private final boolean enabled;
+    private final Optional<String> agentToken;
+    private final long maxSleepMillis;
+
+    @Inject
+    public TaskResource(
+            TaskQueueManager queueManager,
+            TaskLockWaiter lockWaiter,
+            ConfigFactory cf,
+            Config systemConfig)
+    {
+        this.queue = queueManager.getTaskQueueServer();
+        this.lockWaiter = lockWaiter;
+        this.cf = cf;
+        this.enabled = systemConfig.get("server.queue-api.enabled", boolean.class, false);
+        this.agentToken = systemConfig.getOptional("server.queue-api.agent-token", String.class);
+        this.maxSleepMillis = systemConfig.get("server.queue-api.max-sleep-millis", long.class, DEFAULT_MAX_SLEEP_MILLIS);
+    }
+
+    @POST
+    @Consumes("application/json")
+    @Path("/api/queue/lock")
+    public void lockTasks(RestTaskLockRequest request, @Suspended AsyncResponse response)
+    {
+        checkAgent();
+        int siteId = getSiteId();
+        Supplier<List<TaskRequest>> lockAttempt = () -> {
+            if (request.getQueueName().isPresent()) {
+                return queue.lockTasks(siteId, request.getQueueName().get(),
+                        request.getLimit(), request.getAgentId(), request.getLockSeconds(), -1);
+            }
+            else {
+                return queue.lockSharedTasks(
+                        request.getLimit(), request.getAgentId(), request.getLockSeconds(), -1);
+            }
+        };
+
+        List<TaskRequest> tasks = lockAttempt.get();
+        // 0 means waiting without timeout
+        long sleep = request.getMaxSleepMillis() == 0 ? maxSleepMillis : Math.min(request.getMaxSleepMillis(), maxSleepMillis);
+        if (!tasks.isEmpty() || sleep <= 0) {
+            response.resume(buildLockResult(tasks));
+        }
+        else {
+            // waits until tasks are enqueued without holding a request
+            // thread or a database connection
+            List<Object> queueKey = request.getQueueName().isPresent()
+                ? ImmutableList.of(siteId, request.getQueueName().get())
+                : ImmutableList.of();
+            lockWaiter.waitForTasks(response, sleep, queueKey, request.getLimit(),
+                    lockAttempt, this::buildLockResult);
+        }
+    }
+
+    private RestTaskLockResult buildLockResult(List<TaskRequest> tasks)
+    {
+        return RestTaskLockResult.of(tasks.stream()
+                .map(task -> cf.create(task))
+                .collect(Collectors.toList()));
+    }
+
+    @POST
+    @Consumes("application/json")
+    @Path("/api/queue/heartbeat")
+    public RestTaskHeartbeatResult taskHeartbeat(RestTaskHeartbeatRequest request)
+        throws TaskStateException
+    {
+        checkAgent();
+        return RestTaskHeartbeatResult.of(
+                queue.taskHeartbeat(getSiteId(), request.getLockIds(), request.getAgentId(), request.getLockSeconds()));
+    }
+
+    @POST
+    @Consumes("application/json")
+    @Path("/api/queue/agent_heartbeat")
+    public void agentHeartbeat(RestAgentHeartbeatRequest request)
+    {
+        checkAgent();
+        queue.agentHeartbeat(request.getAgentId(), request.getLivenessSeconds());
+    }
+
+    @DELETE
+    @Path("/api/queue/locks/{lock_id}")
+    public void deleteLock(
+            @PathParam("lock_id") String lockId,
+            @QueryParam("agent_id") String agentId)
+        throws TaskStateException
+    {
+        checkAgent();
+        queue.delete(getSiteId(), lockId, agentId);
+    }
+
+    private void checkAgent()
+    {
+        if (!enabled) {
+            throw new ForbiddenException("Task queue API is disabled. Set server.queue-api.enabled = true to enable it");
+        }
+        if (!agentToken.isPresent()) {
+            throw new ForbiddenException("Task queue API needs server.queue-api.agent-token to authenticate agents");
+        }
+        String token = request.getHeader(AGENT_TOKEN_HEADER);
+        if (token == null || !MessageDigest.isEqual(token.getBytes(UTF_8), agentToken.get().getBytes(UTF_8))) {
+            throw new ForbiddenException("Task queue API is available only for agents");
+        }
+    }
+}
@@ -7,4 +7,9 @@ public interface OperatorFactory
     String getType();
 
     Operator newTaskExecutor(Path workspacePath, TaskRequest request);
+
+    default WorkspaceRequirement getWorkspaceRequirement()
+    {
+        return WorkspaceRequirement.FULL;
+    }
 }
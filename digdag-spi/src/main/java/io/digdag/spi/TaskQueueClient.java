@@ -1,13 +1,25 @@
 package io.digdag.spi;
 
 import java.util.List;
+import com.google.common.collect.ImmutableList;
 
 public interface TaskQueueClient
 {
     List<TaskRequest> lockSharedTasks(int limit, String agentId, int lockSeconds, long maxSleepMillis);
 
-    // TODO lockTasks (of custom queue) is not implemented yet
+    // locks tasks of a named queue other than the shared queue. Queues that
+    // don't support named queues put all tasks in the shared queue.
+    default List<TaskRequest> lockTasks(int siteId, String queueName, int limit, String agentId, int lockSeconds, long maxSleepMillis)
+    {
+        return ImmutableList.of();
+    }
 
-    void taskHeartbeat(int siteId, List<String> lockedIds, String agentId, int lockSeconds)
+    // returns lock ids that are not held by the agent any more
+    List<String> taskHeartbeat(int siteId, List<String> lockedIds, String agentId, int lockSeconds)
         throws TaskStateException;
+
+    // tells that the agent is alive. queues may release locks held by an agent
+    // that doesn't call this for livenessSeconds before their lockSeconds pass.
+    default void agentHeartbeat(String agentId, int livenessSeconds)
+    { }
 }
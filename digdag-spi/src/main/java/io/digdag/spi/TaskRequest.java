@@ -36,6 +36,8 @@ public interface TaskRequest
 
     String getQueueName();
 
+    Optional<String> getResourceType();
+
     String getLockId();
 
     int getPriority();
@@ -0,0 +1,11 @@
+package io.digdag.spi;
+
+public interface WakeupBus
+{
+    // wakes up listeners subscribing the channel on this and other servers.
+    // this is a hint to check new state soon. listeners may be called more
+    // often than publish, or less often if notices are coalesced.
+    void publish(String channel);
+
+    void subscribe(String channel, Runnable listener);
+}
@@ -0,0 +1,10 @@
+package io.digdag.spi;
+
+import io.digdag.client.config.Config;
+
+public interface WakeupBusFactory
+{
+    String getType();
+
+    WakeupBus getWakeupBus(Config systemConfig);
+}
@@ -0,0 +1,18 @@
+package io.digdag.spi;
+
+/**
+ * Files of the project that an operator needs in its workspace.
+ */
+public enum WorkspaceRequirement
+{
+    // the operator doesn't read files. the archive is not extracted.
+    NONE,
+
+    // the operator reads a file only if its command is a file name
+    // (e.g. "td>: queries/a.sql"). the archive is not extracted if the
+    // command is not set or not a string (e.g. "td>:" with "query:").
+    LAZY,
+
+    // the archive is always extracted.
+    FULL;
+}
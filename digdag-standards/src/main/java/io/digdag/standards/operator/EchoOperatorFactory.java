@@ -4,6 +4,7 @@ import com.google.inject.Inject;
 import io.digdag.client.config.Config;
 import io.digdag.spi.Operator;
 import io.digdag.spi.OperatorFactory;
+import io.digdag.spi.WorkspaceRequirement;
 import io.digdag.spi.TaskRequest;
 import io.digdag.spi.TaskResult;
 
@@ -21,6 +22,12 @@ public class EchoOperatorFactory
         return "echo";
     }
 
+    @Override
+    public WorkspaceRequirement getWorkspaceRequirement()
+    {
+        return WorkspaceRequirement.NONE;
+    }
+
     @Override
     public Operator newTaskExecutor(Path workspacePath, TaskRequest request)
     {
@@ -8,6 +8,7 @@ import io.digdag.spi.TaskRequest;
 import io.digdag.spi.TaskResult;
 import io.digdag.spi.Operator;
 import io.digdag.spi.OperatorFactory;
+import io.digdag.spi.WorkspaceRequirement;
 import io.digdag.spi.TaskExecutionException;
 import io.digdag.util.BaseOperator;
 
@@ -23,6 +24,12 @@ public class FailOperatorFactory
         return "fail";
     }
 
+    @Override
+    public WorkspaceRequirement getWorkspaceRequirement()
+    {
+        return WorkspaceRequirement.NONE;
+    }
+
     @Override
     public Operator newTaskExecutor(Path workspacePath, TaskRequest request)
     {
@@ -9,6 +9,7 @@ import io.digdag.client.config.ConfigFactory;
 import io.digdag.core.Limits;
 import io.digdag.spi.Operator;
 import io.digdag.spi.OperatorFactory;
+import io.digdag.spi.WorkspaceRequirement;
 import io.digdag.spi.TaskRequest;
 import io.digdag.spi.TaskResult;
 import io.digdag.util.BaseOperator;
@@ -37,6 +38,12 @@ public class ForEachOperatorFactory
         return "for_each";
     }
 
+    @Override
+    public WorkspaceRequirement getWorkspaceRequirement()
+    {
+        return WorkspaceRequirement.NONE;
+    }
+
     @Override
     public Operator newTaskExecutor(Path workspacePath, TaskRequest request)
     {
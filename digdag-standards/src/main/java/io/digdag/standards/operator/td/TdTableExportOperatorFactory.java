@@ -14,6 +14,7 @@ import io.digdag.spi.TaskRequest;
 import io.digdag.spi.TaskResult;
 import io.digdag.spi.Operator;
 import io.digdag.spi.OperatorFactory;
+import io.digdag.spi.WorkspaceRequirement;
 import io.digdag.util.BaseOperator;
 import io.digdag.client.config.Config;
 import io.digdag.client.config.ConfigException;
@@ -37,6 +38,12 @@ public class TdTableExportOperatorFactory
         return "td_table_export";
     }
 
+    @Override
+    public WorkspaceRequirement getWorkspaceRequirement()
+    {
+        return WorkspaceRequirement.NONE;
+    }
+
     @Override
     public Operator newTaskExecutor(Path workspacePath, TaskRequest request)
     {
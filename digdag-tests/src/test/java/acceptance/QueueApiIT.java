@@ -0,0 +1,102 @@
+package acceptance;
+
+import io.digdag.client.DigdagClient;
+import io.digdag.client.api.RestTaskLockRequest;
+import io.digdag.client.api.RestTaskLockResult;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.ws.rs.ClientErrorException;
+
+import java.nio.file.Path;
+import java.time.Duration;
+
+import static acceptance.TestUtils.addWorkflow;
+import static acceptance.TestUtils.attemptSuccess;
+import static acceptance.TestUtils.createProject;
+import static acceptance.TestUtils.expect;
+import static acceptance.TestUtils.findFreePort;
+import static acceptance.TestUtils.pushAndStart;
+import static io.digdag.core.queue.HttpTaskQueueClient.AGENT_TOKEN_HEADER;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class QueueApiIT
+{
+    private static final String AGENT_TOKEN = "test-agent-token";
+
+    private final int port = findFreePort();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // the agent of this server takes tasks through REST API of the server itself
+    @Rule
+    public TemporaryDigdagServer server = TemporaryDigdagServer.builder()
+            .port(port)
+            .configuration(
+                    "server.queue-api.enabled = true",
+                    "server.queue-api.agent-token = " + AGENT_TOKEN,
+                    "agent.server.host = 127.0.0.1",
+                    "agent.server.port = " + port,
+                    "agent.server.agent-token = " + AGENT_TOKEN)
+            .build();
+
+    @Test
+    public void runTasksThroughQueueApi()
+            throws Exception
+    {
+        Path projectDir = folder.getRoot().toPath().resolve("queue_api");
+        createProject(projectDir);
+        addWorkflow(projectDir, "acceptance/basic.dig");
+
+        long attemptId = pushAndStart(server.endpoint(), projectDir, "basic");
+        expect(Duration.ofMinutes(5), attemptSuccess(server.endpoint(), attemptId));
+    }
+
+    @Test
+    public void rejectRequestsWithoutAgentToken()
+            throws Exception
+    {
+        RestTaskLockRequest request = RestTaskLockRequest.builder()
+                .limit(1)
+                .agentId("test")
+                .lockSeconds(60)
+                .maxSleepMillis(100)
+                .build();
+
+        try {
+            client(null).lockTasks(request);
+            fail();
+        }
+        catch (ClientErrorException ex) {
+            assertThat(ex.getResponse().getStatus(), is(403));
+        }
+
+        try {
+            client("wrong-token").lockTasks(request);
+            fail();
+        }
+        catch (ClientErrorException ex) {
+            assertThat(ex.getResponse().getStatus(), is(403));
+        }
+
+        // nothing is enqueued. returns after the sleep
+        RestTaskLockResult result = client(AGENT_TOKEN).lockTasks(request);
+        assertThat(result.getTasks(), empty());
+    }
+
+    private DigdagClient client(String agentToken)
+    {
+        DigdagClient.Builder builder = DigdagClient.builder()
+                .host(server.host())
+                .port(server.port());
+        if (agentToken != null) {
+            builder.header(AGENT_TOKEN_HEADER, agentToken);
+        }
+        return builder.build();
+    }
+}
@@ -103,7 +103,7 @@ public class TemporaryDigdagServer
         this.host = "127.0.0.1";
         // TODO (dano): Ideally the server could use system port allocation (bind on port 0) and tell
         //              us what port it got. That way we'd not have any spurious port collisions.
-        this.port = findFreePort();
+        this.port = builder.port.isPresent() ? builder.port.get() : findFreePort();
         this.endpoint = "http://" + host + ":" + port;
         this.configuration = new ArrayList<>(Objects.requireNonNull(builder.configuration, "configuration"));
         this.extraArgs = ImmutableList.copyOf(Objects.requireNonNull(builder.args, "args"));
@@ -482,6 +482,7 @@ public class TemporaryDigdagServer
         private Optional<Version> version = Optional.absent();
         private List<String> configuration = new ArrayList<>();
         private boolean inProcess = IN_PROCESS_DEFAULT;
+        private Optional<Integer> port = Optional.absent();
 
         public Builder version(Version version)
         {
@@ -522,6 +523,12 @@ public class TemporaryDigdagServer
             return this;
         }
 
+        public Builder port(int port)
+        {
+            this.port = Optional.of(port);
+            return this;
+        }
+
         TemporaryDigdagServer build()
         {
             return new TemporaryDigdagServer(this);